@@ -0,0 +1,272 @@
+package nist.squire;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+//This class does the work of PixelKernels with the Vector API, so each instruction handles as
+//	many pixels as the processor's widest registers hold. Sums are kept in doubles as in
+//	PixelKernels, so each step works on as many pixels as there are doubles in a register, and
+//	16-bit and float pixels are loaded at the width that gives the same number of lanes. The
+//	pixels left over at the end of an image are done one at a time. PixelKernels only loads this
+//	class on Java 17 or later with the jdk.incubator.vector module added; on processors without
+//	at least four doubles per register it refuses to load, since the scalar loops are faster.
+public class VectorKernels extends PixelKernels {
+
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private static final int LANES = DOUBLES.length();
+	private static final VectorSpecies<Short> SHORTS = VectorSpecies.of(short.class, VectorShape.forBitSize(16*LANES));
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, VectorShape.forBitSize(32*LANES));
+	private static final VectorSpecies<Long> LONGS = VectorSpecies.of(long.class, VectorShape.forBitSize(64*LANES));
+	private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class, VectorShape.forBitSize(32*LANES));
+	private static final VectorSpecies<Float> WIDE_FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Short> WIDE_SHORTS = ShortVector.SPECIES_PREFERRED;
+
+	public VectorKernels() {
+		if (LANES<4) {
+			throw new UnsupportedOperationException("Vector registers hold " + LANES + " doubles");
+		}
+	}
+
+	@Override
+	public String getName() {return "Vector (" + DOUBLES.vectorBitSize() + "-bit)";}
+
+	@Override
+	public void accumulate(short[] frame, int[] sum, long[] sumSquares) {
+		int upper = SHORTS.loopBound(frame.length);
+		int k = 0;
+		for (; k<upper; k += LANES) {
+			IntVector value = ((IntVector) ShortVector.fromArray(SHORTS, frame, k).convertShape(VectorOperators.S2I, INTS, 0)).and(0xffff);
+			IntVector.fromArray(INTS, sum, k).add(value).intoArray(sum, k);
+			LongVector wide = (LongVector) value.convertShape(VectorOperators.I2L, LONGS, 0);
+			LongVector.fromArray(LONGS, sumSquares, k).add(wide.mul(wide)).intoArray(sumSquares, k);
+		}
+		for (; k<frame.length; k++) {
+			int value = frame[k] & 0xffff;
+			sum[k] += value;
+			sumSquares[k] += (long) value*value;
+		}
+	}
+
+	@Override
+	public void accumulate(float[] frame, double[] sum, double[] sumSquares) {
+		int upper = FLOATS.loopBound(frame.length);
+		int k = 0;
+		for (; k<upper; k += LANES) {
+			DoubleVector value = (DoubleVector) FloatVector.fromArray(FLOATS, frame, k).convertShape(VectorOperators.F2D, DOUBLES, 0);
+			DoubleVector.fromArray(DOUBLES, sum, k).add(value).intoArray(sum, k);
+			value.fma(value, DoubleVector.fromArray(DOUBLES, sumSquares, k)).intoArray(sumSquares, k);
+		}
+		for (; k<frame.length; k++) {
+			double value = frame[k];
+			sum[k] += value;
+			sumSquares[k] += value*value;
+		}
+	}
+
+	@Override
+	public void finish(double[] sum, double[] sumSquares, int count, float[] mean, float[] deviation) {
+		int upper = DOUBLES.loopBound(sum.length);
+		int k = 0;
+		for (; k<upper; k += LANES) {
+			DoubleVector m = DoubleVector.fromArray(DOUBLES, sum, k).div(count);
+			DoubleVector variance = DoubleVector.fromArray(DOUBLES, sumSquares, k).div(count).sub(m.mul(m));
+			((FloatVector) m.convertShape(VectorOperators.D2F, FLOATS, 0)).intoArray(mean, k);
+			((FloatVector) variance.sqrt().convertShape(VectorOperators.D2F, FLOATS, 0)).intoArray(deviation, k);
+		}
+		for (; k<sum.length; k++) {
+			double m = sum[k]/count;
+			mean[k] = (float) m;
+			deviation[k] = (float) Math.sqrt(sumSquares[k]/count - m*m);
+		}
+	}
+
+	@Override
+	public void finish(int[] sum, long[] sumSquares, int count, float[] mean, float[] deviation) {
+		double countSquared = (double) count*count;
+		int upper = INTS.loopBound(sum.length);
+		int k = 0;
+		for (; k<upper; k += LANES) {
+			IntVector s = IntVector.fromArray(INTS, sum, k);
+			DoubleVector m = ((DoubleVector) s.convertShape(VectorOperators.I2D, DOUBLES, 0)).div(count);
+			LongVector wide = (LongVector) s.convertShape(VectorOperators.I2L, LONGS, 0);
+			LongVector numerator = LongVector.fromArray(LONGS, sumSquares, k).mul(count).sub(wide.mul(wide));
+			DoubleVector variance = ((DoubleVector) numerator.convertShape(VectorOperators.L2D, DOUBLES, 0)).div(countSquared);
+			((FloatVector) m.convertShape(VectorOperators.D2F, FLOATS, 0)).intoArray(mean, k);
+			((FloatVector) variance.sqrt().convertShape(VectorOperators.D2F, FLOATS, 0)).intoArray(deviation, k);
+		}
+		for (; k<sum.length; k++) {
+			long s = sum[k];
+			mean[k] = (float) ((double) s/count);
+			deviation[k] = (float) Math.sqrt((count*sumSquares[k] - s*s)/countSquared);
+		}
+	}
+
+	@Override
+	public void summarize(float[] pixels, int from, int to, int step, double saturation, PixelSummary summary) {
+		// Strided pixels are not next to each other, so they are left to the scalar loop.
+		if (step!=1) {
+			super.summarize(pixels, from, to, step, saturation, summary);
+			return;
+		}
+		DoubleVector min = DoubleVector.broadcast(DOUBLES, Double.POSITIVE_INFINITY);
+		DoubleVector max = DoubleVector.broadcast(DOUBLES, Double.NEGATIVE_INFINITY);
+		DoubleVector sum = DoubleVector.zero(DOUBLES);
+		DoubleVector sumSquares = DoubleVector.zero(DOUBLES);
+		long saturated = 0;
+		int upper = from + FLOATS.loopBound(to-from);
+		int k = from;
+		for (; k<upper; k += LANES) {
+			DoubleVector value = (DoubleVector) FloatVector.fromArray(FLOATS, pixels, k).convertShape(VectorOperators.F2D, DOUBLES, 0);
+			min = min.min(value);
+			max = max.max(value);
+			sum = sum.add(value);
+			sumSquares = value.fma(value, sumSquares);
+			saturated += value.compare(VectorOperators.GE, saturation).trueCount();
+		}
+		summary.add(min.reduceLanes(VectorOperators.MIN), max.reduceLanes(VectorOperators.MAX),
+				sum.reduceLanes(VectorOperators.ADD), sumSquares.reduceLanes(VectorOperators.ADD), upper-from, saturated);
+		if (k<to) {
+			super.summarize(pixels, k, to, 1, saturation, summary);
+		}
+	}
+
+	/*
+	 *  The mask kernels compare a whole register of pixels at once and write the comparison
+	 *  straight into the mask, one bit per lane. Lane counts are powers of two no larger than 64,
+	 *  so every register of pixels lands inside a single word of the mask.
+	 */
+	@Override
+	public void markAtOrAbove(short[] frame, int level, PixelMask mask) {
+		if (level>0xffff) {
+			return;
+		}
+		short threshold = (short) Math.max(level, 0);
+		int step = WIDE_SHORTS.length();
+		int upper = WIDE_SHORTS.loopBound(frame.length);
+		int k = 0;
+		for (; k<upper; k += step) {
+			long bits = ShortVector.fromArray(WIDE_SHORTS, frame, k).compare(VectorOperators.UNSIGNED_GE, threshold).toLong();
+			mask.words[k >>> 6] |= bits << k;
+		}
+		for (; k<frame.length; k++) {
+			if ((frame[k] & 0xffff)>=level) {
+				mask.words[k >>> 6] |= 1L << k;
+			}
+		}
+	}
+
+	@Override
+	public void markAtOrAbove(float[] pixels, double level, PixelMask mask) {
+		// Levels a float can not hold exactly would compare differently, so they are left to the scalar loop.
+		if ((float) level!=level) {
+			super.markAtOrAbove(pixels, level, mask);
+			return;
+		}
+		int step = WIDE_FLOATS.length();
+		int upper = WIDE_FLOATS.loopBound(pixels.length);
+		int k = 0;
+		for (; k<upper; k += step) {
+			long bits = FloatVector.fromArray(WIDE_FLOATS, pixels, k).compare(VectorOperators.GE, (float) level).toLong();
+			mask.words[k >>> 6] |= bits << k;
+		}
+		for (; k<pixels.length; k++) {
+			if (pixels[k]>=level) {
+				mask.words[k >>> 6] |= 1L << k;
+			}
+		}
+	}
+
+	@Override
+	public void markOutside(float[] pixels, double low, double high, PixelMask mask) {
+		if ((float) low!=low || (float) high!=high) {
+			super.markOutside(pixels, low, high, mask);
+			return;
+		}
+		int step = WIDE_FLOATS.length();
+		int upper = WIDE_FLOATS.loopBound(pixels.length);
+		int k = 0;
+		for (; k<upper; k += step) {
+			FloatVector value = FloatVector.fromArray(WIDE_FLOATS, pixels, k);
+			VectorMask<Float> inside = value.compare(VectorOperators.GE, (float) low).and(value.compare(VectorOperators.LE, (float) high));
+			mask.words[k >>> 6] |= inside.not().toLong() << k;
+		}
+		for (; k<pixels.length; k++) {
+			if (!(pixels[k]>=low && pixels[k]<=high)) {
+				mask.words[k >>> 6] |= 1L << k;
+			}
+		}
+	}
+
+	@Override
+	public void absorbance(float[] sample, float[] deviation, int replicates, float[] blank, float[] blankVariance, float[] dark,
+			double scale, PixelMask pixels, float[] absorbance, float[] error) {
+		/*
+		 *  Each word of the mask is taken a register at a time, and registers with no marked
+		 *  pixels are skipped. The last word, which may run past the end of the image, is left to
+		 *  the scalar loop. The scalar loop takes the signal and ratio in doubles, but here all of
+		 *  the arithmetic is done in floats, so absorbances and errors differ from it by a float
+		 *  rounding of the ratio; KernelBenchmark finds about 2e-8 at most, far below the error.
+		 */
+		int step = WIDE_FLOATS.length();
+		long laneBits = (step==64) ? -1L : (1L << step) - 1;
+		float fScale = (float) scale;
+		float fReplicates = replicates;
+		float inverseLn10 = (float) (1/LN10);
+		long[] words = pixels.words;
+		int fullWords = pixels.size() >>> 6;
+		for (int w = 0; w<fullWords; w++) {
+			long word = words[w];
+			for (int lane = 0; word!=0 && lane<64; lane += step) {
+				long bits = word & laneBits;
+				word >>>= step;
+				if (bits==0) {
+					continue;
+				}
+				int k = (w << 6) + lane;
+				VectorMask<Float> marked = VectorMask.fromLong(WIDE_FLOATS, bits);
+				FloatVector d = FloatVector.fromArray(WIDE_FLOATS, dark, k);
+				FloatVector signal = FloatVector.fromArray(WIDE_FLOATS, sample, k).sub(d);
+				FloatVector ratio = signal.div(FloatVector.fromArray(WIDE_FLOATS, blank, k).sub(d).mul(fScale));
+				ratio.lanewise(VectorOperators.LOG10).neg().intoArray(absorbance, k, marked);
+				FloatVector relative = FloatVector.fromArray(WIDE_FLOATS, deviation, k).div(signal);
+				relative.mul(relative).div(fReplicates).add(FloatVector.fromArray(WIDE_FLOATS, blankVariance, k))
+						.sqrt().mul(inverseLn10).intoArray(error, k, marked);
+			}
+		}
+		for (int w = fullWords; w<words.length; w++) {
+			long bits = words[w];
+			while (bits!=0) {
+				int k = (w << 6) + Long.numberOfTrailingZeros(bits);
+				double signal = sample[k]-dark[k];
+				absorbance[k] = (float) -Math.log10(signal/((blank[k]-dark[k])*scale));
+				error[k] = (float) (Math.sqrt((double) deviation[k]*deviation[k]/(replicates*signal*signal) + blankVariance[k])/LN10);
+				bits &= bits-1;
+			}
+		}
+	}
+
+	@Override
+	public void absorbance(float[] sample, float[] blank, float[] absorbance) {
+		/*
+		 *  The ratio is taken in floats as in PixelKernels, but the logarithm is also taken in
+		 *  floats, so results can differ from the scalar loop in the last bit.
+		 */
+		int step = WIDE_FLOATS.length();
+		int upper = WIDE_FLOATS.loopBound(absorbance.length);
+		int k = 0;
+		for (; k<upper; k += step) {
+			FloatVector ratio = FloatVector.fromArray(WIDE_FLOATS, sample, k).div(FloatVector.fromArray(WIDE_FLOATS, blank, k));
+			ratio.lanewise(VectorOperators.LOG10).neg().intoArray(absorbance, k);
+		}
+		for (; k<absorbance.length; k++) {
+			absorbance[k] = (float) -Math.log10(sample[k]/blank[k]);
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package nist.squire;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+//This class calculates the mean, background corrected, absorbance, absorbance error and fused
+//	images of each absorbance well while the plate is still being imaged, using the dark
+//	background, light blank and foreground collected during calibration. The capture thread hands
+//	each raw stack over and moves on to the next well while a pool of worker threads, one per core,
+//	does the processing. If the workers fall behind, the capture thread processes the well itself,
+//	so the number of raw stacks waiting in memory stays bounded. Each processed well is added to
+//	the well summary index of the run.
+public class AbsorbanceProcessor {
+
+	public static final String DIR_NAME = "Absorbance Images";
+	public static final String[] RESULTS = {"Mean", "Corrected", "Absorbance", "Error", "Fused", "Uncertainty"};
+
+	private ThreadPoolExecutor workers;
+	private RunConfig config;
+	private RunState state;
+	private PlateStore store;
+	private WellSummaryIndex index;
+	private HashMap<Integer, int[]> pixelRange = new HashMap<Integer, int[]>();
+	private HashMap<Integer, float[]> blankVariance = new HashMap<Integer, float[]>();
+	private AtomicInteger numProcessed = new AtomicInteger();
+	private AtomicInteger numFailed = new AtomicInteger();
+	private AtomicLong processTime = new AtomicLong();
+	private long startTime = System.currentTimeMillis();
+
+	public AbsorbanceProcessor(RunConfig config, RunState state) throws IOException {
+		this.config = config;
+		this.state = state;
+		index = new WellSummaryIndex(config.getOutDir());
+		int threads = Runtime.getRuntime().availableProcessors();
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Absorbance processor");
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	// Results are written to the plate store instead of TIFF files once a store is set.
+	public synchronized void setStore(PlateStore store) {this.store = store;}
+
+	public void submit(final int channel, final int lightIndex, final String well, final ImagePlus raw) {
+		final long captured = System.currentTimeMillis();
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				long wellStart = System.currentTimeMillis();
+				try {
+					process(channel, lightIndex, well, raw, captured);
+					numProcessed.incrementAndGet();
+				} catch (Exception e) {
+					numFailed.incrementAndGet();
+					IJ.log("Unable to process absorbance of " + well + ": " + e.getMessage());
+					e.printStackTrace();
+				}
+				processTime.addAndGet(System.currentTimeMillis()-wellStart);
+			}
+		});
+	}
+
+	public void finish() {
+		/*
+		 *  Waits for every well that was handed over to be processed. Can be called more than once.
+		 */
+		if (workers.isShutdown() && workers.isTerminated()) {
+			return;
+		}
+		workers.shutdown();
+		try {
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		index.close();
+		int processed = numProcessed.get();
+		if (processed>0) {
+			IJ.log("Absorbance processed for " + processed + " wells, " + IJ.d2s(processTime.get()/1000.0/processed, 2)
+					+ "s per well, finished " + IJ.d2s((System.currentTimeMillis()-startTime)/1000.0, 1) + "s after the first well.");
+		}
+		if (numFailed.get()>0) {
+			IJ.log("Absorbance could not be processed for " + numFailed.get() + " wells.");
+		}
+	}
+
+	private void process(int channel, int lightIndex, String well, ImagePlus raw, long captured) throws Exception {
+		ImageStats sample = new ImageStats(raw);
+		int[] range = getPixelRange(lightIndex, sample.nSlices);
+		ImagePlus[] results = processWell(sample, state.getDarkBlank(), state.getLightBlank(lightIndex), state.getForeground(lightIndex),
+				getBlankVariance(lightIndex), range[0], range[1]);
+
+		PlateStore target;
+		synchronized (this) {
+			target = store;
+		}
+		if (target!=null) {
+			for (int k = 0; k<RESULTS.length; k++) {
+				target.addResult(channel, well, RESULTS[k].toLowerCase(), results[k]);
+			}
+		} else {
+			saveWell(results, config.getChannelImageDir(channel) + DIR_NAME + File.separator, well, config.getCompressImages());
+		}
+		index.add(well, config.getChannelName(channel), state.getChannelExposure(channel), sample, captured);
+	}
+	
+	public static ImagePlus[] processWell(ImageStats sample, ImageStats dark, ImageStats light, ImagePlus foreground,
+			float[] blankVariance, int minPix, int maxPix) {
+		/*
+		 *  Returns the mean, background corrected and absorbance images of a well, the standard
+		 *  error of the absorbance, and the fused intensity of all its exposures with its
+		 *  uncertainty, in the order of RESULTS. Hot pixels come from the dark frames and dead
+		 *  pixels from the light blank.
+		 */
+		ImagePlus mean = sample.getFrameMean();
+		ImagePlus corrected = subtract(mean, (float[]) dark.getFrameMean().getProcessor().getPixels());
+		PixelMask defects = dark.getDefectMask(light);
+		ImagePlus absorbance = sample.getAbsorbance(foreground, dark, blankVariance, defects, minPix, maxPix);
+		ImagePlus[] fused = HdrFusion.fuse(sample, dark, light.getCalibration(), defects, minPix, maxPix).getImages(mean.getTitle(), mean.getWidth(), mean.getHeight());
+		return new ImagePlus[] {mean, corrected, absorbance, sample.absorbanceError, fused[0], fused[1]};
+	}
+	
+	public static float[] blankVariance(ImagePlus foreground, int images, ImageStats dark, CalibrationModel noise) {
+		/*
+		 *  Variance of each pixel of the foreground relative to its dark corrected intensity
+		 *  squared, which is what the foreground adds to the variance of an absorbance before
+		 *  dividing by ln(10)^2. The foreground is the mean of the given number of images at the
+		 *  best exposure, and the deviation of one image comes from the noise model, or shot noise if
+		 *  the model has none. The dark frames are averaged over many more images and their
+		 *  variance is left out.
+		 */
+		float[] fpixels = (float[]) foreground.getProcessor().getPixels();
+		float[] bpixels = (float[]) dark.getFrameMean().getProcessor().getPixels();
+		int samples = Math.max(1, images);
+		float[] variance = new float[fpixels.length];
+		for (int k = 0; k<fpixels.length; k++) {
+			double intensity = fpixels[k];
+			double sigma = noise.stdEst(intensity);
+			double signal = intensity-bpixels[k];
+			double deviation = (sigma>0) ? sigma*sigma : Math.max(intensity, 1);
+			variance[k] = (float) (deviation/(samples*signal*signal));
+		}
+		return variance;
+	}
+	
+	public static void saveWell(ImagePlus[] results, String dir, String well, boolean compress) throws IOException {
+		new File(dir).mkdirs();
+		for (int k = 0; k<RESULTS.length; k++) {
+			SaveThread.saveTiff(results[k], dir + well + "-" + RESULTS[k], compress);
+		}
+	}
+
+	private synchronized int[] getPixelRange(int lightIndex, int replicates) {
+		/*
+		 *  The usable intensity range only depends on the calibration of a channel, so it is
+		 *  found once per channel rather than for every well.
+		 */
+		int[] range = pixelRange.get(lightIndex);
+		if (range==null) {
+			range = new int[] {state.getLightBlank(lightIndex).minConfPix(replicates),
+					(int) state.getForeground(lightIndex).getStatistics().max};
+			pixelRange.put(lightIndex, range);
+		}
+		return range;
+	}
+
+	private synchronized float[] getBlankVariance(int lightIndex) {
+		// Like the pixel range, the blank variance is found once per channel.
+		float[] variance = blankVariance.get(lightIndex);
+		if (variance==null) {
+			variance = blankVariance(state.getForeground(lightIndex), state.getForegroundImages(lightIndex), state.getDarkBlank(), state.getLightBlank(lightIndex).getCalibration());
+			blankVariance.put(lightIndex, variance);
+		}
+		return variance;
+	}
+
+	private static ImagePlus subtract(ImagePlus mean, float[] background) {
+		// Subtracts the background from every slice of the mean image.
+		ImageStack meanStack = mean.getStack();
+		ImageStack stack = new ImageStack(mean.getWidth(), mean.getHeight());
+		for (int s = 1; s<=meanStack.getSize(); s++) {
+			float[] pixels = (float[]) meanStack.getPixels(s);
+			float[] result = new float[pixels.length];
+			for (int i = 0; i<pixels.length; i++) {
+				result[i] = pixels[i]-background[i];
+			}
+			stack.addSlice(meanStack.getSliceLabel(s), result);
+		}
+		return new ImagePlus(mean.getTitle(), stack);
+	}
+}
@@ -2,11 +2,13 @@ package nist.squire;
 
 import java.io.File;
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
+import java.util.zip.CRC32;
 
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.api.PositionList;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.utils.MMScriptException;
 
@@ -50,14 +52,15 @@ public class AppParams {
 	private static int numSamples = 5;
 	private static final AppParams INSTANCE = new AppParams();
 	private Thread thread;
+	private Thread benchmarkThread;
 	private volatile boolean stopThread = false;
+	private volatile boolean stopBenchmark = false;
+	private static final ScopeArbiter scopeArbiter = new ScopeArbiter();
 	private static boolean forceMax = false;
 	private static String plateID = "Plate ID";
-	private static ImageStats darkBlank = null;
-	private static ArrayList<ImageStats> lightBlank = new ArrayList<ImageStats>();
-	private static ArrayList<ImagePlus> foreground = new ArrayList<ImagePlus>();
+	private static volatile RunConfig runConfig;
+	private static volatile RunState runState = new RunState();
 	private static boolean isAutomated = false;
-	private static String currentSampleName = "Undefined";
 	private static StrVector fluorescentDevice;
 	private static StrVector fluorescentDeviceSetting;
 	private static StrVector transmittedDevice;
@@ -70,6 +73,15 @@ public class AppParams {
 	private static String transmittedShutter;
 	private static BooleanVector useAutofocus;
 	private static boolean isAbsorbance = true;
+	private static boolean optimizeChannelOrder = true;
+	private static boolean channelMajor = false;
+	private static boolean predictFocus = true;
+	private static boolean resumeRun = false;
+	private static boolean compressImages = false;
+	private static boolean usePlateStore = false;
+	private static boolean processAbsorbance = true;
+	private static boolean monitorDrift = false;
+	private static boolean waitForStable = false;
 	private static String twilio_sid = "";
 	private static String twilio_token = "";
 	private static String twilio_phone = "";
@@ -79,7 +91,23 @@ public class AppParams {
 	private static double fluctuation = 0.0001;
 	private static double equilibrium = 0.00005;
 	private static boolean showBenchmarkGraph = false;
-	private static boolean isStable = false;
+	private static volatile boolean isStable = false;
+	private static long driftProbeInterval = 60000; //ms
+	
+	// Hardware settling settings
+	private static long illuminationSettleTime = 5000; //ms
+	
+	// Stage motion settings used to plan the stage path
+	private static double stageSpeed = 10000; //um/s
+	private static double stageAcceleration = 100000; //um/s^2
+	
+	// Focus prediction settings
+	private static double focusTolerance = 1.0; //um
+	private static int focusVerifyInterval = 8;
+	
+	// Pixels sampled for the global intensity and deviation curves
+	private static int calibrationRoi = 100; //% of frame width and height
+	private static int calibrationStride = 1; //pixels
 	
 	// Methods to get device hardware.
 	public static boolean hasAutoShutter() {return hasAutoShutter;}
@@ -101,8 +129,11 @@ public class AppParams {
 	public static String getTransmittedShutter() {return transmittedShutter;}
 	
 	// Methods to set device hardware.
-	public static void setCurrentSampleName(String sampleName) {currentSampleName = sampleName;}
-	public static void setChannelExposure(int index, double exp) {AppParams.channelExposure.set(index, exp);}
+	public static void setCurrentSampleName(String sampleName) {runState.setCurrentSampleName(sampleName);}
+	public static void setChannelExposure(int index, double exp) {
+		AppParams.channelExposure.set(index, exp);
+		runState.setChannelExposure(index, exp);
+	}
 	public static void setFluorescentDevice(StrVector fluorescentDevice) {AppParams.fluorescentDevice = fluorescentDevice;}
 	public static void setFluorescentDeviceSetting(StrVector fluorescentDeviceSetting) {AppParams.fluorescentDeviceSetting = fluorescentDeviceSetting;}
 	public static void setTransmittedDevice(StrVector transmittedDevice) {AppParams.transmittedDevice = transmittedDevice;}
@@ -114,9 +145,9 @@ public class AppParams {
 	public static void setNumSamples(int numSamples) {AppParams.numSamples = numSamples;}
 	public static void setForceMax(boolean forceMax) {AppParams.forceMax = forceMax;}
 	public static void setPlateID(String plateID) {AppParams.plateID = plateID;}
-	public static void setDarkBlank(ImageStats darkBlank) {AppParams.darkBlank = darkBlank;}
-	public static void addLightBlank(ImageStats lightBlank) {AppParams.lightBlank.add(lightBlank);}
-	public static void addForeground(ImagePlus foreground) {AppParams.foreground.add(foreground);}
+	public static void setDarkBlank(ImageStats darkBlank) {runState.setDarkBlank(darkBlank);}
+	public static void addLightBlank(ImageStats lightBlank) {runState.addLightBlank(lightBlank);}
+	public static void addForeground(ImagePlus foreground, int images) {runState.addForeground(foreground, images);}
 	
 	// Methods to get quantitative absorption thread settings. These are also used for benchmarking.
 	public static String getAPP_TITLE() {return "Quantitative Absorption GUI";}
@@ -126,12 +157,26 @@ public class AppParams {
 	public static boolean getForceMax() {return forceMax;}
 	public static CMMCore getCore_() {return core_;}
 	public static String getPlateID() {return plateID;}
-	public static ImageStats getDarkBlank() {return darkBlank;}
-	public static ImageStats getLightBlank(int index) {return AppParams.lightBlank.get(index);}
-	public static ImagePlus getForeground(int index) {return AppParams.foreground.get(index);}
+	public static ImageStats getDarkBlank() {return runState.getDarkBlank();}
+	public static ImageStats getLightBlank(int index) {return runState.getLightBlank(index);}
+	public static ImagePlus getForeground(int index) {return runState.getForeground(index);}
 	public static boolean getIsAutomated() {return isAutomated;}
 	public static boolean getIsAbsorbance() {return isAbsorbance;};
-	public static String getCurrentSampleName() {return currentSampleName;}
+	public static boolean getOptimizeChannelOrder() {return optimizeChannelOrder;}
+	public static boolean getChannelMajor() {return channelMajor;}
+	public static boolean getPredictFocus() {return predictFocus;}
+	public static boolean getResumeRun() {return resumeRun;}
+	public static boolean getCompressImages() {return compressImages;}
+	public static boolean getUsePlateStore() {return usePlateStore;}
+	public static boolean getProcessAbsorbance() {return processAbsorbance;}
+	public static boolean getMonitorDrift() {return monitorDrift;}
+	public static boolean getWaitForStable() {return waitForStable;}
+	// Controls which thread is using the camera, shutters and stage.
+	public static ScopeArbiter getScopeArbiter() {return scopeArbiter;}
+	public static String getCurrentSampleName() {return runState.getCurrentSampleName();}
+	// Settings and state of the run that was started last. Threads of a run are given their own.
+	public static RunConfig getRunConfig() {return runConfig;}
+	public static RunState getRunState() {return runState;}
 	
 	// Methods to set benchmarking thread settings
 	public static void setFluctuation(double fluctuation) {AppParams.fluctuation = fluctuation;}
@@ -144,6 +189,30 @@ public class AppParams {
 	public static double getEquilibrium() {return equilibrium;}
 	public static boolean getBenchmarkVisible() {return showBenchmarkGraph;}
 	public static boolean getStable() {return isStable;}
+	public static long getDriftProbeInterval() {return driftProbeInterval;}
+	public static void setDriftProbeInterval(long driftProbeInterval) {AppParams.driftProbeInterval = driftProbeInterval;}
+	
+	// Methods to get and set hardware settling settings
+	public static long getIlluminationSettleTime() {return illuminationSettleTime;}
+	public static void setIlluminationSettleTime(long illuminationSettleTime) {AppParams.illuminationSettleTime = illuminationSettleTime;}
+	
+	// Methods to get and set stage motion settings
+	public static double getStageSpeed() {return stageSpeed;}
+	public static void setStageSpeed(double stageSpeed) {AppParams.stageSpeed = stageSpeed;}
+	public static double getStageAcceleration() {return stageAcceleration;}
+	public static void setStageAcceleration(double stageAcceleration) {AppParams.stageAcceleration = stageAcceleration;}
+	
+	// Methods to get and set focus prediction settings
+	public static double getFocusTolerance() {return focusTolerance;}
+	public static void setFocusTolerance(double focusTolerance) {AppParams.focusTolerance = focusTolerance;}
+	public static int getFocusVerifyInterval() {return focusVerifyInterval;}
+	public static void setFocusVerifyInterval(int focusVerifyInterval) {AppParams.focusVerifyInterval = focusVerifyInterval;}
+	
+	// Methods to get and set calibration sampling settings
+	public static int getCalibrationRoi() {return calibrationRoi;}
+	public static void setCalibrationRoi(int calibrationRoi) {AppParams.calibrationRoi = calibrationRoi;}
+	public static int getCalibrationStride() {return calibrationStride;}
+	public static void setCalibrationStride(int calibrationStride) {AppParams.calibrationStride = calibrationStride;}
 	
 	// Methods to get save settings
 	public static boolean saveBenchmarkExcel() {return saveBenchmarkingExcel;}
@@ -153,13 +222,14 @@ public class AppParams {
 	public static String getRawImageDir(int index) {return rawImageDir.get(index);}
 	public static String getCalibrationImageDir(int index) {return calibrationImageDir.get(index);}
 	public static String getChannelImageDir(int index) {return channelImageDir.get(index);}
+	public static boolean hasImageDirs() {return channelImageDir!=null && channelImageDir.size()==channels;}
 	
 	// Methods to set save settings
 	public static void saveBenchmarkExcel (boolean saveBenchmarkingExcel) {AppParams.saveBenchmarkingExcel = saveBenchmarkingExcel;}
 	public static void saveBenchmarkTxt (boolean saveBenchmarkingTxt) {AppParams.saveBenchmarkingTxt = saveBenchmarkingTxt;}
 	
-	// Methods to control the imaging thread.
-	public boolean getStop() {return stopThread;}
+	// Methods to control the imaging thread. The benchmark can run alongside a plate and is stopped separately.
+	public boolean getStop() {return (Thread.currentThread()==benchmarkThread) ? stopBenchmark : stopThread;}
 
 	public static AppParams getInstance() { return INSTANCE;}
 	
@@ -168,8 +238,13 @@ public class AppParams {
 
 		pullParamsFromGui(callSource);
 		
-		AppParams.lightBlank = new ArrayList<ImageStats>();
-		AppParams.foreground = new ArrayList<ImagePlus>();
+		// Each run works from its own copy of the settings, so the GUI can change while it runs.
+		RunConfig config = RunConfig.fromAppParams();
+		RunState state = new RunState(config);
+		if (callSource instanceof ControlPanel) {
+			runConfig = config;
+			runState = state;
+		}
 		
 		recordPreferences();
 		
@@ -179,27 +254,33 @@ public class AppParams {
 			}
 		}
 		
-		stopThread = false;
 		if (callSource instanceof BenchmarkingPanel) {
-			thread = new Thread(new BenchmarkingThread());
+			stopBenchmark = false;
+			benchmarkThread = new Thread(new BenchmarkingThread(state));
+			benchmarkThread.start();
 		} else if (callSource instanceof ControlPanel) {
+			stopThread = false;
 			if (AppParams.isAutomated) {
-				thread = new Thread(new AutomatedCaptureThread());
+				thread = new Thread(new AutomatedCaptureThread(config, state));
 			} else {
 				thread = new Thread(new ManualCaptureThread());
 			}
-			
+			thread.start();
 		}
-		
-		thread.start();
 	}
 	
-	public void cancel() throws Exception {
-		// TODO Auto-generated method stub
-		if (thread != null) {
-			thread.interrupt();
+	public void cancel(Object callSource) throws Exception {
+		if (callSource instanceof BenchmarkingPanel) {
+			if (benchmarkThread != null) {
+				benchmarkThread.interrupt();
+			}
+			stopBenchmark = true;
+		} else {
+			if (thread != null) {
+				thread.interrupt();
+			}
+			stopThread = true;
 		}
-		stopThread = true;
 	}
 
 	private void pullParamsFromGui(Object callSource) throws MMScriptException {
@@ -210,6 +291,15 @@ public class AppParams {
 		saveBenchmarkingTxt = QuantitativeAbsorptionGUI.getBenchmarkingPanel().isSaveBenchmarkingTxt();
 		isAutomated = QuantitativeAbsorptionGUI.getControlPanel().isAutomated();
 		isAbsorbance = QuantitativeAbsorptionGUI.getControlPanel().isAbsorbance();
+		optimizeChannelOrder = QuantitativeAbsorptionGUI.getControlPanel().isOptimizeChannelOrder();
+		channelMajor = QuantitativeAbsorptionGUI.getControlPanel().isChannelMajor();
+		predictFocus = QuantitativeAbsorptionGUI.getControlPanel().isPredictFocus();
+		resumeRun = QuantitativeAbsorptionGUI.getControlPanel().isResumeRun();
+		compressImages = QuantitativeAbsorptionGUI.getControlPanel().isCompressImages();
+		usePlateStore = QuantitativeAbsorptionGUI.getControlPanel().isUsePlateStore();
+		processAbsorbance = QuantitativeAbsorptionGUI.getControlPanel().isProcessAbsorbance();
+		monitorDrift = QuantitativeAbsorptionGUI.getControlPanel().isMonitorDrift();
+		waitForStable = QuantitativeAbsorptionGUI.getControlPanel().isWaitForStable();
 		numReplicates = QuantitativeAbsorptionGUI.getControlPanel().getNumReplicates();
 		numSamples = QuantitativeAbsorptionGUI.getControlPanel().getNumSample();
 		fluorescentShutter = QuantitativeAbsorptionGUI.getControlPanel().getFluorescentShutter();
@@ -265,6 +355,15 @@ public class AppParams {
 			} else {
 				outDir = coreSaveDir + plateID + File.separator + "Date " + getISOTimeString() + File.separator;
 			}
+			if (isAutomated && resumeRun) {
+				String previousDir = findResumableRun(new File(outDir).getParentFile());
+				if (previousDir==null) {
+					IJ.log("No unfinished run with the same settings was found, starting a new run.");
+				} else {
+					outDir = previousDir;
+					IJ.log("Resuming run in " + outDir);
+				}
+			}
 		} else if (callSource instanceof BenchmarkingPanel) {
 			if (coreSaveDir.toLowerCase().endsWith(plateID.toLowerCase() + File.separator)) {
 				coreSaveDir = coreSaveDir.toLowerCase().replace(plateID.toLowerCase() + File.separator, "");
@@ -276,25 +375,85 @@ public class AppParams {
 			File file = new File(outDir);
 			if (!file.exists()) {
 				file.mkdirs();
-				if (callSource instanceof ControlPanel) {
-					channelImageDir = new StrVector();
-					rawImageDir = new StrVector();
-					calibrationImageDir = new StrVector();
-					for (int i = 0; i<channels; i++) {
-						channelImageDir.add(outDir + File.separator + channelName.get(i) + File.separator);
-						rawImageDir.add(channelImageDir.get(i) + "Raw Images" + File.separator);
-						calibrationImageDir.add(channelImageDir.get(i) + "Calibration Images" + File.separator);
-						new File(channelImageDir.get(i)).mkdir();
-						if (absorptionSetting.get(i).equals("Absorbance")) {
-							new File(calibrationImageDir.get(i)).mkdir();
-							new File(rawImageDir.get(i)).mkdir();
-						}
+			}
+			// Folders may already exist when a run is resumed.
+			if (callSource instanceof ControlPanel) {
+				channelImageDir = new StrVector();
+				rawImageDir = new StrVector();
+				calibrationImageDir = new StrVector();
+				for (int i = 0; i<channels; i++) {
+					channelImageDir.add(outDir + File.separator + channelName.get(i) + File.separator);
+					rawImageDir.add(channelImageDir.get(i) + "Raw Images" + File.separator);
+					calibrationImageDir.add(channelImageDir.get(i) + "Calibration Images" + File.separator);
+					new File(channelImageDir.get(i)).mkdir();
+					if (absorptionSetting.get(i).equals("Absorbance")) {
+						new File(calibrationImageDir.get(i)).mkdir();
+						new File(rawImageDir.get(i)).mkdir();
 					}
 				}
 			}
 		}
 	}
 	
+	public static String getRunSettings() {
+		/*
+		 *  Describes the settings that must be the same for a stopped run to be resumed: the
+		 *  channels with the devices and shutters that set them, and for automated runs the
+		 *  positions to image, as a count and a checksum of their labels and stage coordinates.
+		 */
+		StringBuilder settings = new StringBuilder();
+		settings.append(plateID).append(";absorbance=").append(isAbsorbance).append(";replicates=").append(numReplicates);
+		settings.append(";store=").append(usePlateStore);
+		settings.append(";shutters=").append(transmittedShutter).append(",").append(fluorescentShutter);
+		for (int i = 0; i<channels; i++) {
+			settings.append(";").append(channelName.get(i)).append(",").append(absorptionSetting.get(i));
+			settings.append(",").append(transmittedDevice.get(i)).append("=").append(transmittedDeviceSetting.get(i));
+			settings.append(",").append(fluorescentDevice.get(i)).append("=").append(fluorescentDeviceSetting.get(i));
+			settings.append(",").append(channelOffset.get(i)).append(",").append(useAutofocus.get(i));
+		}
+		if (isAutomated) {
+			settings.append(";positions=").append(getPositionKey());
+		}
+		return settings.toString();
+	}
+	
+	private static String getPositionKey() {
+		// Number of positions and a checksum of their labels and coordinates, to the nearest micron.
+		PositionList positions;
+		try {
+			positions = app_.getPositionList();
+		} catch (MMScriptException e) {
+			return "unknown";
+		}
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i<positions.getNumberOfPositions(); i++) {
+			MultiStagePosition position = positions.getPosition(i);
+			text.append(position.getLabel()).append(",").append(Math.round(position.getX())).append(",").append(Math.round(position.getY())).append(";");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(text.toString().getBytes());
+		return positions.getNumberOfPositions() + ":" + Long.toHexString(crc.getValue());
+	}
+	
+	private static String findResumableRun(File plateDir) {
+		// Returns the most recently used run folder for the plate that was not finished.
+		File[] runDirs = plateDir.listFiles();
+		if (runDirs==null) {
+			return null;
+		}
+		String settings = getRunSettings();
+		File latest = null;
+		for (File runDir : runDirs) {
+			if (runDir.isDirectory() && ProgressJournal.canResume(runDir, settings)) {
+				File journal = new File(runDir, ProgressJournal.FILE_NAME);
+				if (latest==null || journal.lastModified()>new File(latest, ProgressJournal.FILE_NAME).lastModified()) {
+					latest = runDir;
+				}
+			}
+		}
+		return (latest==null) ? null : latest.getPath() + File.separator;
+	}
+	
 	public static void initializeMicroscopeHardware() {
 		if (core_.getShutterDevice().equals("")) {
 			hasAutoShutter = false;
@@ -352,9 +511,25 @@ public class AppParams {
 		pref.putInt("numReplicates", numReplicates);
 		pref.put("coreSaveDir", coreSaveDir);
 		pref.putBoolean("isAutomated", isAutomated);
+		pref.putBoolean("optimizeChannelOrder", optimizeChannelOrder);
+		pref.putBoolean("channelMajor", channelMajor);
+		pref.putBoolean("predictFocus", predictFocus);
+		pref.putBoolean("compressImages", compressImages);
+		pref.putBoolean("usePlateStore", usePlateStore);
+		pref.putBoolean("processAbsorbance", processAbsorbance);
+		pref.putBoolean("monitorDrift", monitorDrift);
+		pref.putBoolean("waitForStable", waitForStable);
 		pref.put("twilio_sid", twilio_sid);
 		pref.put("twilio_token", twilio_token);
 		pref.put("twilio_phone", twilio_phone);
+		pref.putLong("illuminationSettleTime", illuminationSettleTime);
+		pref.putDouble("stageSpeed", stageSpeed);
+		pref.putDouble("stageAcceleration", stageAcceleration);
+		pref.putDouble("focusTolerance", focusTolerance);
+		pref.putInt("focusVerifyInterval", focusVerifyInterval);
+		pref.putLong("driftProbeInterval", driftProbeInterval);
+		pref.putInt("calibrationRoi", calibrationRoi);
+		pref.putInt("calibrationStride", calibrationStride);
 
 		try
 		{
@@ -383,9 +558,25 @@ public class AppParams {
 		channels = pref.getInt("channels", channels);
 		numReplicates = pref.getInt("numReplicates", numReplicates);
 		isAutomated = pref.getBoolean("isAutomated", isAutomated);
+		optimizeChannelOrder = pref.getBoolean("optimizeChannelOrder", optimizeChannelOrder);
+		channelMajor = pref.getBoolean("channelMajor", channelMajor);
+		predictFocus = pref.getBoolean("predictFocus", predictFocus);
+		compressImages = pref.getBoolean("compressImages", compressImages);
+		usePlateStore = pref.getBoolean("usePlateStore", usePlateStore);
+		processAbsorbance = pref.getBoolean("processAbsorbance", processAbsorbance);
+		monitorDrift = pref.getBoolean("monitorDrift", monitorDrift);
+		waitForStable = pref.getBoolean("waitForStable", waitForStable);
 		twilio_sid = pref.get("twilio_sid", twilio_sid);
 		twilio_token = pref.get("twilio_token", twilio_token);
 		twilio_phone = pref.get("twilio_phone", twilio_phone);
+		illuminationSettleTime = pref.getLong("illuminationSettleTime", illuminationSettleTime);
+		stageSpeed = pref.getDouble("stageSpeed", stageSpeed);
+		stageAcceleration = pref.getDouble("stageAcceleration", stageAcceleration);
+		focusTolerance = pref.getDouble("focusTolerance", focusTolerance);
+		focusVerifyInterval = pref.getInt("focusVerifyInterval", focusVerifyInterval);
+		driftProbeInterval = pref.getLong("driftProbeInterval", driftProbeInterval);
+		calibrationRoi = pref.getInt("calibrationRoi", calibrationRoi);
+		calibrationStride = pref.getInt("calibrationStride", calibrationStride);
 	}
 		
 	public static String getISOTimeString() {
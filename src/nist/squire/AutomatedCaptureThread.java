@@ -1,5 +1,8 @@
 package nist.squire;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import javax.swing.JOptionPane;
 
 import org.micromanager.api.MultiStagePosition;
@@ -12,70 +15,123 @@ import com.esotericsoftware.minlog.Log;
 
 import ij.IJ;
 import ij.ImagePlus;
-import mmcorej.BooleanVector;
 import mmcorej.CMMCore;
-import mmcorej.DoubleVector;
-import mmcorej.StrVector;
 
 public class AutomatedCaptureThread implements Runnable {
+	// Smallest focus change in microns that will be sent to the focus device
+	private static final double Z_TOLERANCE = 0.01;
+	// Name the run holds the microscope under, and how long it waits for stable light before imaging anyway
+	private static final String OWNER = "Plate acquisition";
+	private static final long MAX_STABLE_WAIT = 600000; //ms
+	private static final long STABLE_POLL = 1000; //ms
+	
 	private ImagePlus currentSample;
 	private String sampleLabel;
 	private ScriptInterface app_ = AppParams.getApp_();
 	private CMMCore core_ = app_.getMMCore();
 	private PositionList platePl;
+	private SimpleCapture cap;
+	private DeviceSettler settler;
+	private ChannelScheduler scheduler;
+	private AutofocusManager afm_;
+	private boolean hasFocusDevice;
+	private FocusMap[] focusMap;
+	private ProgressJournal journal;
+	private PlateStore store;
+	private AbsorbanceProcessor processor;
+	private ScopeArbiter arbiter = AppParams.getScopeArbiter();
+	private DriftMonitor monitor;
+	private double afExposure = -1;
+	private double stageX;
+	private double stageY;
+	// Offset from its segment's focus position that the last focused channel moved Z to
+	private double appliedZOffset = 0;
+	private int lastChannel = -1;
+	private int[] absorbIndex;
 	
-	private StrVector fluorescentDevice;
-	private StrVector fluorescentDeviceSetting;
-	private StrVector transmittedDevice;
-	private StrVector transmittedDeviceSetting;
-	private StrVector absorptionSetting;
-	private StrVector channelName;
-	private DoubleVector channelExposure;
-	private DoubleVector channelOffset;
-	private BooleanVector useAutofocus;
+	// Settings the run was started with, and the calibration it collects
+	private final RunConfig config;
+	private final RunState state;
 	private int numChannels;
 	private int numReplicates;
 	
+	public AutomatedCaptureThread(RunConfig config, RunState state) {
+		this.config = config;
+		this.state = state;
+	}
+	
     @Override
 	public void run() {
 		AppParams params = AppParams.getInstance();
-		SimpleCapture cap = new SimpleCapture(false);
+		cap = new SimpleCapture(false);
+		cap.setCalibrationSampling(config.getCalibrationRoi(), config.getCalibrationStride());
+		settler = new DeviceSettler(core_);
+		
+		numChannels = config.getNumChannels();
+		numReplicates = config.getNumReplicates();
+		scheduler = new ChannelScheduler(settler, config);
+		hasFocusDevice = !core_.getFocusDevice().equals("");
+		
+		// Each focus segment gets its own surface, since autofocus channels may focus differently.
+		focusMap = new FocusMap[scheduler.getNumSegments()];
+		if (config.getPredictFocus() && hasFocusDevice) {
+			for (int s = 0; s<focusMap.length; s++) {
+				focusMap[s] = new FocusMap(config.getFocusTolerance(), config.getFocusVerifyInterval());
+			}
+		}
 		
-		channelName = AppParams.getChannelName();
-		absorptionSetting = AppParams.getAbsorptionSetting();
-		fluorescentDevice = AppParams.getFluorescentDevice();
-		fluorescentDeviceSetting = AppParams.getFluorescentDeviceSetting();
-		transmittedDevice = AppParams.getTransmittedDevice();
-		transmittedDeviceSetting = AppParams.getTransmittedDeviceSetting();
-		channelExposure = AppParams.getChannelExposures();
-		channelOffset = AppParams.getChannelOffset();
-		numChannels = AppParams.getChannels();
-		useAutofocus = AppParams.getAutofocus();
-		numReplicates = AppParams.getNumReplicates();
+		// Light blanks are only collected for absorbance channels, in channel order.
+		absorbIndex = new int[numChannels];
+		int numAbsorb = 0;
+		for (int j = 0; j<numChannels; j++) {
+			absorbIndex[j] = numAbsorb;
+			if (config.isAbsorbanceChannel(j)) {
+				numAbsorb++;
+			}
+		}
 		
 		int start = 0;
 		
 		try {
-			AutofocusManager afm_ = app_.getAutofocusManager();
+			// The microscope is only offered to other threads between wells.
+			arbiter.acquire(OWNER);
+			
+			afm_ = app_.getAutofocusManager();
 			afm_.refresh();
 			
 			platePl = app_.getPositionList();
 						
-			if (AppParams.hasAutoShutter()) {
-				core_.setShutterDevice(AppParams.getTransmittedShutter());
+			if (config.hasAutoShutter()) {
+				core_.setShutterDevice(config.getTransmittedShutter());
+			}
+			
+			if (config.getProcessAbsorbance()) {
+				processor = new AbsorbanceProcessor(config, state);
+			}
+			
+			// Pick up where a stopped run left off, if it was calibrated.
+			journal = new ProgressJournal(config.getOutDir(), config.getRunSettings());
+			if (journal.isCalibrated()) {
+				reloadCalibration();
+				start = 2;
+				IJ.log("Resuming run, " + journal.getNumDone() + " images were already saved.");
+				// The calibration position is not recorded, so drift can only be probed at a blank well.
+				if (platePl.getPosition(0).getLabel().endsWith("BLANKWELL")) {
+					startDriftMonitor(platePl.getPosition(0).getX(), platePl.getPosition(0).getY());
+				} else if (config.getMonitorDrift()) {
+					IJ.log("Drift is not monitored when resuming a run without a blank well.");
+				}
 			}
 			
 			// Collect stats for each pixel in each channel at multiple exposures.
-			for (int i=start; i<AppParams.getNumSamples()+2; i++) {
+			for (int i=start; i<config.getNumSamples()+2; i++) {
 				if (i==0) {
-					if (AppParams.hasAutoShutter()) {
-						core_.setShutterDevice(AppParams.getTransmittedShutter());
-						core_.setShutterOpen(false);
-						core_.waitForDevice(AppParams.getTransmittedShutter());
+					if (config.hasAutoShutter()) {
+						settler.setShutter(config.getTransmittedShutter(), false);
 					}
 					if (!platePl.getPosition(0).getLabel().endsWith("BLANKWELL")) {
 						core_.setShutterOpen(true);
-						core_.waitForDevice(AppParams.getTransmittedShutter());
+						settler.awaitDevice(config.getTransmittedShutter());
 						app_.enableLiveMode(true);
 						JOptionPane.showMessageDialog(null,
 							"Please move your sample to a clean, empty space.",
@@ -83,171 +139,120 @@ public class AutomatedCaptureThread implements Runnable {
 							JOptionPane.PLAIN_MESSAGE);
 						app_.enableLiveMode(false);
 						core_.setShutterOpen(false);
-						core_.waitForDevice(AppParams.getTransmittedShutter());
+						settler.awaitDevice(config.getTransmittedShutter());
 					} else {
 						MultiStagePosition.goToPosition(platePl.getPosition(i), core_);
 					}
-					Thread.sleep(5000);
+					settler.awaitSystem();
 					sampleLabel = "Dark Background";
-					AppParams.setCurrentSampleName(sampleLabel);
+					state.setCurrentSampleName(sampleLabel);
 					currentSample = cap.powerCaptureSeries(sampleLabel, 0,(int) Math.pow(2, 8), numReplicates);
-					AppParams.setDarkBlank(new ImageStats(currentSample));
+					state.setDarkBlank(new ImageStats(currentSample));
 				} else if (i==1) {
 					
-					if (AppParams.hasAutoShutter()) {
-						core_.setShutterDevice(AppParams.getTransmittedShutter());
-						core_.setShutterOpen(true);
-						core_.waitForDevice(AppParams.getTransmittedShutter());
-						Thread.sleep(5000);
+					if (config.hasAutoShutter()) {
+						settler.setShutter(config.getTransmittedShutter(), true);
+						settler.settleIllumination();
 					}
 					
+					ArrayList<Thread> calibrationThreads = new ArrayList<Thread>();
+					ArrayList<String[]> calibrationFiles = new ArrayList<String[]>();
 					for (int j = 0; j<numChannels; j++) {
-						if (absorptionSetting.get(j).equals("Absorbance")){
+						if (config.isAbsorbanceChannel(j)){
 							System.out.println(j);
-							core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-							core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-							core_.waitForDevice(transmittedDevice.get(j));
-							core_.waitForDevice(fluorescentDevice.get(j));
-							while (!core_.getProperty(fluorescentDevice.get(j), "Label").equalsIgnoreCase(fluorescentDeviceSetting.get(j)) ||
-									!core_.getProperty(transmittedDevice.get(j), "Label").equalsIgnoreCase(transmittedDeviceSetting.get(j))){
-								System.out.println("Current fluorescent setting: " + core_.getProperty(fluorescentDevice.get(j), "Label"));
-								System.out.println("Current fluorescent setting: " + core_.getProperty(transmittedDevice.get(j), "Label"));
-								core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-								core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-								core_.waitForDevice(transmittedDevice.get(j));
-								core_.waitForDevice(fluorescentDevice.get(j));
-							}
-							sampleLabel = channelName.get(j) + " - Linear Regression";
-							AppParams.setCurrentSampleName(sampleLabel);
-							ImageStats lightStats = new ImageStats(sampleLabel,"");
+							settler.setLabels(new String[] {config.getFluorescentDevice(j), config.getTransmittedDevice(j)},
+									new String[] {config.getFluorescentDeviceSetting(j), config.getTransmittedDeviceSetting(j)});
+							sampleLabel = config.getChannelName(j) + " - Linear Regression";
+							state.setCurrentSampleName(sampleLabel);
+							ImageStats lightStats = new ImageStats(sampleLabel,"",cap.getGeometry());
 							lightStats.pixelLinReg();
-							AppParams.addLightBlank(lightStats);
+							state.addLightBlank(lightStats);
 							System.out.println("Added Light Blank!");
-							Thread linThread = new Thread(new SaveThread(lightStats.rawImage,j,true));
+							Thread linThread = new Thread(new SaveThread(config, state, lightStats.rawImage,j,true));
 							linThread.start();
+							calibrationThreads.add(linThread);
 							//IJ.saveAsTiff(lightStats.rawImage, AppParams.getCalibrationImageDir(j)+lightStats.rawImage.getTitle());
 							//IJ.saveAsTiff(AppParams.getDarkBlank().rawImage, AppParams.getCalibrationImageDir(j)+AppParams.getDarkBlank().rawImage.getTitle());
-							Thread backThread = new Thread(new SaveThread(AppParams.getDarkBlank().rawImage,j,true));
+							Thread backThread = new Thread(new SaveThread(config, state, state.getDarkBlank().rawImage,j,true));
 							backThread.start();
+							calibrationThreads.add(backThread);
 							ImagePlus foregroundRaw;
-							if (AppParams.getIsAbsorbance()) {
-								foregroundRaw = cap.seriesCapture(channelName.get(j)+" - Light Background", lightStats.bestExposure(), lightStats.numBlankSamples(lightStats.bestExposure()));
+							if (config.isAbsorbance()) {
+								foregroundRaw = cap.seriesCapture(config.getChannelName(j)+" - Light Background", lightStats.bestExposure(), lightStats.numBlankSamples(lightStats.bestExposure()));
 							} else {
-								foregroundRaw = cap.seriesCapture(channelName.get(j)+" - Light Background", lightStats.bestExposure(), numReplicates);
+								foregroundRaw = cap.seriesCapture(config.getChannelName(j)+" - Light Background", lightStats.bestExposure(), numReplicates);
 							}
+							// The mean and deviation calculated here are the ones that are saved.
 							ImageStats foreground = new ImageStats(foregroundRaw);
-							AppParams.addForeground(foreground.getFrameMean());
-							foreground.rawImage = null;
-							AppParams.setChannelExposure(j, lightStats.bestExposure());
-							Thread forThread = new Thread(new SaveThread(foregroundRaw,j,true));
+							state.addForeground(foreground.getFrameMean(), foregroundRaw.getNSlices());
+							state.setChannelExposure(j, lightStats.bestExposure());
+							Thread forThread = new Thread(new SaveThread(config, state, foreground,j));
 							forThread.start();
+							calibrationThreads.add(forThread);
 							//IJ.saveAsTiff(foreground.rawImage, AppParams.getCalibrationImageDir(j)+foreground.rawImage.getTitle());
+							lastChannel = j;
+							
+							// Calibration images are reloaded in this order when a run is resumed.
+							String calibrationDir = config.getCalibrationImageDir(j);
+							calibrationFiles.add(new String[] {Integer.toString(j),
+									calibrationDir + state.getDarkBlank().rawImage.getTitle() + ".tif",
+									calibrationDir + lightStats.rawImage.getTitle() + ".tif",
+									calibrationDir + foregroundRaw.getTitle() + "-Mean.tif"});
 						}
 					}
-
-				} else if (i>1) {
-					if (fluorescentDevice.size()!=1) {
-						for (int j = 0; j<numChannels; j++) {
-							core_.setProperty(fluorescentDevice.get(0), "Label", fluorescentDeviceSetting.get(0));
-							core_.setProperty(transmittedDevice.get(0), "Label", transmittedDeviceSetting.get(0));
+					
+					// Calibration is only recorded once all of the calibration images are on disk.
+					for (Thread thread : calibrationThreads) {
+						thread.join();
+					}
+					for (String[] files : calibrationFiles) {
+						int j = Integer.parseInt(files[0]);
+						for (int f = 1; f<files.length; f++) {
+							journal.addCalibrationFile(j, files[f]);
 						}
+						journal.setExposure(j, state.getChannelExposure(j));
 					}
-					
-					sampleLabel = platePl.getPosition(i-2).getLabel();
-					long startTime = System.currentTimeMillis();
-					MultiStagePosition.goToPosition(platePl.getPosition(i-2), core_);
-					System.out.print("Stage move time: " + Long.toString(System.currentTimeMillis()-startTime) + "\n");
+					journal.setCalibrated();
+					startDriftMonitor(core_.getXPosition(), core_.getYPosition());
 
-					startTime = System.currentTimeMillis();
-					if (!core_.getShutterDevice().equals(AppParams.getTransmittedShutter())) {
-						core_.setShutterOpen(false);
-						core_.setShutterDevice(AppParams.getTransmittedShutter());
-						core_.setShutterOpen(true);
-					}
-					System.out.print("Shutter open time: " + Long.toString(System.currentTimeMillis()-startTime) + "\n");
+				} else if (config.getChannelMajor()) {
+					imageChannelMajor();
+					break;
+				} else if (i>1) {
+					sampleLabel = platePl.getPosition(i-2).getLabel();
+					// The stage is moved and every channel is set after the microscope is shared,
+					// so nothing another thread changed carries over to the well.
+					shareScope();
+					goToPosition(i-2);
 					System.out.println("Position: " + platePl.getPosition(i-2).getLabel());
 					
-					int currentAbsorb = 0;
+					double[] focusBase = new double[scheduler.getNumSegments()];
+					Arrays.fill(focusBase, getFocusBase());
 					
-					for (int j = 0; j<numChannels; j++) {
-						AppParams.setCurrentSampleName(sampleLabel);
+					for (int j : scheduler.getOrder(lastChannel)) {
+						state.setCurrentSampleName(sampleLabel);
 						
-						if (absorptionSetting.get(j).startsWith("Fluorescence")) {
-							if (!core_.getShutterDevice().equals(AppParams.getFluorescentShutter())) {
-								core_.setShutterOpen(false);
-								core_.waitForSystem();
-								core_.setShutterDevice(AppParams.getFluorescentShutter());
-								core_.setShutterOpen(true);
-								core_.waitForSystem();
-							}
-						} else if (absorptionSetting.get(j).startsWith("Absorbance")) {
-							if (!core_.getShutterDevice().equals(AppParams.getTransmittedShutter())) {
-								core_.setShutterOpen(false);
-								core_.waitForSystem();
-								core_.setShutterDevice(AppParams.getTransmittedShutter());
-								core_.setShutterOpen(true);
-								core_.waitForSystem();
-							}
+						// Skip channels saved before the run was resumed, but keep their focus for the rest of the segment.
+						if (journal.isDone(sampleLabel, j)) {
+							focusBase[scheduler.getSegment(j)] = journal.getFocus(sampleLabel, j);
+							continue;
 						}
 						
-						if (fluorescentDevice.size()!=1) {
-							int numTries = 0;
-							while (!core_.getProperty(fluorescentDevice.get(j), "Label").equalsIgnoreCase(fluorescentDeviceSetting.get(j)) ||
-									!core_.getProperty(transmittedDevice.get(j), "Label").equalsIgnoreCase(transmittedDeviceSetting.get(j))){
-								try {
-									core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-									core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-									core_.waitForSystem();
-								} catch (Exception e) {
-									IJ.log("Exception: " + e.getMessage());
-									IJ.log("Retrying...");
-									if (numTries++>5) {
-										System.exit(1);
-									}
-								}
-
-							}
-						}
-
+						long startTime = System.currentTimeMillis();
+						setChannel(j);
+						System.out.print("Channel switch time: " + Long.toString(System.currentTimeMillis()-startTime) + "\n");
 						
-						if (useAutofocus.get(j)){
-							System.out.print("Focusing...");
-							core_.waitForSystem();
-							afm_.getDevice().setPropertyValue("Exposure", Double.toString(channelExposure.get(j)));
-							afm_.getDevice().applySettings();
-							afm_.getDevice().fullFocus();
-						}
-						if (channelOffset.get(j)!=0) {
-							core_.setRelativePosition(channelOffset.get(j));
-						}
-						core_.waitForSystem();
-						if (absorptionSetting.get(j).equals("Absorbance")){
-							startTime = System.currentTimeMillis();
-							if (AppParams.getIsAbsorbance()) {
-								currentSample = cap.threshCaptureSeries(sampleLabel, channelExposure.get(j), numReplicates, AppParams.getLightBlank(currentAbsorb).minConfPix(numReplicates));
-							} else {
-								currentSample = cap.seriesCapture(sampleLabel,channelExposure.get(j),numReplicates);
-							}
-							//currentSample = cap.powerCaptureSeries(sampleLabel, (int) channelExposure.get(j), (int) (channelExposure.get(j)*Math.pow(2,5)), numReplicates);
-							long captureTime = System.currentTimeMillis(); 
-							System.out.print("Capture time: " + Long.toString(captureTime-startTime) + "\n");
-							IJ.saveAsTiff(currentSample, AppParams.getRawImageDir(j) + sampleLabel);
-							long saveTime = System.currentTimeMillis();
-							System.out.print("Save time: " + Long.toString(saveTime - captureTime) + "\n");
-							Thread absorptionThread = new Thread(new SaveThread(currentSample,j,false));
-							absorptionThread.start();
-							long threadTime = System.currentTimeMillis();
-							System.out.print("Thread initiation time: " + Long.toString(threadTime - saveTime) + "\n");
-						} else if (absorptionSetting.get(j).startsWith("Phase")) {
-							currentSample = cap.singleCapture(sampleLabel,channelExposure.get(j));
-							IJ.saveAsTiff(currentSample, AppParams.getChannelImageDir(j) + sampleLabel);
-						} else {
-							cap.setExposure(channelExposure.get(j));
-							currentSample = cap.singleCapture(sampleLabel);
-							IJ.saveAsTiff(currentSample, AppParams.getChannelImageDir(j) + sampleLabel);
-						}
+						focusChannel(j, focusBase);
+						journal.start(sampleLabel, j);
+						String[] saved = captureChannel(j);
+						journal.done(sampleLabel, j, focusBase[scheduler.getSegment(j)], saved[0], saved[1]);
+						lastChannel = j;
+					}
+					
+					// Orders were calculated before any switch times were measured on the first well.
+					if (i==2) {
+						scheduler.refresh();
 					}
-
 				}
 				
 				if (params.getStop() || Thread.interrupted()) {
@@ -257,15 +262,26 @@ public class AutomatedCaptureThread implements Runnable {
 			}
 			
 			core_.setShutterOpen(false);
+			if (processor!=null) {
+				processor.finish();
+			}
+			journal.setComplete();
 			
 		} catch (InterruptedException ex) {
+			try {
+				core_.setShutterOpen(false);
+			} catch (Exception e1) {
+				e1.printStackTrace();
+			}
 		} catch (MMScriptException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
+			IJ.log("Capture stopped: " + e.getMessage());
 			try {
 				core_.waitForSystem();
+				core_.setShutterOpen(false);
 			} catch (Exception e1) {
 				// TODO Auto-generated catch block
 				e1.printStackTrace();
@@ -273,6 +289,299 @@ public class AutomatedCaptureThread implements Runnable {
 			e.printStackTrace();
 		}
 		
+		if (monitor!=null) {
+			monitor.stop();
+		}
+		if (arbiter.isHeldByCurrentThread()) {
+			arbiter.release();
+		}
+		
+		// Wells that were already captured are still processed if the run was stopped.
+		if (processor!=null) {
+			processor.finish();
+		}
+		if (store!=null) {
+			store.close();
+		}
+		if (journal!=null) {
+			journal.close();
+		}
+	}
+
+	private void imageChannelMajor() throws Exception {
+		/*
+		 *  Images every well in one channel before moving on to the next channel, so the shutter
+		 *  and turrets only change once per channel. The stage visits the wells in the opposite
+		 *  direction for every other channel. The focus position of each well is recorded on the
+		 *  first visit and autofocus results are kept, so later channels return to the same Z.
+		 */
+		int numWells = config.getNumSamples();
+		double[][] focusBase = new double[numWells][];
+		boolean forward = true;
+		
+		for (int j : scheduler.getOrder(lastChannel)) {
+			long startTime = System.currentTimeMillis();
+			setChannel(j);
+			System.out.print("Channel switch time: " + Long.toString(System.currentTimeMillis()-startTime) + "\n");
+			
+			for (int n = 0; n<numWells; n++) {
+				int well = forward ? n : numWells-1-n;
+				sampleLabel = platePl.getPosition(well).getLabel();
+				if (focusBase[well]==null) {
+					focusBase[well] = new double[scheduler.getNumSegments()];
+					Arrays.fill(focusBase[well], Double.NaN);
+				}
+				
+				// Skip wells saved before the run was resumed, but keep their focus for later channels.
+				if (journal.isDone(sampleLabel, j)) {
+					focusBase[well][scheduler.getSegment(j)] = journal.getFocus(sampleLabel, j);
+					continue;
+				}
+				state.setCurrentSampleName(sampleLabel);
+				
+				// The channel is only set once for all wells, so set it again if another thread used the microscope.
+				if (shareScope()) {
+					setChannel(j);
+				}
+				goToPosition(well);
+				System.out.println("Position: " + sampleLabel + ", Channel: " + config.getChannelName(j));
+				
+				// Z is still at the offset of the channel that was focused last, which is not part of the base.
+				double base = getFocusBase();
+				for (int s = 0; s<focusBase[well].length; s++) {
+					if (Double.isNaN(focusBase[well][s])) {
+						focusBase[well][s] = base;
+					}
+				}
+				focusChannel(j, focusBase[well]);
+				journal.start(sampleLabel, j);
+				String[] saved = captureChannel(j);
+				journal.done(sampleLabel, j, focusBase[well][scheduler.getSegment(j)], saved[0], saved[1]);
+				
+				DeviceSettler.checkCancel();
+			}
+			lastChannel = j;
+			forward = !forward;
+		}
+	}
+	
+	private void startDriftMonitor(double x, double y) throws Exception {
+		// Probes the light at the given blank position between wells, if drift monitoring is on.
+		if (config.getMonitorDrift()) {
+			monitor = new DriftMonitor(core_, arbiter, config, x, y);
+			monitor.start();
+		}
+	}
+	
+	private boolean shareScope() throws Exception {
+		/*
+		 *  Called before each well. Lets the drift monitor use the microscope if it is waiting,
+		 *  then, if asked to, waits until the drift monitor finds the light stable, offering the
+		 *  microscope so that the monitor can probe. The microscope is never released, so the
+		 *  benchmark can not start in the middle of the run. Returns true if another thread used
+		 *  the microscope, in which case the stage, shutters and exposure have to be set again
+		 *  before the well is captured.
+		 */
+		boolean isShared = arbiter.offer();
+		if (monitor==null || !config.getWaitForStable() || AppParams.getStable()) {
+			return isShared;
+		}
+		IJ.log("Waiting for the light to be stable before imaging " + sampleLabel + "...");
+		long startTime = System.currentTimeMillis();
+		while (!AppParams.getStable() && System.currentTimeMillis()-startTime<MAX_STABLE_WAIT) {
+			monitor.requestProbe();
+			DeviceSettler.sleep(STABLE_POLL);
+			isShared |= arbiter.offer();
+		}
+		if (!AppParams.getStable()) {
+			IJ.log("The light was not stable after " + MAX_STABLE_WAIT/60000 + " min, imaging " + sampleLabel + " anyway.");
+		}
+		return isShared;
+	}
+	
+	private void goToPosition(int position) throws Exception {
+		// Moves the stage to a position in the plate list and records where it is for focus prediction.
+		long startTime = System.currentTimeMillis();
+		MultiStagePosition.goToPosition(platePl.getPosition(position), core_);
+		settler.awaitSystem();
+		stageX = platePl.getPosition(position).getX();
+		stageY = platePl.getPosition(position).getY();
+		System.out.print("Stage move time: " + Long.toString(System.currentTimeMillis()-startTime) + "\n");
+	}
+	
+	private void setChannel(int j) throws Exception {
+		// Opens the shutter for the channel and moves the state devices to the channel settings.
+		settler.setShutter(scheduler.getShutter(j), true);
+		if (numChannels!=1) {
+			settler.setLabels(new String[] {config.getFluorescentDevice(j), config.getTransmittedDevice(j)},
+					new String[] {config.getFluorescentDeviceSetting(j), config.getTransmittedDeviceSetting(j)});
+		}
+	}
+	
+	private void focusChannel(int j, double[] focusBase) throws Exception {
+		/*
+		 *  Focuses the channel at the current position. Autofocus channels update the focus
+		 *  position of their segment, then the channel is moved to its offset from that position.
+		 *  When focus prediction is on, the segment focus is predicted from the plate surface and
+		 *  autofocus only runs when the surface is not yet trusted or is due to be checked.
+		 */
+		if (config.getAutofocus(j)){
+			int segment = scheduler.getSegment(j);
+			FocusMap map = focusMap[segment];
+			if (map!=null && !map.needsAutofocus(stageX, stageY)) {
+				focusBase[segment] = map.predict(stageX, stageY);
+				map.usePrediction();
+				System.out.println("Predicted focus: " + focusBase[segment]);
+			} else {
+				System.out.print("Focusing...");
+				settler.awaitSystem();
+				if (state.getChannelExposure(j)!=afExposure) {
+					afm_.getDevice().setPropertyValue("Exposure", Double.toString(state.getChannelExposure(j)));
+					afm_.getDevice().applySettings();
+					afExposure = state.getChannelExposure(j);
+				}
+				afm_.getDevice().fullFocus();
+				settler.awaitSystem();
+				focusBase[segment] = getFocusPosition();
+				if (map!=null) {
+					double residual = map.addPoint(stageX, stageY, focusBase[segment]);
+					if (Math.abs(residual)>config.getFocusTolerance()) {
+						IJ.log("Focus prediction off by " + IJ.d2s(residual, 2) + " at " + sampleLabel + ", autofocusing until the prediction recovers.");
+					}
+				}
+			}
+		}
+		if (hasFocusDevice) {
+			double z = focusBase[scheduler.getSegment(j)] + scheduler.getZOffset(j);
+			if (Math.abs(getFocusPosition()-z)>Z_TOLERANCE) {
+				core_.setPosition(z);
+			}
+			appliedZOffset = scheduler.getZOffset(j);
+		}
+		settler.awaitSystem();
+	}
+	
+	private String[] captureChannel(int j) throws Exception {
+		/*
+		 *  Captures the channel at the current position and returns the file it was saved to and
+		 *  its checksum. When the plate store is used, returns the store folder holding the well's
+		 *  chunks.
+		 */
+		if (monitor!=null) {
+			monitor.annotate(sampleLabel, config.getChannelName(j));
+		}
+		if (config.getUsePlateStore()) {
+			return captureToStore(j);
+		}
+		String path;
+		String checksum;
+		if (config.isAbsorbanceChannel(j)){
+			long startTime = System.currentTimeMillis();
+			// Raw frames are written to disk as they are captured.
+			path = config.getRawImageDir(j) + sampleLabel + ".tif";
+			TiffStackWriter writer = cap.openStack(path, numReplicates);
+			try {
+				if (config.isAbsorbance()) {
+					currentSample = cap.threshCaptureSeries(sampleLabel, state.getChannelExposure(j), numReplicates, state.getLightBlank(absorbIndex[j]).minConfPix(numReplicates), writer);
+				} else {
+					currentSample = cap.seriesCapture(sampleLabel,state.getChannelExposure(j),numReplicates,writer);
+				}
+			} finally {
+				writer.close();
+			}
+			checksum = writer.getChecksum();
+			if (processor!=null) {
+				processor.submit(j, absorbIndex[j], sampleLabel, currentSample);
+			}
+			//currentSample = cap.powerCaptureSeries(sampleLabel, (int) channelExposure.get(j), (int) (channelExposure.get(j)*Math.pow(2,5)), numReplicates);
+			long captureTime = System.currentTimeMillis(); 
+			System.out.print("Capture and save time: " + Long.toString(captureTime-startTime) + "\n");
+		} else if (config.getAbsorptionSetting(j).startsWith("Phase")) {
+			currentSample = cap.singleCapture(sampleLabel,state.getChannelExposure(j));
+			path = config.getChannelImageDir(j) + sampleLabel + ".tif";
+			checksum = SaveThread.saveTiff(currentSample, path, config.getCompressImages());
+		} else {
+			cap.setExposure(state.getChannelExposure(j));
+			currentSample = cap.singleCapture(sampleLabel);
+			path = config.getChannelImageDir(j) + sampleLabel + ".tif";
+			checksum = SaveThread.saveTiff(currentSample, path, config.getCompressImages());
+		}
+		return new String[] {path, checksum};
+	}
+	
+	private String[] captureToStore(int j) throws Exception {
+		// Opened on the first well, so the index holds the exposures chosen during calibration.
+		if (store==null) {
+			store = new PlateStore(config.getOutDir() + PlateStore.DIR_NAME, platePl, config, state);
+			if (processor!=null) {
+				processor.setStore(store);
+			}
+		}
+		long startTime = System.currentTimeMillis();
+		String[] saved;
+		if (config.isAbsorbanceChannel(j)) {
+			if (config.isAbsorbance()) {
+				currentSample = cap.threshCaptureSeries(sampleLabel, state.getChannelExposure(j), numReplicates, state.getLightBlank(absorbIndex[j]).minConfPix(numReplicates));
+			} else {
+				currentSample = cap.seriesCapture(sampleLabel,state.getChannelExposure(j),numReplicates);
+			}
+			saved = store.addRaw(j, sampleLabel, currentSample);
+			if (processor!=null) {
+				processor.submit(j, absorbIndex[j], sampleLabel, currentSample);
+			}
+		} else {
+			if (config.getAbsorptionSetting(j).startsWith("Phase")) {
+				currentSample = cap.singleCapture(sampleLabel,state.getChannelExposure(j));
+			} else {
+				cap.setExposure(state.getChannelExposure(j));
+				currentSample = cap.singleCapture(sampleLabel);
+			}
+			saved = store.addImage(j, sampleLabel, currentSample);
+		}
+		System.out.print("Capture and store time: " + Long.toString(System.currentTimeMillis()-startTime) + "\n");
+		return saved;
+	}
+	
+	private void reloadCalibration() throws Exception {
+		/*
+		 *  Loads the dark background, light blanks and foregrounds saved by the run that is being
+		 *  resumed, along with the exposures chosen for each channel, instead of calibrating again.
+		 *  Saved images do not hold the camera bit depth, so it is taken from the camera.
+		 */
+		int bitDepth = (int) core_.getImageBitDepth();
+		for (int j = 0; j<numChannels; j++) {
+			if (config.isAbsorbanceChannel(j)) {
+				String[] files = journal.getCalibrationFiles(j);
+				if (files.length<3) {
+					throw new Exception("Calibration images for " + config.getChannelName(j) + " were not recorded.");
+				}
+				if (absorbIndex[j]==0) {
+					ImagePlus dark = TiffStackWriter.open(files[0]);
+					state.setDarkBlank(new ImageStats(dark, geometry(dark, bitDepth)));
+				}
+				ImagePlus light = TiffStackWriter.open(files[1]);
+				ImageStats lightStats = new ImageStats(light, geometry(light, bitDepth));
+				lightStats.exposureSet = lightStats.getExposureRange();
+				lightStats.pixelLinReg();
+				state.addLightBlank(lightStats);
+				int images = SaveThread.readBlankImages(files[2].replace("-Mean.tif", ".txt"));
+				state.addForeground(TiffStackWriter.open(files[2]), (images>0) ? images : lightStats.numBlankSamples(lightStats.bestExposure()));
+				state.setChannelExposure(j, journal.getExposure(j));
+			}
+		}
+	}
+	
+	private ImageGeometry geometry(ImagePlus imp, int bitDepth) {
+		return ImageGeometry.of(imp, bitDepth).withCalibrationSampling(config.getCalibrationRoi(), config.getCalibrationStride());
+	}
+	
+	private double getFocusPosition() throws Exception {
+		return hasFocusDevice ? core_.getPosition() : 0;
+	}
+	
+	private double getFocusBase() throws Exception {
+		// Focus position without the offset of the last focused channel, so offsets do not add up from well to well.
+		return getFocusPosition() - appliedZOffset;
 	}
 
 }
@@ -0,0 +1,292 @@
+package nist.squire;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+//This class reprocesses saved plates from the command line, without Micro-Manager or the GUI.
+//	For every run folder it finds, the calibration images of each absorbance channel are loaded,
+//	the noise model and exposure regression are recalculated, and the mean, background corrected
+//	and absorbance images of every raw well are written to the channel's Absorbance Images folder.
+//	Raw wells are read from the channel's Raw Images folder, or from the plate store of the run
+//	when the plate was saved as one. Wells are processed in parallel across cores, and throughput is reported for each run.
+//
+//	Usage: BatchReprocess [-threads n] [-bitdepth b] [-roi p] [-stride s] <plate or run folder>...
+//		-threads	number of wells processed at once, defaults to the number of cores
+//		-bitdepth	bit depth of the camera the plates were imaged with, defaults to 16
+//		-roi		% of the frame the calibration curves are sampled from, defaults to 100
+//		-stride		spacing of the pixels the calibration curves are sampled from, defaults to 1
+public class BatchReprocess {
+
+	private static final String CALIBRATION_DIR = "Calibration Images";
+	private static final String RAW_DIR = "Raw Images";
+	private static final String REGRESSION_SUFFIX = " - Linear Regression.tif";
+	private static final String FOREGROUND_SUFFIX = " - Light Background-Mean.tif";
+	private static final String FOREGROUND_INFO_SUFFIX = " - Light Background.txt";
+	private static final String DARK_FILE = "Dark Background.tif";
+
+	private ExecutorService workers;
+	private int bitDepth;
+	private int calibrationRoi;
+	private int calibrationStride;
+	private int totalWells = 0;
+	private int failedWells = 0;
+
+	public BatchReprocess(int threads, int bitDepth, int calibrationRoi, int calibrationStride) {
+		workers = Executors.newFixedThreadPool(threads);
+		this.bitDepth = bitDepth;
+		this.calibrationRoi = calibrationRoi;
+		this.calibrationStride = calibrationStride;
+	}
+
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int bitDepth = 16;
+		int calibrationRoi = 100;
+		int calibrationStride = 1;
+		ArrayList<File> folders = new ArrayList<File>();
+		for (int i = 0; i<args.length; i++) {
+			if (args[i].equals("-threads") && i+1<args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-bitdepth") && i+1<args.length) {
+				bitDepth = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-roi") && i+1<args.length) {
+				calibrationRoi = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-stride") && i+1<args.length) {
+				calibrationStride = Integer.parseInt(args[++i]);
+			} else {
+				folders.add(new File(args[i]));
+			}
+		}
+		if (folders.isEmpty()) {
+			System.out.println("Usage: BatchReprocess [-threads n] [-bitdepth b] [-roi p] [-stride s] <plate or run folder>...");
+			System.exit(1);
+		}
+
+		BatchReprocess batch = new BatchReprocess(threads, bitDepth, calibrationRoi, calibrationStride);
+		long startTime = System.currentTimeMillis();
+		ArrayList<File> runs = new ArrayList<File>();
+		for (File folder : folders) {
+			findRuns(folder, runs);
+		}
+		System.out.println("Found " + runs.size() + " runs, processing with " + threads + " threads.");
+		for (File run : runs) {
+			batch.processRun(run);
+		}
+		batch.workers.shutdown();
+
+		double minutes = (System.currentTimeMillis()-startTime)/60000.0;
+		System.out.println("Processed " + batch.totalWells + " wells in " + runs.size() + " runs in " + IJ.d2s(minutes, 2)
+				+ " min, " + IJ.d2s(batch.totalWells/minutes, 1) + " wells/min.");
+		if (batch.failedWells>0) {
+			System.out.println(batch.failedWells + " wells could not be processed.");
+		}
+		System.exit(batch.failedWells>0 ? 2 : 0);
+	}
+
+	private static void findRuns(File folder, ArrayList<File> runs) {
+		/*
+		 *  A run folder holds one folder per channel, and absorbance channels hold calibration
+		 *  images. Plate folders are searched for the run folders inside them.
+		 */
+		File[] children = folder.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory();
+			}
+		});
+		if (children==null) {
+			return;
+		}
+		Arrays.sort(children);
+		for (File child : children) {
+			if (new File(child, CALIBRATION_DIR).isDirectory()) {
+				runs.add(folder);
+				return;
+			}
+		}
+		for (File child : children) {
+			findRuns(child, runs);
+		}
+	}
+
+	public void processRun(File run) {
+		System.out.println("Run: " + run.getPath());
+		long startTime = System.currentTimeMillis();
+		int numWells = 0;
+		File[] channels = run.listFiles();
+		Arrays.sort(channels);
+		File store = new File(run, PlateStore.DIR_NAME);
+		for (File channel : channels) {
+			File calibration = new File(channel, CALIBRATION_DIR);
+			File raw = new File(channel, RAW_DIR);
+			WellSource wells;
+			if (!calibration.isDirectory()) {
+				continue;
+			} else if (raw.isDirectory()) {
+				wells = new TiffWells(raw);
+			} else if (new File(store, channel.getName() + File.separator + "raw").isDirectory()) {
+				wells = new StoreWells(store, channel.getName());
+			} else {
+				System.out.println("  " + channel.getName() + ": no raw images were found.");
+				continue;
+			}
+			try {
+				numWells += processChannel(channel, calibration, wells);
+			} catch (Exception e) {
+				System.out.println("  " + channel.getName() + ": unable to load calibration, " + e.getMessage());
+			}
+		}
+		double minutes = (System.currentTimeMillis()-startTime)/60000.0;
+		System.out.println("  " + numWells + " wells in " + IJ.d2s(minutes*60, 1) + "s, " + IJ.d2s(numWells/Math.max(minutes, 1e-9), 1) + " wells/min");
+		totalWells += numWells;
+	}
+
+	private int processChannel(File channel, File calibration, final WellSource source) throws Exception {
+		/*
+		 *  Recalculates the calibration of a channel, then processes every raw well with it.
+		 *  Returns the number of wells that were processed.
+		 */
+		final ImageStats dark = stats(new File(calibration, DARK_FILE));
+		ImageStats light = stats(new File(calibration, channel.getName() + REGRESSION_SUFFIX));
+		light.exposureSet = light.getExposureRange();
+		light.pixelLinReg();
+		IJ.saveAsTiff(new ImagePlus(channel.getName() + " - Slope Stats", light.getSlopeImage()),
+				calibration.getPath() + File.separator + channel.getName() + " - Slope Stats");
+		final ImagePlus foreground = open(new File(calibration, channel.getName() + FOREGROUND_SUFFIX));
+		final int maxPix = (int) foreground.getStatistics().max;
+
+		String[] wells = source.getWells();
+		final String outDir = channel.getPath() + File.separator + AbsorbanceProcessor.DIR_NAME + File.separator;
+		ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+		// The usable pixel range depends on the replicate count, which is the same for every well of a run.
+		final int[] minPix = {-1};
+		final ImageStats slope = light;
+		final CalibrationModel noise = light.getCalibration();
+		// The foreground records how many images went into it; runs without that record used numBlankSamples.
+		int images = SaveThread.readBlankImages(new File(calibration, channel.getName() + FOREGROUND_INFO_SUFFIX).getPath());
+		if (images<=0) {
+			images = noise.numBlankSamples(noise.getBestExposure());
+		}
+		final float[] blankVariance = AbsorbanceProcessor.blankVariance(foreground, images, dark, noise);
+		for (final String well : wells) {
+			results.add(workers.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ImageStats sample = stats(source.read(well));
+						int min;
+						synchronized (minPix) {
+							if (minPix[0]<0) {
+								minPix[0] = slope.minConfPix(sample.nSlices);
+							}
+							min = minPix[0];
+						}
+						AbsorbanceProcessor.saveWell(AbsorbanceProcessor.processWell(sample, dark, slope, foreground, blankVariance, min, maxPix), outDir, well, false);
+					} catch (Exception e) {
+						throw new RuntimeException(well + ": " + e.getMessage(), e);
+					}
+				}
+			}));
+		}
+
+		int processed = 0;
+		for (Future<?> result : results) {
+			try {
+				result.get();
+				processed++;
+			} catch (Exception e) {
+				failedWells++;
+				System.out.println("  " + channel.getName() + ": " + (e.getCause()!=null ? e.getCause().getMessage() : e.getMessage()));
+			}
+		}
+		System.out.println("  " + channel.getName() + ": " + processed + " of " + wells.length + " wells");
+		return processed;
+	}
+
+	private ImageStats stats(File file) throws Exception {
+		return stats(open(file));
+	}
+
+	private ImageStats stats(ImagePlus imp) {
+		// Saved images do not record the camera bit depth or calibration sampling, so they come from the command line.
+		return new ImageStats(imp, ImageGeometry.of(imp, bitDepth).withCalibrationSampling(calibrationRoi, calibrationStride));
+	}
+
+	private static ImagePlus open(File file) throws Exception {
+		return TiffStackWriter.open(file.getPath());
+	}
+
+	// Where the raw wells of a channel are read from, by well label.
+	private interface WellSource {
+		String[] getWells() throws Exception;
+		ImagePlus read(String well) throws Exception;
+	}
+
+	// One TIFF per well in the channel's Raw Images folder.
+	private static class TiffWells implements WellSource {
+		private File raw;
+
+		TiffWells(File raw) {this.raw = raw;}
+
+		@Override
+		public String[] getWells() {
+			File[] files = raw.listFiles(new FileFilter() {
+				@Override
+				public boolean accept(File file) {
+					return file.isFile() && file.getName().toLowerCase().endsWith(".tif");
+				}
+			});
+			String[] wells = new String[files.length];
+			for (int i = 0; i<files.length; i++) {
+				wells[i] = files[i].getName().substring(0, files[i].getName().length()-4);
+			}
+			Arrays.sort(wells);
+			return wells;
+		}
+
+		@Override
+		public ImagePlus read(String well) throws Exception {
+			return open(new File(raw, well + ".tif"));
+		}
+	}
+
+	// The raw array of the channel in the run's plate store, holding the wells that were captured.
+	private static class StoreWells implements WellSource {
+		private String store;
+		private String array;
+		private HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+		StoreWells(File store, String channel) {
+			this.store = store.getPath();
+			array = channel + "/raw";
+		}
+
+		@Override
+		public String[] getWells() throws Exception {
+			String[] labels = PlateStore.readWellLabels(store);
+			File arrayDir = new File(store, array.replace("/", File.separator));
+			ArrayList<String> wells = new ArrayList<String>();
+			for (int i = 0; i<labels.length; i++) {
+				if (labels[i]!=null && new File(arrayDir, Integer.toString(i)).isDirectory()) {
+					index.put(labels[i], i);
+					wells.add(labels[i]);
+				}
+			}
+			return wells.toArray(new String[wells.size()]);
+		}
+
+		@Override
+		public ImagePlus read(String well) throws Exception {
+			return PlateStore.readWell(store, array, index.get(well));
+		}
+	}
+}
@@ -20,6 +20,17 @@ import ij.process.ColorProcessor;
 
 public class BenchmarkingThread implements Runnable {
 	ResultsTable benchmarkingResults = new ResultsTable();
+	// Dark image and sample names of this benchmark, kept apart from any capture run
+	private final RunState state;
+	private final String outDir = AppParams.getOutDir();
+	// The benchmark measures wherever the stage is and sets the stable flag the plate run uses, so
+	//	it never takes the microscope between the wells of a plate run; it waits for the run to end.
+	private static final String OWNER = "Benchmark";
+	private ScopeArbiter arbiter = AppParams.getScopeArbiter();
+	
+	public BenchmarkingThread(RunState state) {
+		this.state = state;
+	}
 
 	@Override
 	public void run() {
@@ -45,15 +56,18 @@ public class BenchmarkingThread implements Runnable {
 		aggregateProcessor.insert(absorptionPlot.getProcessor(),width,0);
 		plotAggregator.setProcessor(aggregateProcessor);
 		
-		(new File(AppParams.getOutDir())).mkdirs();
+		(new File(outDir)).mkdirs();
 		
 		if (AppParams.getBenchmarkVisible()) {
 			plotAggregator.show();
 		}
 		
+		// Calibration curves are sampled with the settings the benchmark was started with.
+		ImageGeometry geometry = ImageGeometry.forCamera(AppParams.getApp_().getMMCore())
+				.withCalibrationSampling(AppParams.getCalibrationRoi(), AppParams.getCalibrationStride());
+		
 		try {
 			AppParams.setStable(false);
-			AppParams.getApp_().getMMCore().setShutterOpen(false);
 			
 			if (!AppParams.hasAutoShutter()) {
 	  	      	JOptionPane.showMessageDialog(null,
@@ -63,9 +77,15 @@ public class BenchmarkingThread implements Runnable {
 			}
 			
 			IJ.log("Getting dark image...");
-  	      	AppParams.setForceMax(true);
-  	      	AppParams.setCurrentSampleName("Read Current");
-			AppParams.setDarkBlank(new ImageStats("Read Current", ""));
+			arbiter.acquireWhenIdle(OWNER);
+			try {
+				AppParams.getApp_().getMMCore().setShutterOpen(false);
+				AppParams.setForceMax(true);
+				state.setCurrentSampleName("Read Current");
+				state.setDarkBlank(new ImageStats("Read Current", "", geometry));
+			} finally {
+				arbiter.release();
+			}
 			
 			if (!AppParams.hasAutoShutter()) {
 	  	      	JOptionPane.showMessageDialog(null,
@@ -75,10 +95,15 @@ public class BenchmarkingThread implements Runnable {
 			}
 			
 			IJ.log("Getting first image...");
-  	      	AppParams.setForceMax(false);
-  	      	AppParams.getApp_().getMMCore().setShutterOpen(true);
-  	      	AppParams.setCurrentSampleName("Initial Background");
-			currentSample = new ImageStats("Initial Background","");
+			arbiter.acquireWhenIdle(OWNER);
+			try {
+				AppParams.setForceMax(false);
+				AppParams.getApp_().getMMCore().setShutterOpen(true);
+				state.setCurrentSampleName("Initial Background");
+				currentSample = new ImageStats("Initial Background", "", geometry);
+			} finally {
+				arbiter.release();
+			}
 			
 			currentSample.pixelLinReg();
 
@@ -104,8 +129,15 @@ public class BenchmarkingThread implements Runnable {
 					throw new InterruptedException("canceled");
 				}
 
-				AppParams.setCurrentSampleName("Stabilization");
-				currentSample = new ImageStats("Stabilization", Integer.toString(i++));
+				state.setCurrentSampleName("Stabilization");
+				arbiter.acquireWhenIdle(OWNER);
+				try {
+					// A plate run may have closed the shutter while it had the microscope.
+					AppParams.getApp_().getMMCore().setShutterOpen(true);
+					currentSample = new ImageStats("Stabilization", Integer.toString(i++), geometry);
+				} finally {
+					arbiter.release();
+				}
 				currentSample.pixelLinReg();
 				
 				currentSlope = currentSample.getAverageSlope();
@@ -176,7 +208,7 @@ public class BenchmarkingThread implements Runnable {
 				}
 				if (AppParams.saveBenchmarkExcel()) {
 					addResult(elapsedTime,currentSlope,benchmarkAbsorption);
-					benchmarkingResults.saveAs(AppParams.getOutDir() + "BenchmarkingResults.csv");
+					benchmarkingResults.saveAs(outDir + "BenchmarkingResults.csv");
 				}
 			}
 			
@@ -190,7 +222,7 @@ public class BenchmarkingThread implements Runnable {
 	private void writeResults(double sample, ArrayList<Double> slope, ArrayList<Double> absorption)
 	{
 		try {
-			PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(new File(AppParams.getOutDir() + "Benchmarking Data.txt"))));
+			PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(new File(outDir + "Benchmarking Data.txt"))));
 
 			pw.println("Sample\tAverage Slope\tAbsorption\n");
 			pw.println();
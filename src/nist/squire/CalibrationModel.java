@@ -0,0 +1,247 @@
+package nist.squire;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import ij.IJ;
+import ij.measure.CurveFitter;
+
+//This class holds what is learned from the global intensity and deviation curves of a light
+//	blank: the noise model, the range of exposures where intensity is linear with exposure, the
+//	line fitted over that range and the best exposure that follows from them. These used to be
+//	recalculated by ImageStats for every query, so the same curve was fitted again for every
+//	exposure plan and every pixel of the linear regression, and the minimum confident intensity
+//	was found by stepping down one intensity at a time. The model is built once, answers each
+//	query directly, and can be shared by any number of threads.
+public class CalibrationModel {
+
+	// Largest relative error of the noise model for an exposure to be in the linear range
+	private static final double LINEAR_TOLERANCE = 0.05;
+	// Z-statistic of the 95% confidence interval, and the absorbance it has to resolve
+	private static final double Z = 1.96;
+	private static final double ABSORBANCE_RESOLUTION = 0.01;
+	private static final double LN10 = Math.log(10);
+
+	private final double[] exposureSet;
+	private final int bitDepth;
+
+	// Noise model, deviation = noiseSlope*sqrt(intensity) + noiseIntercept
+	private final boolean hasNoise;
+	private final double noiseIntercept;
+	private final double noiseSlope;
+	private final double noiseRSquared;
+
+	// Line fitted to the first linearEnd exposures, intensity = intercept + slope*exposure
+	private final int linearEnd;
+	private final double intercept;
+	private final double slope;
+	private final double rSquared;
+	private final double bestExposure;
+	private final double bestExposureIntensity;
+
+	// Intensity the absorbance error is measured against, and the intensity the search starts at
+	private final double referenceSigma;
+	private final int startIntensity;
+	private final HashMap<Integer, Integer> minConfPix = new HashMap<Integer, Integer>();
+
+	public CalibrationModel(double[] exposureSet, double[] intensitySet, double[] deviationSet, int nFrames, int bitDepth) {
+		// Kept as a copy, so a caller changing its array in place is still seen as a new set.
+		this.exposureSet = exposureSet.clone();
+		this.bitDepth = bitDepth;
+
+		/*
+		 *  The noise model is a regression of deviation against the square root of intensity,
+		 *  using the first three exposures.
+		 */
+		if (nFrames<3) {
+			IJ.error("Need at least 3 exposure times to estimate standard deviation.");
+			hasNoise = false;
+			noiseIntercept = 0;
+			noiseSlope = 0;
+			noiseRSquared = 0;
+		} else {
+			double[] dSqrtPixels = new double[3];
+			double[] dStdPixels = new double[3];
+			for (int i = 0; i<3; i++) {
+				dSqrtPixels[i] = Math.sqrt(intensitySet[i]);
+				dStdPixels[i] = deviationSet[i];
+			}
+			CurveFitter cf = new CurveFitter(dSqrtPixels,dStdPixels);
+			cf.doFit(0);
+			double[] params = cf.getParams();
+			hasNoise = true;
+			noiseIntercept = params[0];
+			noiseSlope = params[1];
+			noiseRSquared = cf.getRSquared();
+			IJ.log("Standard Deviation Slope: " + noiseSlope);
+			IJ.log("Standard Deviation Intercept: " + noiseIntercept);
+		}
+
+		/*
+		 *  Intensity is linear with exposure for as long as the deviation follows the noise
+		 *  model. The best exposure puts the mean intensity 3 deviations below saturation.
+		 */
+		if (nFrames>=3 && deviationSet.length>=3) {
+			int pos = 2;
+			while (Math.abs(deviationSet[pos] - stdEst(intensitySet[pos]))/deviationSet[pos] < LINEAR_TOLERANCE) {
+				pos++;
+				if (pos>=deviationSet.length) break;
+			}
+			pos--;
+			linearEnd = pos;
+
+			CurveFitter cf = new CurveFitter(Arrays.copyOfRange(exposureSet, 0, pos), Arrays.copyOfRange(intensitySet, 0, pos));
+			cf.doFit(0);
+			double[] params = cf.getParams();
+			intercept = params[0];
+			slope = params[1];
+			rSquared = cf.getRSquared();
+
+			double saturation = Math.pow(2, bitDepth);
+			bestExposure = (saturation - 3*stdEst(saturation) - intercept)/slope;
+			bestExposureIntensity = intercept + slope*bestExposure;
+
+			System.out.println("Intercept: " + intercept);
+			System.out.println("Slope: " + slope);
+			System.out.println("Max value: " + saturation);
+			System.out.println("Estimated STD: " + stdEst(saturation));
+		} else {
+			linearEnd = 0;
+			intercept = Double.NaN;
+			slope = Double.NaN;
+			rSquared = Double.NaN;
+			bestExposure = Double.NaN;
+			bestExposureIntensity = Double.NaN;
+		}
+
+		// A single exposure is its own reference, otherwise the best exposure is.
+		double referenceIntensity;
+		double referenceDeviation;
+		if (nFrames==1) {
+			referenceIntensity = intensitySet[0];
+			referenceDeviation = deviationSet[0];
+			startIntensity = (int) intensitySet[0];
+		} else {
+			referenceIntensity = (int) bestExposureIntensity;
+			referenceDeviation = stdEst(referenceIntensity);
+			startIntensity = (int) bestExposureIntensity;
+		}
+		referenceSigma = Math.pow(referenceDeviation/(referenceIntensity*LN10), 2);
+	}
+
+	// True if the model was built from the same exposures, even if the set was read again.
+	public boolean isFor(double[] exposureSet) {return Arrays.equals(this.exposureSet, exposureSet);}
+
+	public double stdEst(double intensity) {
+		// Estimate of the standard deviation of a pixel with the given mean intensity.
+		if (!hasNoise) {
+			return 0.0;
+		}
+		return Math.sqrt(intensity)*noiseSlope + noiseIntercept;
+	}
+
+	public double absSigma(int intensity) {
+		/*
+		 *  Approximate standard deviation of an absorbance value measured at the given intensity,
+		 *  from propagation of error of -log(I/I0).
+		 */
+		double dIntensity = intensity;
+		double sigmaI = Math.pow(stdEst(dIntensity)/(dIntensity*LN10), 2);
+		return Math.sqrt(sigmaI + referenceSigma);
+	}
+
+	public int numBlankSamples(double exposure) {
+		/*
+		 *  Number of images needed for the mean pixel intensity to be within 2 intensities of the
+		 *  actual intensity with 95% confidence, n = (Z*sigma/E)^2.
+		 */
+		double intensity = intercept + slope*exposure;
+		double deviation = noiseIntercept + noiseSlope*Math.sqrt(intensity);
+		return (int) Math.pow(Z*deviation / (Math.pow(2., bitDepth-11.)), 2);
+	}
+
+	public synchronized int minConfPix(int numExp) {
+		/*
+		 *  Highest intensity, at or below the intensity of the best exposure, where the 95%
+		 *  confidence interval of an absorbance averaged over numExp images is at least 0.01.
+		 *  Results are kept for each number of images.
+		 */
+		Integer intensity = minConfPix.get(numExp);
+		if (intensity==null) {
+			intensity = findMinConfPix(numExp);
+			minConfPix.put(numExp, intensity);
+		}
+		return intensity;
+	}
+
+	private int findMinConfPix(int numExp) {
+		/*
+		 *  The absorbance deviation is sqrt(g(I)^2 + s0) with g(I) = (a/sqrt(I) + b/I)/ln(10) and
+		 *  s0 the deviation of the reference. With x = 1/sqrt(I), |a*x + b*x^2| = c marks where
+		 *  the interval reaches 0.01, so the answer is the first root above the start intensity's
+		 *  x. The intensities on either side of the root are checked directly to settle rounding.
+		 */
+		double sqrtN = Math.sqrt(numExp);
+		int start = startIntensity;
+		if (start<=0 || isResolved(start, sqrtN)) {
+			return start;
+		}
+
+		double limit = Math.pow(ABSORBANCE_RESOLUTION*sqrtN/Z, 2) - referenceSigma;
+		double c = Math.sqrt(limit)*LN10;
+		double x0 = 1/Math.sqrt(start);
+		double root = Double.POSITIVE_INFINITY;
+		for (double k : new double[] {c, -c}) {
+			for (double x : solve(noiseIntercept, noiseSlope, -k)) {
+				if (x>x0 && x<root) {
+					root = x;
+				}
+			}
+		}
+
+		int intensity = (root<=1) ? (int) Math.min(start-1, Math.floor(1/(root*root))) : 0;
+		while (intensity<start-1 && isResolved(intensity+1, sqrtN)) {
+			intensity++;
+		}
+		while (intensity>0 && !isResolved(intensity, sqrtN)) {
+			intensity--;
+		}
+		return intensity;
+	}
+
+	private boolean isResolved(int intensity, double sqrtN) {
+		return !(Z*absSigma(intensity)/sqrtN < ABSORBANCE_RESOLUTION);
+	}
+
+	private static double[] solve(double a, double b, double c) {
+		// Real roots of a*x^2 + b*x + c = 0.
+		if (a==0) {
+			return (b==0) ? new double[0] : new double[] {-c/b};
+		}
+		double discriminant = b*b - 4*a*c;
+		if (discriminant<0) {
+			return new double[0];
+		}
+		double sqrtD = Math.sqrt(discriminant);
+		return new double[] {(-b + sqrtD)/(2*a), (-b - sqrtD)/(2*a)};
+	}
+
+	public double getNoiseIntercept() {return noiseIntercept;}
+
+	public double getNoiseSlope() {return noiseSlope;}
+
+	public double getNoiseRSquared() {return noiseRSquared;}
+
+	// Number of exposures, from the shortest, that the line was fitted to.
+	public int getLinearEnd() {return linearEnd;}
+
+	public double getIntercept() {return intercept;}
+
+	public double getSlope() {return slope;}
+
+	public double getRSquared() {return rSquared;}
+
+	public double getBestExposure() {return bestExposure;}
+
+	public double getBestExposureIntensity() {return bestExposureIntensity;}
+}
@@ -0,0 +1,59 @@
+package nist.squire;
+
+//This class picks the pixels the global intensity and deviation curves are measured from. The
+//	curves only plan exposures, so they do not need every pixel of the sensor: a region in the
+//	middle of the frame, read every few pixels along each row and every few rows, gives the same
+//	mean and deviation in a fraction of the time. The region is a percentage of the frame width
+//	and height, and the stride is the spacing between sampled pixels. A region of 100% with a
+//	stride of 1 reads every pixel. The region and stride of a run come with the ImageGeometry of
+//	its images.
+public class CalibrationSampler {
+
+	private final int width;
+	private final int x0;
+	private final int x1;
+	private final int y0;
+	private final int y1;
+	private final int stride;
+
+	public CalibrationSampler(int width, int height, int roiPercent, int stride) {
+		int percent = Math.max(1, Math.min(100, roiPercent));
+		int roiWidth = Math.max(1, (int) Math.round(width*percent/100.0));
+		int roiHeight = Math.max(1, (int) Math.round(height*percent/100.0));
+		this.width = width;
+		x0 = (width-roiWidth)/2;
+		x1 = x0 + roiWidth;
+		y0 = (height-roiHeight)/2;
+		y1 = y0 + roiHeight;
+		this.stride = Math.max(1, stride);
+	}
+
+	public static CalibrationSampler fullFrame(int width, int height) {
+		return new CalibrationSampler(width, height, 100, 1);
+	}
+
+	public boolean isFullFrame() {
+		return stride==1 && x0==0 && y0==0 && x1==width;
+	}
+
+	public PixelSummary summarize(float[] pixels) {
+		return summarize(pixels, Double.POSITIVE_INFINITY);
+	}
+
+	public PixelSummary summarize(float[] pixels, double saturation) {
+		/*
+		 *  Minimum, maximum, mean, root mean square and saturated pixel count of the sampled
+		 *  pixels. Every pixel is read in one call; otherwise each sampled row is read on its own.
+		 */
+		PixelSummary summary = new PixelSummary();
+		PixelKernels kernels = PixelKernels.get();
+		if (isFullFrame()) {
+			kernels.summarize(pixels, 0, pixels.length, 1, saturation, summary);
+		} else {
+			for (int y = y0; y<y1; y += stride) {
+				kernels.summarize(pixels, y*width + x0, y*width + x1, stride, saturation, summary);
+			}
+		}
+		return summary;
+	}
+}
@@ -0,0 +1,244 @@
+package nist.squire;
+
+import java.util.Arrays;
+
+//This class decides the order that channels are imaged in at each well. Every channel needs a
+//	shutter and two state device labels, and switching any of these takes time. The order is
+//	chosen to minimize the total switching time, starting from whatever channel was imaged last,
+//	so consecutive wells are naturally imaged in a serpentine channel order. Switching times
+//	are the ones measured by the DeviceSettler during the run.
+//
+//	Channels are grouped into focus segments: each autofocus channel starts a new segment, and
+//	the Z-Offset of a channel is added to the offsets of the channels before it in the same
+//	segment. The scheduler keeps the autofocus channel first in its segment and gives each
+//	channel an offset from its segment focus, so channels are imaged at the same Z no matter
+//	what order they are imaged in.
+public class ChannelScheduler {
+
+	// Switch time used for a device that has not been measured yet
+	private static final double DEFAULT_SWITCH_TIME = 500; //ms
+	// Largest number of channels that will be searched exhaustively
+	private static final int MAX_EXACT_CHANNELS = 12;
+
+	private DeviceSettler settler;
+	private int numChannels;
+	private String[] shutter;
+	private String[] fluorescentDevice;
+	private String[] fluorescentSetting;
+	private String[] transmittedDevice;
+	private String[] transmittedSetting;
+	private int[] segment;
+	private int[] segmentLeader;
+	private double[] zOffset;
+	private boolean optimize;
+	private int[][] orderCache;
+
+	public ChannelScheduler(DeviceSettler settler, RunConfig config) {
+		this.settler = settler;
+		this.optimize = config.getOptimizeChannelOrder();
+
+		numChannels = config.getNumChannels();
+
+		shutter = new String[numChannels];
+		fluorescentDevice = new String[numChannels];
+		fluorescentSetting = new String[numChannels];
+		transmittedDevice = new String[numChannels];
+		transmittedSetting = new String[numChannels];
+		segment = new int[numChannels];
+		segmentLeader = new int[numChannels];
+		zOffset = new double[numChannels];
+
+		int currentSegment = 0;
+		double offset = 0;
+		Arrays.fill(segmentLeader, -1);
+		for (int j = 0; j<numChannels; j++) {
+			if (config.getAbsorptionSetting(j).startsWith("Fluorescence")) {
+				shutter[j] = config.getFluorescentShutter();
+			} else {
+				shutter[j] = config.getTransmittedShutter();
+			}
+			fluorescentDevice[j] = config.getFluorescentDevice(j);
+			fluorescentSetting[j] = config.getFluorescentDeviceSetting(j);
+			transmittedDevice[j] = config.getTransmittedDevice(j);
+			transmittedSetting[j] = config.getTransmittedDeviceSetting(j);
+
+			if (config.getAutofocus(j)) {
+				if (j>0) {
+					currentSegment++;
+				}
+				segmentLeader[currentSegment] = j;
+				offset = 0;
+			}
+			offset += config.getChannelOffset(j);
+			segment[j] = currentSegment;
+			zOffset[j] = offset;
+		}
+
+		orderCache = new int[numChannels+1][];
+	}
+
+	public int getNumSegments() {return segment[numChannels-1]+1;}
+
+	// The focus segment a channel belongs to.
+	public int getSegment(int channel) {return segment[channel];}
+
+	// Offset of the channel from the focus position of its segment.
+	public double getZOffset(int channel) {return zOffset[channel];}
+
+	// Shutter used to image the channel.
+	public String getShutter(int channel) {return shutter[channel];}
+
+	public int[] getOrder(int lastChannel) {
+		/*
+		 *  Returns the order channels should be imaged in, given the last channel that was imaged.
+		 *  Use -1 for the last channel when the state of the hardware is not known. The order for
+		 *  each starting channel only needs to be calculated once per run.
+		 */
+		int[] order = orderCache[lastChannel+1];
+		if (order!=null) {
+			return order;
+		}
+
+		if (!optimize || numChannels==1) {
+			order = new int[numChannels];
+			for (int j = 0; j<numChannels; j++) {
+				order[j] = j;
+			}
+		} else if (numChannels<=MAX_EXACT_CHANNELS) {
+			order = exactOrder(lastChannel);
+		} else {
+			order = greedyOrder(lastChannel);
+		}
+
+		orderCache[lastChannel+1] = order;
+		return order;
+	}
+
+	// Forget calculated orders so that they are recalculated with the latest measured switch times.
+	public void refresh() {
+		orderCache = new int[numChannels+1][];
+	}
+
+	public double getOrderCost(int lastChannel, int[] order) {
+		double cost = 0;
+		int previous = lastChannel;
+		for (int j : order) {
+			cost += switchCost(previous, j);
+			previous = j;
+		}
+		return cost;
+	}
+
+	private int[] exactOrder(int lastChannel) {
+		/*
+		 *  Finds the lowest cost order by dynamic programming over the set of channels that have
+		 *  already been imaged. A channel can only be added once the autofocus channel of its
+		 *  segment has been imaged.
+		 */
+		int numSets = 1 << numChannels;
+		double[][] cost = new double[numSets][numChannels];
+		int[][] previous = new int[numSets][numChannels];
+		for (double[] row : cost) {
+			Arrays.fill(row, Double.POSITIVE_INFINITY);
+		}
+
+		for (int j = 0; j<numChannels; j++) {
+			if (isAllowed(0, j)) {
+				cost[1 << j][j] = switchCost(lastChannel, j);
+				previous[1 << j][j] = -1;
+			}
+		}
+
+		for (int set = 1; set<numSets; set++) {
+			for (int last = 0; last<numChannels; last++) {
+				if (cost[set][last]==Double.POSITIVE_INFINITY) {
+					continue;
+				}
+				for (int next = 0; next<numChannels; next++) {
+					if ((set & (1 << next))!=0 || !isAllowed(set, next)) {
+						continue;
+					}
+					int nextSet = set | (1 << next);
+					double nextCost = cost[set][last] + switchCost(last, next);
+					if (nextCost<cost[nextSet][next]) {
+						cost[nextSet][next] = nextCost;
+						previous[nextSet][next] = last;
+					}
+				}
+			}
+		}
+
+		int set = numSets-1;
+		int last = 0;
+		for (int j = 1; j<numChannels; j++) {
+			if (cost[set][j]<cost[set][last]) {
+				last = j;
+			}
+		}
+
+		int[] order = new int[numChannels];
+		for (int k = numChannels-1; k>=0; k--) {
+			order[k] = last;
+			int before = previous[set][last];
+			set &= ~(1 << last);
+			last = before;
+		}
+		return order;
+	}
+
+	private int[] greedyOrder(int lastChannel) {
+		// Picks the cheapest allowed channel at each step. Used when there are too many channels to search.
+		int[] order = new int[numChannels];
+		int previous = lastChannel;
+		boolean[] used = new boolean[numChannels];
+		for (int k = 0; k<numChannels; k++) {
+			int best = -1;
+			double bestCost = Double.POSITIVE_INFINITY;
+			for (int j = 0; j<numChannels; j++) {
+				if (!used[j] && isAllowedGreedy(used, j)) {
+					double cost = switchCost(previous, j);
+					if (cost<bestCost) {
+						best = j;
+						bestCost = cost;
+					}
+				}
+			}
+			used[best] = true;
+			order[k] = best;
+			previous = best;
+		}
+		return order;
+	}
+
+	private boolean isAllowed(int set, int channel) {
+		int leader = segmentLeader[segment[channel]];
+		return leader<0 || leader==channel || (set & (1 << leader))!=0;
+	}
+
+	private boolean isAllowedGreedy(boolean[] used, int channel) {
+		int leader = segmentLeader[segment[channel]];
+		return leader<0 || leader==channel || used[leader];
+	}
+
+	private double switchCost(int from, int to) {
+		/*
+		 *  Estimated time to switch the hardware from one channel to another. When the starting
+		 *  channel is unknown, all channels are treated as having the same starting cost.
+		 */
+		if (from<0) {
+			return 0;
+		}
+		double cost = 0;
+		if (!shutter[from].equals(shutter[to])) {
+			cost += settler.getSwitchTime(shutter[from], DEFAULT_SWITCH_TIME);
+			cost += settler.getSwitchTime(shutter[to], DEFAULT_SWITCH_TIME);
+		}
+		if (!fluorescentDevice[from].equals(fluorescentDevice[to]) || !fluorescentSetting[from].equalsIgnoreCase(fluorescentSetting[to])) {
+			cost += settler.getSwitchTime(fluorescentDevice[to], DEFAULT_SWITCH_TIME);
+		}
+		if (!transmittedDevice[from].equals(transmittedDevice[to]) || !transmittedSetting[from].equalsIgnoreCase(transmittedSetting[to])) {
+			cost += settler.getSwitchTime(transmittedDevice[to], DEFAULT_SWITCH_TIME);
+		}
+		return cost;
+	}
+}
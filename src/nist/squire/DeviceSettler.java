@@ -0,0 +1,244 @@
+package nist.squire;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import ij.IJ;
+import mmcorej.CMMCore;
+
+//This class handles all of the waiting on microscope hardware during a capture run. Devices
+//	are polled instead of blocking inside the core, so every wait can be cancelled from the
+//	Stop button. Commands that do not take effect are retried with an exponential back-off
+//	and the time each device takes to settle is recorded so that it can be reused later.
+public class DeviceSettler {
+
+	// Retry and polling settings
+	private static final int MAX_TRIES = 5;
+	private static final long INITIAL_BACKOFF = 50; //ms
+	private static final long POLL_INTERVAL = 5; //ms
+	private static final long DEVICE_TIMEOUT = 30000; //ms
+	private static final double LEARN_RATE = 0.3;
+
+	// Settings for deciding when the illumination is stable after opening a shutter
+	private static final long ILLUMINATION_POLL = 100; //ms
+	private static final double ILLUMINATION_TOLERANCE = 0.002;
+	private static final int ILLUMINATION_STABLE_COUNT = 3;
+	// Exposure stability is judged at, the shortest one calibration uses
+	private static final double ILLUMINATION_EXPOSURE = 1; //ms
+
+	private CMMCore core_;
+	private HashMap<String, Double> switchTime = new HashMap<String, Double>();
+	private double illuminationSettleTime = 0;
+
+	public DeviceSettler(CMMCore core) {
+		core_ = core;
+	}
+
+	public void setLabel(String device, String label) throws Exception {
+		setLabels(new String[] {device}, new String[] {label});
+	}
+
+	public void setLabels(String[] devices, String[] labels) throws Exception {
+		/*
+		 *  Sets the "Label" property on each state device and waits for all of them to finish
+		 *  moving. All commands are issued before waiting so that devices move at the same time.
+		 *  If a device does not report the requested label once it has stopped moving, the
+		 *  command is sent again after waiting 50ms, 100ms, 200ms, etc.
+		 */
+		long backoff = INITIAL_BACKOFF;
+		for (int attempt = 1; ; attempt++) {
+			checkCancel();
+			ArrayList<String> pending = new ArrayList<String>();
+			for (int i = 0; i<devices.length; i++) {
+				if (!hasLabel(devices[i], labels[i]) && !pending.contains(devices[i])) {
+					try {
+						core_.setProperty(devices[i], "Label", labels[i]);
+						pending.add(devices[i]);
+					} catch (Exception e) {
+						IJ.log("Unable to set " + devices[i] + " to " + labels[i] + ": " + e.getMessage());
+					}
+				}
+			}
+			awaitDevices(pending);
+
+			boolean isSet = true;
+			for (int i = 0; i<devices.length; i++) {
+				if (!hasLabel(devices[i], labels[i])) {
+					isSet = false;
+					IJ.log("Current " + devices[i] + " setting: " + getLabel(devices[i]) + ", expected: " + labels[i]);
+				}
+			}
+			if (isSet) {
+				return;
+			}
+			if (attempt>=MAX_TRIES) {
+				throw new Exception("Hardware did not reach the requested setting after " + MAX_TRIES + " attempts.");
+			}
+			IJ.log("Retrying in " + backoff + "ms...");
+			sleep(backoff);
+			backoff *= 2;
+		}
+	}
+
+	public void setShutter(String shutter, boolean open) throws Exception {
+		/*
+		 *  Makes the indicated shutter the active shutter and opens or closes it. If a different
+		 *  shutter is currently active and open, it is closed first.
+		 */
+		checkCancel();
+		if (!core_.getShutterDevice().equals(shutter)) {
+			if (core_.getShutterOpen()) {
+				String oldShutter = core_.getShutterDevice();
+				core_.setShutterOpen(false);
+				awaitDevice(oldShutter);
+			}
+			core_.setShutterDevice(shutter);
+		}
+		if (core_.getShutterOpen()!=open) {
+			core_.setShutterOpen(open);
+			awaitDevice(shutter);
+		}
+	}
+
+	public void awaitDevice(String device) throws Exception {
+		ArrayList<String> pending = new ArrayList<String>();
+		pending.add(device);
+		awaitDevices(pending);
+	}
+
+	public void awaitDevices(ArrayList<String> devices) throws Exception {
+		/*
+		 *  Polls each device until it is no longer busy. The time each device was busy is
+		 *  recorded as a running average so that switch times can be estimated later.
+		 */
+		long startTime = System.currentTimeMillis();
+		ArrayList<String> pending = new ArrayList<String>(devices);
+		while (!pending.isEmpty()) {
+			long elapsed = System.currentTimeMillis() - startTime;
+			for (int i = pending.size()-1; i>=0; i--) {
+				if (!core_.deviceBusy(pending.get(i))) {
+					learnSwitchTime(pending.remove(i), elapsed);
+				}
+			}
+			if (pending.isEmpty()) {
+				break;
+			}
+			if (elapsed>DEVICE_TIMEOUT) {
+				throw new Exception("Timed out waiting for " + pending.get(0) + " to finish moving.");
+			}
+			sleep(POLL_INTERVAL);
+		}
+	}
+
+	public void awaitSystem() throws Exception {
+		long startTime = System.currentTimeMillis();
+		while (core_.systemBusy()) {
+			if (System.currentTimeMillis() - startTime > DEVICE_TIMEOUT) {
+				throw new Exception("Timed out waiting for the microscope to finish moving.");
+			}
+			sleep(POLL_INTERVAL);
+		}
+		checkCancel();
+	}
+
+	public void settleIllumination() throws Exception {
+		/*
+		 *  Waits for the light source to stabilize after a shutter has been opened. Images are
+		 *  snapped until the mean intensity changes by less than 0.2% three times in a row, up to
+		 *  the maximum settle time set in AppParams. The first check is made after the settle time
+		 *  measured the last time this method was called. Images are snapped at a short fixed
+		 *  exposure, since a saturated image would look stable whatever the light does, and the
+		 *  exposure the camera had is restored afterwards.
+		 */
+		long startTime = System.currentTimeMillis();
+		long maxTime = AppParams.getIlluminationSettleTime();
+		sleep((long) Math.min(illuminationSettleTime, maxTime));
+
+		double previousExposure = core_.getExposure();
+		core_.setExposure(ILLUMINATION_EXPOSURE);
+		try {
+			double oldMean = snapMean();
+			int stableCount = 0;
+			while (stableCount<ILLUMINATION_STABLE_COUNT && System.currentTimeMillis()-startTime<maxTime) {
+				sleep(ILLUMINATION_POLL);
+				double newMean = snapMean();
+				if (oldMean>0 && Math.abs(newMean-oldMean)/oldMean<ILLUMINATION_TOLERANCE) {
+					stableCount++;
+				} else {
+					stableCount = 0;
+				}
+				oldMean = newMean;
+			}
+		} finally {
+			core_.setExposure(previousExposure);
+		}
+
+		long elapsed = System.currentTimeMillis() - startTime;
+		illuminationSettleTime = (illuminationSettleTime==0) ? elapsed : (1-LEARN_RATE)*illuminationSettleTime + LEARN_RATE*elapsed;
+		IJ.log("Illumination settled in " + elapsed + "ms");
+	}
+
+	// Returns the learned time in milliseconds for a device to finish moving, or the default value if the device has not been used.
+	public double getSwitchTime(String device, double defaultTime) {
+		Double time = switchTime.get(device);
+		return (time==null) ? defaultTime : time;
+	}
+
+	public boolean hasLabel(String device, String label) {
+		String current = getLabel(device);
+		return current!=null && current.equalsIgnoreCase(label);
+	}
+
+	private String getLabel(String device) {
+		try {
+			return core_.getProperty(device, "Label");
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private void learnSwitchTime(String device, long elapsed) {
+		Double time = switchTime.get(device);
+		if (time==null) {
+			switchTime.put(device, (double) elapsed);
+		} else {
+			switchTime.put(device, (1-LEARN_RATE)*time + LEARN_RATE*elapsed);
+		}
+	}
+
+	// Snaps one image and returns its mean intensity.
+	double snapMean() throws Exception {
+		core_.snapImage();
+		Object pixels = core_.getImage();
+		double mean = 0;
+		if (pixels instanceof short[]) {
+			short[] spixels = (short[]) pixels;
+			for (int i = 0; i<spixels.length; i++) {
+				mean += spixels[i] & 0xffff;
+			}
+			mean /= spixels.length;
+		} else if (pixels instanceof byte[]) {
+			byte[] bpixels = (byte[]) pixels;
+			for (int i = 0; i<bpixels.length; i++) {
+				mean += bpixels[i] & 0xff;
+			}
+			mean /= bpixels.length;
+		}
+		return mean;
+	}
+
+	// Sleeps for the indicated time, but wakes up when the capture is canceled.
+	public static void sleep(long millis) throws InterruptedException {
+		checkCancel();
+		if (millis>0) {
+			Thread.sleep(millis);
+		}
+		checkCancel();
+	}
+
+	public static void checkCancel() throws InterruptedException {
+		if (AppParams.getInstance().getStop() || Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException("canceled");
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package nist.squire;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import ij.IJ;
+import mmcorej.CMMCore;
+
+//This class watches the light source for drift while a plate is imaged, so stability does not
+//	have to be established in a separate benchmark before the run. Whenever a probe is due, it
+//	waits for the plate run to offer the microscope between wells, moves to the blank reference
+//	position the run was calibrated at, snaps a few frames and puts everything back the way it
+//	was. The drift of each probe is the absorbance of its mean intensity against the mean of the
+//	previous probes with the same filters, and the microscope is marked stable with the same
+//	fluctuation and equilibrium limits as the benchmark. Probes and captured wells are written to
+//	a log in the run folder, so every well can be matched to the stability at the time.
+public class DriftMonitor implements Runnable {
+
+	public static final String FILE_NAME = "Drift Monitor.csv";
+	private static final String OWNER = "Drift monitor";
+	// Frames averaged for each probe
+	private static final int PROBE_FRAMES = 3;
+	// Number of probes the stability decision is based on, the same as the benchmark
+	private static final int HISTORY = 7;
+
+	private CMMCore core_;
+	private DeviceSettler settler;
+	private ScopeArbiter arbiter;
+	private RunConfig config;
+	private double referenceX;
+	private double referenceY;
+	private long interval;
+	private long startTime = System.currentTimeMillis();
+	private HashMap<String, Double> probeExposure = new HashMap<String, Double>();
+	private HashMap<String, ArrayList<Double>> probeMeans = new HashMap<String, ArrayList<Double>>();
+	private ArrayList<Double> drift = new ArrayList<Double>();
+	private PrintWriter log;
+	private Thread thread;
+	private volatile boolean running = true;
+	private boolean probeRequested = false;
+
+	public DriftMonitor(CMMCore core, ScopeArbiter arbiter, RunConfig config, double referenceX, double referenceY) throws IOException {
+		core_ = core;
+		settler = new DeviceSettler(core);
+		this.arbiter = arbiter;
+		this.config = config;
+		this.referenceX = referenceX;
+		this.referenceY = referenceY;
+		interval = AppParams.getDriftProbeInterval();
+
+		// A resumed run adds to the log of the run it continues.
+		File file = new File(config.getOutDir() + FILE_NAME);
+		boolean isNew = !file.exists();
+		log = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+		if (isNew) {
+			log.println("Time (s),Event,Well,Channel,Exposure,Mean,Drift,Stable");
+		}
+		log.flush();
+	}
+
+	public void start() {
+		thread = new Thread(this, OWNER);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		/*
+		 *  Stops probing and closes the log. Must be called by the thread that holds the
+		 *  microscope, so a probe can not be in progress.
+		 */
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		if (thread!=null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			log.close();
+		}
+	}
+
+	// Asks for a probe as soon as the microscope is offered, instead of when the next one is due.
+	public synchronized void requestProbe() {
+		probeRequested = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (awaitProbe()) {
+				arbiter.acquire(OWNER);
+				try {
+					probe();
+				} finally {
+					arbiter.release();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped with the run
+		} catch (Exception e) {
+			IJ.log("Drift monitor stopped: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	private synchronized boolean awaitProbe() throws InterruptedException {
+		long due = System.currentTimeMillis() + interval;
+		while (running && !probeRequested) {
+			long wait = due - System.currentTimeMillis();
+			if (wait<=0) {
+				break;
+			}
+			wait(wait);
+		}
+		probeRequested = false;
+		return running;
+	}
+
+	private void probe() throws Exception {
+		/*
+		 *  Measures the light at the reference position. The filters are left where the plate
+		 *  run put them, so each filter combination is compared only with itself, always at the
+		 *  exposure it was first probed at.
+		 */
+		double x = core_.getXPosition();
+		double y = core_.getYPosition();
+		double z = core_.getPosition();
+		double exposure = core_.getExposure();
+		String shutter = core_.getShutterDevice();
+		boolean isOpen = core_.getShutterOpen();
+
+		String key = getLabel(config.getFluorescentDevice(0)) + "/" + getLabel(config.getTransmittedDevice(0));
+		Double keyExposure = probeExposure.get(key);
+		if (keyExposure==null) {
+			keyExposure = exposure;
+			probeExposure.put(key, keyExposure);
+		}
+
+		double mean = 0;
+		try {
+			core_.setXYPosition(referenceX, referenceY);
+			settler.awaitSystem();
+			core_.setExposure(keyExposure);
+			if (config.hasAutoShutter()) {
+				boolean isLit = isOpen && shutter.equals(config.getTransmittedShutter());
+				settler.setShutter(config.getTransmittedShutter(), true);
+				if (!isLit) {
+					settler.settleIllumination();
+				}
+			}
+			for (int i = 0; i<PROBE_FRAMES; i++) {
+				mean += settler.snapMean();
+			}
+			mean /= PROBE_FRAMES;
+		} finally {
+			if (config.hasAutoShutter()) {
+				settler.setShutter(shutter, isOpen);
+			}
+			core_.setExposure(exposure);
+			core_.setXYPosition(x, y);
+			core_.setPosition(z);
+			settler.awaitSystem();
+		}
+		record(key, keyExposure, mean);
+	}
+
+	private synchronized void record(String key, double exposure, double mean) {
+		ArrayList<Double> means = probeMeans.get(key);
+		if (means==null) {
+			means = new ArrayList<Double>();
+			probeMeans.put(key, means);
+		}
+		double current = 0;
+		if (!means.isEmpty() && mean>0) {
+			current = -Math.log10(mean/average(means));
+		}
+		means.add(mean);
+		drift.add(current);
+		if (means.size()>HISTORY) {
+			means.remove(0);
+		}
+		if (drift.size()>HISTORY) {
+			drift.remove(0);
+		}
+
+		if (drift.size()>=HISTORY) {
+			double maxDrift = 0;
+			for (double d : drift) {
+				maxDrift = Math.max(maxDrift, Math.abs(d));
+			}
+			boolean isStable = maxDrift<AppParams.getFluctuation() && Math.abs(average(drift))<AppParams.getEquilibrium();
+			if (isStable!=AppParams.getStable()) {
+				AppParams.setStable(isStable);
+				IJ.log(isStable ? "Microscope is stable!" : "Microscope is unstable, drift " + IJ.d2s(current, 6) + " at the last probe.");
+			}
+		}
+		writeRow("Probe", "", key, exposure, mean, current);
+	}
+
+	// Records that a well was captured, along with the stability at the time.
+	public synchronized void annotate(String well, String channel) {
+		writeRow("Well", well, channel, Double.NaN, Double.NaN, drift.isEmpty() ? Double.NaN : drift.get(drift.size()-1));
+	}
+
+	private void writeRow(String event, String well, String channel, double exposure, double mean, double value) {
+		log.println(IJ.d2s((System.currentTimeMillis()-startTime)/1000.0, 1) + "," + event + "," + well + "," + channel + ","
+				+ (Double.isNaN(exposure) ? "" : Double.toString(exposure)) + "," + (Double.isNaN(mean) ? "" : IJ.d2s(mean, 2)) + ","
+				+ (Double.isNaN(value) ? "" : IJ.d2s(value, 6)) + "," + AppParams.getStable());
+		log.flush();
+	}
+
+	private String getLabel(String device) {
+		try {
+			return core_.getProperty(device, "Label");
+		} catch (Exception e) {
+			return "";
+		}
+	}
+
+	private static double average(ArrayList<Double> values) {
+		double sum = 0;
+		for (double value : values) {
+			sum += value;
+		}
+		return sum/values.size();
+	}
+}
@@ -0,0 +1,192 @@
+package nist.squire;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+//This class computes the CRC32 of a file while it is being written, so the progress journal can
+//	record a saved image without reading it back from disk. It gives the same checksum as
+//	ProgressJournal.checksum would by reading the finished file. Bytes are expected mostly in
+//	file order; skipped bytes count as zeros, and bytes that are written again over earlier ones,
+//	such as directory offsets a TIFF writer fills in later, are folded in with the CRC combine
+//	operator when the checksum is read. A Folder combines the checksums of files written in any
+//	order into the checksum of the folder holding them.
+public class FileChecksum {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final byte[] ZEROS = new byte[BUFFER_SIZE];
+
+	private CRC32 crc = new CRC32();
+	private long length;
+	// Each overwrite as {CRC of the new bytes xor CRC of the old bytes, offset just past them}
+	private ArrayList<long[]> overwrites = new ArrayList<long[]>();
+	private byte[] buffer;
+
+	// Number of bytes in the file so far.
+	public long length() {return length;}
+
+	public void update(long offset, byte[] data, int start, int count) {
+		// Adds bytes written at offset, at or past the end of the file so far.
+		if (offset<length) {
+			throw new IllegalArgumentException("Bytes written over earlier ones need their previous value.");
+		}
+		skipTo(offset);
+		crc.update(data, start, count);
+		length += count;
+	}
+
+	public void update(long offset, ByteBuffer data) {
+		// Adds the remaining bytes of a buffer written at offset, without moving its position.
+		if (buffer==null) {
+			buffer = new byte[BUFFER_SIZE];
+		}
+		ByteBuffer bytes = data.duplicate();
+		while (bytes.hasRemaining()) {
+			int n = Math.min(buffer.length, bytes.remaining());
+			bytes.get(buffer, 0, n);
+			update(offset, buffer, 0, n);
+			offset += n;
+		}
+	}
+
+	public void overwrite(long offset, byte[] previous, byte[] data) {
+		/*
+		 *  Records that bytes already in the file were replaced. Changing a run of bytes followed
+		 *  by tail bytes changes the CRC of the file by the CRC of the change, carried through the
+		 *  tail, so only the change and where it ends need to be kept.
+		 */
+		if (offset+data.length>length || previous.length!=data.length) {
+			throw new IllegalArgumentException("Only bytes already in the file can be overwritten.");
+		}
+		overwrites.add(new long[] {crc(data, data.length) ^ crc(previous, previous.length), offset+data.length});
+	}
+
+	public long getValue() {
+		long value = crc.getValue();
+		for (long[] change : overwrites) {
+			value ^= combine(change[0], 0, length-change[1]);
+		}
+		return value;
+	}
+
+	// Checksum in the form the progress journal records.
+	@Override
+	public String toString() {return Long.toHexString(getValue());}
+
+	private void skipTo(long offset) {
+		while (length<offset) {
+			int n = (int) Math.min(ZEROS.length, offset-length);
+			crc.update(ZEROS, 0, n);
+			length += n;
+		}
+	}
+
+	static long crc(byte[] data, int count) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, count);
+		return crc.getValue();
+	}
+
+	static long combine(long crc1, long crc2, long length2) {
+		/*
+		 *  CRC32 of two blocks of bytes one after the other, from the CRC32 of each and the length
+		 *  of the second, as in zlib. The first CRC is carried through length2 zero bytes by
+		 *  squaring the operator for one zero bit, one power of two of the length at a time.
+		 */
+		if (length2<=0) {
+			return crc1;
+		}
+		long[] even = new long[32];
+		long[] odd = new long[32];
+		odd[0] = 0xedb88320L;
+		long row = 1;
+		for (int n = 1; n<32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);
+		square(odd, even);
+		do {
+			square(even, odd);
+			if ((length2 & 1)!=0) {
+				crc1 = times(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2==0) {
+				break;
+			}
+			square(odd, even);
+			if ((length2 & 1)!=0) {
+				crc1 = times(odd, crc1);
+			}
+			length2 >>= 1;
+		} while (length2!=0);
+		return crc1 ^ crc2;
+	}
+
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector!=0; i++, vector >>>= 1) {
+			if ((vector & 1)!=0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n<32; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+
+	//This class collects the checksums of the files in a folder as they are written, in any order
+	//	and from any thread, and combines them the way ProgressJournal.checksum reads a folder: the
+	//	name and then the contents of each entry, in name order, going into subfolders.
+	public static class Folder {
+
+		private TreeMap<String, Object> entries = new TreeMap<String, Object>();
+
+		public synchronized void add(String relativePath, long crc, long length) {
+			// Adds a file, with "/" between the names of the subfolders it is in.
+			Folder folder = this;
+			String[] names = relativePath.split("/");
+			for (int i = 0; i<names.length-1; i++) {
+				Object entry = folder.entries.get(names[i]);
+				if (!(entry instanceof Folder)) {
+					entry = new Folder();
+					folder.entries.put(names[i], entry);
+				}
+				folder = (Folder) entry;
+			}
+			folder.entries.put(names[names.length-1], new long[] {crc, length});
+		}
+
+		public synchronized String getValue() {return Long.toHexString(combined()[0]);}
+
+		private long[] combined() {
+			// CRC and length of everything read for this folder.
+			long crc = 0;
+			long length = 0;
+			for (Map.Entry<String, Object> entry : entries.entrySet()) {
+				byte[] name = utf8(entry.getKey());
+				crc = combine(crc, crc(name, name.length), name.length);
+				long[] contents = (entry.getValue() instanceof Folder) ? ((Folder) entry.getValue()).combined() : (long[]) entry.getValue();
+				crc = combine(crc, contents[0], contents[1]);
+				length += name.length + contents[1];
+			}
+			return new long[] {crc, length};
+		}
+
+		private static byte[] utf8(String text) {
+			try {
+				return text.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				return text.getBytes();
+			}
+		}
+	}
+}
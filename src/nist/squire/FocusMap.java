@@ -0,0 +1,189 @@
+package nist.squire;
+
+import java.util.ArrayList;
+
+//This class predicts the focus position anywhere on a plate from the focus positions found by
+//	autofocus at earlier wells. A plane is fit to the focused positions, and once there are enough
+//	wells a quadratic surface is fit instead so that plate bowing is captured. Full autofocus is
+//	only needed until the surface is trusted, then every few wells to check that the prediction is
+//	still within tolerance. When a check fails, autofocus is run at every well until a prediction
+//	passes again. Positions outside the area already focused are always autofocused, since the
+//	surface cannot be trusted far from the points it was fit to.
+public class FocusMap {
+
+	// Number of focus points needed before a plane or quadratic surface is fit
+	private static final int MIN_PLANE_POINTS = 3;
+	private static final int MIN_QUADRATIC_POINTS = 12;
+	// Small value added to the fit so that positions along a single row can still be fit
+	private static final double RIDGE = 1e-9;
+	// How far past the focused area a prediction is allowed, as a fraction of the area size
+	private static final double EXTRAPOLATION = 0.25;
+
+	private double tolerance;
+	private int verifyInterval;
+	private ArrayList<double[]> points = new ArrayList<double[]>();
+	private double[] coef;
+	private double centerX;
+	private double centerY;
+	private double scale = 1;
+	private double rms;
+	private double minX = Double.POSITIVE_INFINITY;
+	private double maxX = Double.NEGATIVE_INFINITY;
+	private double minY = Double.POSITIVE_INFINITY;
+	private double maxY = Double.NEGATIVE_INFINITY;
+	private boolean reliable = false;
+	private int numPredicted = 0;
+
+	// Tolerance is in the units of the focus device. A prediction is checked with autofocus after verifyInterval predicted wells.
+	public FocusMap(double tolerance, int verifyInterval) {
+		this.tolerance = tolerance;
+		this.verifyInterval = Math.max(1, verifyInterval);
+	}
+
+	public boolean needsAutofocus(double x, double y) {
+		if (coef==null || !reliable || numPredicted>=verifyInterval) {
+			return true;
+		}
+		double marginX = EXTRAPOLATION*(maxX-minX);
+		double marginY = EXTRAPOLATION*(maxY-minY);
+		return x<minX-marginX || x>maxX+marginX || y<minY-marginY || y>maxY+marginY;
+	}
+
+	public double predict(double x, double y) {
+		if (coef==null) {
+			return Double.NaN;
+		}
+		double[] terms = terms(x, y, coef.length);
+		double z = 0;
+		for (int k = 0; k<coef.length; k++) {
+			z += coef[k]*terms[k];
+		}
+		return z;
+	}
+
+	// Records that a predicted focus position was used instead of autofocus.
+	public void usePrediction() {
+		numPredicted++;
+	}
+
+	public double addPoint(double x, double y, double z) {
+		/*
+		 *  Adds a focus position found by autofocus and refits the surface. Returns the difference
+		 *  between the focused and predicted position, or NaN if there was no prediction yet. The
+		 *  surface is trusted when the prediction was within tolerance and the fit residuals are
+		 *  smaller than the tolerance.
+		 */
+		double residual = Double.NaN;
+		if (coef!=null) {
+			residual = z - predict(x, y);
+			reliable = Math.abs(residual)<=tolerance;
+		}
+		points.add(new double[] {x, y, z});
+		minX = Math.min(minX, x);
+		maxX = Math.max(maxX, x);
+		minY = Math.min(minY, y);
+		maxY = Math.max(maxY, y);
+		numPredicted = 0;
+		fit();
+		if (rms>tolerance) {
+			reliable = false;
+		}
+		return residual;
+	}
+
+	public int getNumPoints() {return points.size();}
+
+	public double getRMS() {return rms;}
+
+	private void fit() {
+		/*
+		 *  Least squares fit of the surface to the focus points. Positions are centered and scaled
+		 *  before fitting to keep the normal equations well conditioned.
+		 */
+		int n = points.size();
+		if (n<MIN_PLANE_POINTS) {
+			return;
+		}
+		int numTerms = (n>=MIN_QUADRATIC_POINTS) ? 6 : 3;
+
+		centerX = 0;
+		centerY = 0;
+		for (double[] p : points) {
+			centerX += p[0];
+			centerY += p[1];
+		}
+		centerX /= n;
+		centerY /= n;
+		scale = 0;
+		for (double[] p : points) {
+			scale = Math.max(scale, Math.max(Math.abs(p[0]-centerX), Math.abs(p[1]-centerY)));
+		}
+		if (scale==0) {
+			scale = 1;
+		}
+
+		double[][] a = new double[numTerms][numTerms+1];
+		for (double[] p : points) {
+			double[] t = terms(p[0], p[1], numTerms);
+			for (int r = 0; r<numTerms; r++) {
+				for (int c = 0; c<numTerms; c++) {
+					a[r][c] += t[r]*t[c];
+				}
+				a[r][numTerms] += t[r]*p[2];
+			}
+		}
+		for (int r = 1; r<numTerms; r++) {
+			a[r][r] += RIDGE*n;
+		}
+		coef = solve(a, numTerms);
+
+		double sumSq = 0;
+		for (double[] p : points) {
+			double d = p[2] - predict(p[0], p[1]);
+			sumSq += d*d;
+		}
+		rms = Math.sqrt(sumSq/Math.max(1, n-numTerms));
+	}
+
+	private double[] terms(double x, double y, int numTerms) {
+		double u = (x-centerX)/scale;
+		double v = (y-centerY)/scale;
+		if (numTerms==3) {
+			return new double[] {1, u, v};
+		}
+		return new double[] {1, u, v, u*u, u*v, v*v};
+	}
+
+	private static double[] solve(double[][] a, int n) {
+		// Gaussian elimination with partial pivoting on the augmented matrix.
+		for (int col = 0; col<n; col++) {
+			int pivot = col;
+			for (int r = col+1; r<n; r++) {
+				if (Math.abs(a[r][col])>Math.abs(a[pivot][col])) {
+					pivot = r;
+				}
+			}
+			double[] temp = a[col];
+			a[col] = a[pivot];
+			a[pivot] = temp;
+			if (a[col][col]==0) {
+				continue;
+			}
+			for (int r = col+1; r<n; r++) {
+				double f = a[r][col]/a[col][col];
+				for (int c = col; c<=n; c++) {
+					a[r][c] -= f*a[col][c];
+				}
+			}
+		}
+		double[] x = new double[n];
+		for (int r = n-1; r>=0; r--) {
+			double sum = a[r][n];
+			for (int c = r+1; c<n; c++) {
+				sum -= a[r][c]*x[c];
+			}
+			x[r] = (a[r][r]==0) ? 0 : sum/a[r][r];
+		}
+		return x;
+	}
+}
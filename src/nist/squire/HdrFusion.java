@@ -0,0 +1,108 @@
+package nist.squire;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+//This class combines the exposures of a well into one high dynamic range image. It runs after
+//	capture, when the absorbance processor works through a captured well (or a saved one being
+//	reprocessed): fuse folds the replicate mean of each exposure in, one exposure at a time, so
+//	only two running sums per pixel are kept however many exposures there are. Every exposure
+//	where a pixel is usable, inside the pixel range, not saturated in any replicate and not a
+//	defective pixel of the camera, contributes its dark corrected intensity scaled back to the
+//	first exposure. Contributions are weighted by the inverse of their variance, taken from the
+//	noise model of the light blank, so the longer, less noisy exposures count the most. The result
+//	is the fused intensity at the first exposure and its standard deviation; pixels that no
+//	exposure suits are NaN in both.
+public class HdrFusion {
+
+	private final CalibrationModel noise;
+	private final float[] dark;
+	private final PixelMask defects;
+	private final double minPix;
+	private final double maxPix;
+	private final double[] weights;
+	private final double[] weighted;
+	private int exposures;
+
+	public HdrFusion(CalibrationModel noise, float[] dark, PixelMask defects, double minPix, double maxPix) {
+		this.noise = noise;
+		this.dark = dark;
+		this.defects = defects;
+		this.minPix = minPix;
+		this.maxPix = maxPix;
+		weights = new double[dark.length];
+		weighted = new double[dark.length];
+	}
+
+	public static HdrFusion fuse(ImageStats sample, ImageStats dark, CalibrationModel noise, PixelMask defects, double minPix, double maxPix) {
+		/*
+		 *  Fuses every exposure of a sample captured with threshCaptureSeries, where the exposure
+		 *  doubles from one frame to the next.
+		 */
+		HdrFusion fusion = new HdrFusion(noise, (float[]) dark.getFrameMean().getProcessor().getPixels(), defects, minPix, maxPix);
+		ImageStack means = sample.getFrameMean().getStack();
+		for (int j = 0; j<means.getSize(); j++) {
+			fusion.addExposure((float[]) means.getPixels(j+1), sample.nSlices, sample.getSaturatedMask(j), Math.pow(2, j));
+		}
+		return fusion;
+	}
+
+	public void addExposure(float[] mean, int replicates, PixelMask saturated, double scale) {
+		/*
+		 *  Folds in the replicate mean of one exposure, taken at scale times the first exposure.
+		 *  The variance of a mean of n replicates is sigma^2/n, with sigma the deviation the noise
+		 *  model expects at that intensity, and dividing by the scale divides it by scale^2. If the
+		 *  model has no estimate, shot noise is assumed.
+		 */
+		PixelMask usable = new PixelMask(mean.length);
+		usable.setAll();
+		usable.andNot(saturated);
+		if (defects!=null) {
+			usable.andNot(defects);
+		}
+		long[] words = usable.words;
+		for (int w = 0; w<words.length; w++) {
+			long bits = words[w];
+			while (bits!=0) {
+				int k = (w << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits-1;
+				double intensity = mean[k];
+				if (!(intensity>=minPix && intensity<=maxPix)) {
+					continue;
+				}
+				double sigma = noise.stdEst(intensity);
+				double variance = (sigma>0) ? sigma*sigma : Math.max(intensity, 1);
+				double weight = replicates*scale*scale/variance;
+				weights[k] += weight;
+				weighted[k] += weight*(intensity-dark[k])/scale;
+			}
+		}
+		exposures++;
+	}
+
+	// Number of exposures folded in so far.
+	public int getExposures() {return exposures;}
+
+	public float[] getIntensity() {
+		float[] intensity = new float[weights.length];
+		for (int k = 0; k<intensity.length; k++) {
+			intensity[k] = (weights[k]>0) ? (float) (weighted[k]/weights[k]) : Float.NaN;
+		}
+		return intensity;
+	}
+
+	public float[] getUncertainty() {
+		float[] uncertainty = new float[weights.length];
+		for (int k = 0; k<uncertainty.length; k++) {
+			uncertainty[k] = (weights[k]>0) ? (float) Math.sqrt(1/weights[k]) : Float.NaN;
+		}
+		return uncertainty;
+	}
+
+	// Fused intensity and its uncertainty as images of the given size.
+	public ImagePlus[] getImages(String name, int width, int height) {
+		return new ImagePlus[] {new ImagePlus(name, new FloatProcessor(width, height, getIntensity())),
+				new ImagePlus(name, new FloatProcessor(width, height, getUncertainty()))};
+	}
+}
@@ -0,0 +1,92 @@
+package nist.squire;
+
+import ij.ImagePlus;
+import mmcorej.CMMCore;
+
+//This class describes the size and bit depth of images, so that image statistics can be
+//	calculated without asking the camera. Images captured by SimpleCapture carry the geometry of
+//	the camera that captured them, while images opened from files or made up for testing are
+//	described from the image itself. The camera bit depth (for example 12 or 14) is kept separate
+//	from the bit depth the pixels are stored in, since exposure planning depends on the former.
+//	The geometry also holds the region and stride the calibration curves of the images are
+//	sampled from, so statistics are worked out with the settings of the run the images belong to.
+//	Unless they are set, every pixel is sampled.
+public class ImageGeometry {
+
+	// Key of the ImagePlus property that holds the geometry of a captured image
+	public static final String PROPERTY = "SQuIRE.ImageGeometry";
+
+	private final int width;
+	private final int height;
+	private final int bitDepth;
+	private final int imageBitDepth;
+	private final int calibrationRoi;
+	private final int calibrationStride;
+
+	public ImageGeometry(int width, int height, int bitDepth) {
+		this(width, height, bitDepth, 100, 1);
+	}
+
+	public ImageGeometry(int width, int height, int bitDepth, int calibrationRoi, int calibrationStride) {
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		// ImageJ holds 12 and 14 bit images as 16 bit images
+		this.imageBitDepth = (bitDepth>8 && bitDepth<=16) ? 16 : bitDepth;
+		this.calibrationRoi = calibrationRoi;
+		this.calibrationStride = calibrationStride;
+	}
+
+	// Geometry of the images the camera currently produces.
+	public static ImageGeometry forCamera(CMMCore core) {
+		return new ImageGeometry((int) core.getImageWidth(), (int) core.getImageHeight(), (int) core.getImageBitDepth());
+	}
+
+	public static ImageGeometry of(ImagePlus imp) {
+		/*
+		 *  Returns the geometry attached to an image when it was captured, or the geometry of the
+		 *  image itself, taking the camera bit depth to be the storage bit depth.
+		 */
+		Object geometry = imp.getProperty(PROPERTY);
+		if (geometry instanceof ImageGeometry) {
+			return (ImageGeometry) geometry;
+		}
+		return of(imp, imp.getBitDepth());
+	}
+
+	// Geometry of an image captured by a camera with a known bit depth.
+	public static ImageGeometry of(ImagePlus imp, int bitDepth) {
+		return new ImageGeometry(imp.getWidth(), imp.getHeight(), bitDepth);
+	}
+
+	// Same geometry, with the calibration curves sampled from a region (% of the frame) and stride.
+	public ImageGeometry withCalibrationSampling(int roiPercent, int stride) {
+		return new ImageGeometry(width, height, bitDepth, roiPercent, stride);
+	}
+
+	public ImagePlus attach(ImagePlus imp) {
+		imp.setProperty(PROPERTY, this);
+		return imp;
+	}
+
+	public int getWidth() {return width;}
+
+	public int getHeight() {return height;}
+
+	public int getBitDepth() {return bitDepth;}
+
+	public int getImageBitDepth() {return imageBitDepth;}
+
+	public int getCalibrationRoi() {return calibrationRoi;}
+
+	public int getCalibrationStride() {return calibrationStride;}
+
+	public CalibrationSampler getCalibrationSampler() {
+		return new CalibrationSampler(width, height, calibrationRoi, calibrationStride);
+	}
+
+	@Override
+	public String toString() {
+		return width + "x" + height + ", " + bitDepth + " bit";
+	}
+}
@@ -1,15 +1,21 @@
 package nist.squire;
 
 import java.awt.Color;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.Plot;
-import ij.measure.CurveFitter;
 import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
 import mmcorej.CMMCore;
 
 //This class holds images representing the statistical information for each pixel collected
@@ -25,6 +31,7 @@ public class ImageStats {
 	// Images and stacks associated with pixel statistics
 	public ImageStack slopeStats;
 	public ImagePlus absorbance;
+	public ImagePlus absorbanceError;
 	public ImageStack imageStatsStack;
 	public ImagePlus channelAbsorption = null;
 	private ImagePlus meanImage;
@@ -43,6 +50,25 @@ public class ImageStats {
 	public double[] deviationSet;
 	public double[] maxPixelIntensity;
 	public double[] minPixelIntensity;
+	// Fraction of the sampled pixels of each mean image that are saturated
+	public double[] saturatedFraction;
+	// Largest relative difference between the sampled and the whole-frame curves
+	private static final double SAMPLING_TOLERANCE = 0.01;
+	// Threads that summarize the frames of every ImageStats, one frame each
+	private static ExecutorService reducers;
+
+	// Pixels that saturated in any replicate of each exposure, the hot pixels of dark frames and the dead pixels of a light blank
+	private PixelMask[] saturatedMasks;
+	private PixelMask hotMask;
+	private PixelMask deadMask;
+	// Intensity histogram of the replicates of each exposure
+	private PixelHistogram[] frameHistograms;
+	// Robust spatial deviations above the median dark level that make a pixel hot
+	private static final double HOT_SIGMA = 6;
+	// Median absolute deviation of a normal distribution, in standard deviations
+	private static final double MAD_SIGMA = 0.6745;
+	// Smallest fraction of the median light response a pixel must have not to be dead
+	private static final double DEAD_FRACTION = 0.1;
 
 	// Basic image and capture settings.
 	public String name;
@@ -51,38 +77,49 @@ public class ImageStats {
 	public int height;
 	public int bitdepth;
 	public int imagebitdepth;
-	private int numReplicates = AppParams.getNumReplicates();
+	private int numReplicates;
 	public int nFrames;
 	public int nSlices;
 	public int nChannels;
 	
 	// Properties related to images captured for absorption
-	double[] standardDev;
-	double rSqr;
 	int minimumPixInt;
-	double bestExp;
-	double bestExpIntensity;
 	int numExp;
+	// Noise model and exposure plan, calculated once from the global curves
+	private CalibrationModel calibration;
 
-	// Provides access to the Micro-Manager Core API (for direct hardware
-	// control)
+	// Size and bit depth of the images, carried with the data instead of read from the camera
+	private ImageGeometry geometry;
+
+	// Camera that benchmarking captures with; images given to ImageStats do not need one
 	private CMMCore core_;
 
-	// Call this function to perform statistics on an ImagePlus object.
+	// Call this function to perform statistics on an ImagePlus object. Images captured by
+	//	SimpleCapture carry the camera geometry, other images are described from the image itself.
 	public ImageStats(ImagePlus imp) {
+		this(imp, ImageGeometry.of(imp));
+	}
+	
+	// Call this function to perform statistics on an image with a known geometry, such as a saved
+	//	image from a camera with a bit depth that is not stored in the file.
+	public ImageStats(ImagePlus imp, ImageGeometry geometry) {
 		name = imp.getTitle();
 		channelLabel = "";
 
 		rawImage = imp;
+		this.geometry = geometry;
 		setup();
 	}
 	
-	// Direct calls to this instantiation is reserved for benchmarking cameras.
-	protected ImageStats(String sample, String channel) {
-		this(new ImagePlus());
+	// Direct calls to this instantiation is reserved for benchmarking cameras. The geometry of the
+	//	camera carries the calibration sampling of the run.
+	protected ImageStats(String sample, String channel, ImageGeometry geometry) {
+		this(new ImagePlus(), geometry);
 		// Sample/channel label
 		name = sample;
 		channelLabel = channel;
+		numReplicates = AppParams.getNumReplicates();
+		core_ = AppParams.getCore_();
 		
 		System.out.println("Running pixel exposure statistics...");
 		getPixelExposureStats();
@@ -91,14 +128,11 @@ public class ImageStats {
 	}
 	
 	private void setup() {
-		// Core and image attributes
-		core_ = AppParams.getCore_();
-		width = (int) core_.getImageWidth();
-		height = (int) core_.getImageHeight();
-		bitdepth = (int) core_.getImageBitDepth();
-
-		// Make sure the bit depth is something ImageJ can handle
-		if ((bitdepth == 12) || (bitdepth==14)) {imagebitdepth=16;} else {imagebitdepth=bitdepth;}
+		// Image attributes
+		width = geometry.getWidth();
+		height = geometry.getHeight();
+		bitdepth = geometry.getBitDepth();
+		imagebitdepth = geometry.getImageBitDepth();
 
 		nFrames = rawImage.getNFrames();
 		nSlices = rawImage.getNSlices();
@@ -120,24 +154,7 @@ public class ImageStats {
 		if (nFrames==1) {
 			return 0;
 		}
-		
-		getFrameDeviation();
-		int pos = 2;
-		while (Math.abs(deviationSet[pos] - this.stdEst(intensitySet[pos]))/deviationSet[pos] < 0.05) {
-			pos++;
-			if (pos>=deviationSet.length) break;
-		}
-		pos--;
-		
-		CurveFitter cf = new CurveFitter(Arrays.copyOfRange(exposureSet, 0, pos), Arrays.copyOfRange(intensitySet, 0, pos));
-		cf.doFit(0);
-		double[] curveFitParams = cf.getParams();
-		
-		double intensity = curveFitParams[0] + curveFitParams[1]*exposure;
-		
-		double deviation = standardDev[0] + standardDev[1]*Math.sqrt(intensity);
-		
-		return (int) Math.pow(1.96*deviation / (Math.pow(2., bitdepth-11.)), 2);
+		return getCalibration().numBlankSamples(exposure);
 	}
 	
 	public double bestExposure() {
@@ -146,67 +163,14 @@ public class ImageStats {
 		 *  is the time in milliseconds where the average pixel intensity value of all pixels in an
 		 *  image are at least 3 standard deviations below the saturation point of the camera.
 		 */
-		if (bestExp!=0.0) {
-			return bestExp;
-		}
-		
-		getFrameDeviation();
-		
-		int pos = 2;
-		while (Math.abs(deviationSet[pos] - this.stdEst(intensitySet[pos]))/deviationSet[pos] < 0.05) {
-			pos++;
-			if (pos>=deviationSet.length) break;
-		}
-		pos--;
-
-		CurveFitter cf = new CurveFitter(Arrays.copyOfRange(exposureSet, 0, pos), Arrays.copyOfRange(intensitySet, 0, pos));
-		cf.doFit(0);
-		double[] curveFitParams = cf.getParams();
-		
-		double bitDepth = Math.pow(2, core_.getImageBitDepth());
-		bestExp = (bitDepth - 3*this.stdEst(bitDepth) - curveFitParams[0])/curveFitParams[1];
-		bestExpIntensity = curveFitParams[0] + curveFitParams[1]*bestExp;
-		
-		System.out.println("Intercept: " + curveFitParams[0]);
-		System.out.println("Slope: " + curveFitParams[1]);
-		System.out.println("Max value: " + bitDepth);
-		System.out.println("Estimated STD: " + this.stdEst(bitDepth));
-		
-		return bestExp;
+		return getCalibration().getBestExposure();
 	}
 	
 	public int bestExposureIntensity() {
 		/*
 		 *  This function returns the expected intensity value at the ideal exposure.
 		 */
-		if (bestExpIntensity==0.0) {
-			bestExposure();
-		}
-		return (int) bestExpIntensity;
-	}
-	
-	private double absSigma(int intensity) {
-		/*  
-		 *  This function gives an approximate standard deviation for an absorbance value based
-		 *  on the input intensity value provided.
-		 */
-		double ln = Math.log(10);
-		double dIntensity = intensity;
-		double dBestInt;
-		double dSTD;
-		if (nFrames==1) {
-			dBestInt = intensitySet[0];
-			dSTD = deviationSet[0];
-		} else {
-			dBestInt = bestExposureIntensity();
-			dSTD = this.stdEst(dBestInt);
-		}
-		double sigmaI = Math.pow(this.stdEst(dIntensity)/(dIntensity*ln), 2);
-		double sigmaIo = Math.pow(dSTD/(dBestInt*ln), 2);
-		
-		double sigmaA = Math.sqrt(sigmaI + sigmaIo);
-		
-		return sigmaA;
+		return (int) getCalibration().getBestExposureIntensity();
 	}
 		
 	public int minConfPix(int numExp) {
@@ -219,20 +183,22 @@ public class ImageStats {
 		 *  The standard deviation of absorbance values are calculated using propagation of error
 		 *  estimated by taylor expansion.
 		 */
-		double sqrtN = Math.sqrt(numExp);
-		double z = 1.96;
-		int intensity;
-		if (nFrames==1) {
-			intensity = (int) intensitySet[0];
-		} else {
-			intensity = bestExposureIntensity();
-		}
-		double test = z*this.absSigma(intensity)/sqrtN;
-		while (test < 0.01 && intensity>0) {
-			test = z*this.absSigma(--intensity)/sqrtN;
+		return getCalibration().minConfPix(numExp);
+	}
+	
+	public synchronized CalibrationModel getCalibration() {
+		/*
+		 *  Builds the calibration model the first time it is needed, and again if the exposures
+		 *  change. Reading the same exposures again from the slice labels keeps the model.
+		 */
+		if (calibration==null || !calibration.isFor(exposureSet)) {
+			getFrameDeviation();
+			if (exposureSet==null) {
+				getExposureRange();
+			}
+			calibration = new CalibrationModel(exposureSet, intensitySet, deviationSet, nFrames, bitdepth);
 		}
-		
-		return intensity;
+		return calibration;
 	}
 
 	// Performs linear regression on all pixels in an image - Last edit -> NJS 2015-08-28
@@ -254,24 +220,14 @@ public class ImageStats {
 		}
 		
 		ImageStack slopeStats = new ImageStack(width,height,3);
-		double[] intensityFit;
-		double[] exposureFit;
 		int flen = width*height;
 		float[] sPixels = new float[flen]; //Holds slope values
 		float[] iPixels = new float[flen]; //Holds y-intercept values
 		float[] rPixels = new float[flen]; //Holds r^2 values
-		float aIntercept = 0F; //Holds the mean y-intercept value
-		float aSlope = 0F; //Holds the mean slope value
-		float aR = 0F; //Holds the mean R^2 value
-		CurveFitter cf;
-		double[] curveFitParams = new double[2];
 		
-		int maxIntensity = 2;
-		while (Math.abs(deviationSet[maxIntensity] - this.stdEst(intensitySet[maxIntensity]))/deviationSet[maxIntensity] < 0.05) {
-			maxIntensity++;
-			if (maxIntensity>=deviationSet.length) break;
-		}
-		maxIntensity--;
+		// Every pixel is fitted to the global intensity curve, so the fit is made once.
+		CalibrationModel model = getCalibration();
+		int maxIntensity = model.getLinearEnd();
 		
 		System.out.println("Exposure positions: " + Integer.toString(intensitySet.length));
 		System.out.println("Max exposure position: " + Integer.toString(maxIntensity));
@@ -280,25 +236,12 @@ public class ImageStats {
 			System.out.println("Error at " + exposureSet[maxIntensity+1] + "ms exposure: " + Math.abs(deviationSet[maxIntensity+1] - this.stdEst(intensitySet[maxIntensity+1]))/deviationSet[maxIntensity+1]);
 		}
 
-		exposureFit = Arrays.copyOfRange(exposureSet, 0, maxIntensity);
-		// This should loop should be optimized.
-		for (int i=0; i<flen; i++) {
-			intensityFit = Arrays.copyOfRange(intensitySet, 0, maxIntensity);
-
-			cf = new CurveFitter(exposureFit,intensityFit);
-			cf.doFit(0);
-			curveFitParams = cf.getParams();
-			iPixels[i] = (float) curveFitParams[0];
-			sPixels[i] = (float) curveFitParams[1];
-			rPixels[i] = (float) cf.getRSquared();
-
-			aIntercept += iPixels[i];
-			aSlope += sPixels[i];
-			aR += rPixels[i];
-		}
-		aIntercept /= flen;
-		aSlope /= flen;
-		aR /= flen;
+		float aIntercept = (float) model.getIntercept(); //Holds the mean y-intercept value
+		float aSlope = (float) model.getSlope(); //Holds the mean slope value
+		float aR = (float) model.getRSquared(); //Holds the mean R^2 value
+		Arrays.fill(iPixels, aIntercept);
+		Arrays.fill(sPixels, aSlope);
+		Arrays.fill(rPixels, aR);
 
 		slopeStats.setSliceLabel("Y-Intercept", 1);
 		slopeStats.setPixels(iPixels, 1);
@@ -326,26 +269,47 @@ public class ImageStats {
 
 	// Gets Absorption values from linear regression - Last edit -> NJS 2015-08-28
 	public ImagePlus getAbsorbance(ImageStats slopeImage, ImagePlus foreground, ImageStats background) {
+		return getAbsorbance(foreground, background, new float[width*height], background.getDefectMask(slopeImage),
+				slopeImage.minConfPix(this.nSlices), (int) foreground.getStatistics().max);
+	}
+	
+	// Same as above with the pixel range already known, so wells of a channel can share it, the
+	//	variance of the foreground relative to its dark corrected square, and the defective pixels of
+	//	the camera, which are never used.
+	public ImagePlus getAbsorbance(ImagePlus foreground, ImageStats background, float[] blankVariance, PixelMask defects, int minPix, int maxPix) {
 		FloatProcessor imageHolder = new FloatProcessor(width,height);
 		getFrameMean();
 		float[] fpixels = (float[]) foreground.getProcessor().getPixels();
 		float[] bpixels = (float[]) background.getFrameMean().getProcessor().getPixels();
 		float[] spixels;
 		float[] apixels = (float[]) imageHolder.getPixels();
-		int minPix = slopeImage.minConfPix(this.nSlices);
-		int maxPix = (int) foreground.getStatistics().max;
+		float[] epixels = new float[apixels.length];
+		Arrays.fill(epixels, Float.NaN);
+		PixelKernels kernels = PixelKernels.get();
 		
-		for (int j = 0; j<rawImage.getNFrames(); j++) {
-			meanImage.setPosition(j+1);
-			spixels = (float[]) meanImage.getProcessor().getPixels();
-			for (int i=0; i<fpixels.length; i++) {
-				if (spixels[i]>=minPix && spixels[i]<=maxPix && apixels[i]==0) {
-					apixels[i] = (float) -Math.log10((spixels[i]-bpixels[i])/((fpixels[i]-bpixels[i])*(Math.pow(2, j))));
-				}
-			}
+		/*
+		 *  Each pixel takes its absorbance from the shortest exposure where its mean is between
+		 *  minPix and maxPix and none of its replicates saturated. Defective pixels are never
+		 *  used, and are left at 0 like pixels no exposure suits. The
+		 *  standard error of each absorbance comes from the replicate deviation of the same
+		 *  exposure and the blank variance, and is NaN where there is no absorbance.
+		 */
+		PixelMask remaining = new PixelMask(fpixels.length);
+		remaining.setAll();
+		remaining.andNot(defects);
+		for (int j = 0; j<rawImage.getNFrames() && !remaining.isEmpty(); j++) {
+			spixels = (float[]) meanImage.getStack().getPixels(j+1);
+			float[] dpixels = (float[]) stdImage.getStack().getPixels(j+1);
+			PixelMask rejected = getSaturatedMask(j).copy();
+			kernels.markOutside(spixels, minPix, maxPix, rejected);
+			PixelMask usable = remaining.copy();
+			usable.andNot(rejected);
+			kernels.absorbance(spixels, dpixels, nSlices, fpixels, blankVariance, bpixels, Math.pow(2, j), usable, apixels, epixels);
+			remaining.andNot(usable);
 		}
 		imageHolder.setPixels(apixels);
 		absorbance = new ImagePlus(name,imageHolder);
+		absorbanceError = new ImagePlus(name,new FloatProcessor(width,height,epixels));
 		return absorbance;
 	}
 	
@@ -373,9 +337,7 @@ public class ImageStats {
 		spixels = (float[]) slopeSample.getPixels(2);
 		apixels = new float[flen];
 
-		for (int j=0; j<flen; j++) {
-			apixels[j] = (float) -Math.log10(spixels[j]/fpixels[j]);
-		}
+		PixelKernels.get().absorbance(spixels, fpixels, apixels);
 
 		imageHolder.setPixels(apixels);
 
@@ -414,16 +376,16 @@ public class ImageStats {
 			}
 
 			//This section calculates the average of the replicates and the corresponding deviation
-			//	at each pixel.
+			//	at each pixel. The curves are summarized once all exposures are captured.
 			stdStack.addSlice(Integer.toString(exp),
-					getFrameDeviationAndMean(imcaptureTemp).getProcessor(),
+					calculateFrameDeviationAndMean(imcaptureTemp).getProcessor(),
 					i-1);
 			meanStack.addSlice(Integer.toString(exp),
 					meanImage.getProcessor(),
 					i-1);
 
 			oldDeviation = newDeviation;
-			newDeviation = getDeviationImageMean(stdImage.getProcessor());
+			newDeviation = geometry.getCalibrationSampler().summarize((float[]) stdImage.getProcessor().getPixels()).getRms();
 			
 			try {
 				if (oldDeviation>newDeviation && i>1 && core_.getShutterOpen()) {
@@ -435,25 +397,15 @@ public class ImageStats {
 		}
 		
 		ImagePlus imMeanStats = new ImagePlus(channelLabel + " Mean",meanStack);
-		ImagePlus imDeviationStats = new ImagePlus(channelLabel + " Standard Deviation",stdStack);
 		int frames = imMeanStats.getNSlices();
 
-		intensitySet = new double[frames];
-		deviationSet = new double[frames];
+		summarizeCurves(meanStack, stdStack);
 		exposureSet = new double[frames]; //get range of exposure values and image mean pixel intensities
-		maxPixelIntensity = new double[frames];
-		minPixelIntensity = new double[frames];
 		rawImage = IJ.createHyperStack(name+channelLabel, width, height, 1, numReplicates, frames, imagebitdepth);
 
 		for (int i=0; i<frames; i++) {
 			exposureSet[i] = (float) (Math.pow(2, i));
 			int exposure = (int) (exposureSet[i]);
-			imMeanStats.setPosition(i+1);
-			imDeviationStats.setPosition(i+1);
-			intensitySet[i] = getMeanImageMean(imMeanStats.getProcessor());
-			deviationSet[i] = getDeviationImageMean(imDeviationStats.getProcessor());
-			maxPixelIntensity[i] = (float) imMeanStats.getStatistics().max;
-			minPixelIntensity[i] = (float) imMeanStats.getStatistics().min;
 			for (int j = 0; j<numReplicates; j++) {
 				rawImage.setPosition(1,j+1,i+1);
 				imstackTemp.setPosition(1,j+1,i+1);
@@ -480,32 +432,95 @@ public class ImageStats {
 		return deviationPlot;
 	}
 
-	private double getMeanImageMean(ImageProcessor imp) {
-		double fMean = 0;
-		float[] fMeanPixels = (float[]) imp.getPixels();
-		
-		for (int i = 0; i<fMeanPixels.length; i++) {
-			fMean += (double) fMeanPixels[i];
+	private void summarizeCurves(ImageStack meanStack, ImageStack stdStack) {
+		/*
+		 *  Fills the global intensity and deviation curves, and the extremes of each mean image,
+		 *  from the pixels picked by the calibration sampler, reading each image once. When only
+		 *  some pixels are sampled, the brightest exposure is also measured over the whole frame
+		 *  first, and if the sample is off by more than the tolerance the whole frame is used.
+		 */
+		int frames = meanStack.getSize();
+		CalibrationSampler sampler = geometry.getCalibrationSampler();
+		if (!sampler.isFullFrame() && frames>0) {
+			CalibrationSampler fullFrame = CalibrationSampler.fullFrame(width, height);
+			float[] meanPixels = (float[]) meanStack.getPixels(frames);
+			float[] stdPixels = (float[]) stdStack.getPixels(frames);
+			double meanError = relativeError(sampler.summarize(meanPixels).getMean(), fullFrame.summarize(meanPixels).getMean());
+			double stdError = relativeError(sampler.summarize(stdPixels).getRms(), fullFrame.summarize(stdPixels).getRms());
+			if (meanError>SAMPLING_TOLERANCE || stdError>SAMPLING_TOLERANCE) {
+				IJ.log("Calibration sample of " + channelLabel + " is off by " + IJ.d2s(100*Math.max(meanError, stdError), 2) + "%, using the whole frame.");
+				sampler = fullFrame;
+			}
+		}
+
+		// Each frame is summarized on its own thread.
+		final CalibrationSampler frameSampler = sampler;
+		final double saturation = Math.pow(2, bitdepth) - 1;
+		List<Future<PixelSummary[]>> summaries = new ArrayList<Future<PixelSummary[]>>();
+		for (int i=0; i<frames; i++) {
+			final float[] meanPixels = (float[]) meanStack.getPixels(i+1);
+			final float[] stdPixels = (float[]) stdStack.getPixels(i+1);
+			Callable<PixelSummary[]> task = new Callable<PixelSummary[]>() {
+				@Override
+				public PixelSummary[] call() {
+					return new PixelSummary[] {frameSampler.summarize(meanPixels, saturation), frameSampler.summarize(stdPixels)};
+				}
+			};
+			summaries.add(getReducers().submit(task));
+		}
+
+		maxPixelIntensity = new double[frames];
+		minPixelIntensity = new double[frames];
+		saturatedFraction = new double[frames];
+		intensitySet = new double[frames];
+		deviationSet = new double[frames];
+		for (int i=0; i<frames; i++) {
+			PixelSummary[] summary = await(summaries.get(i));
+			maxPixelIntensity[i] = (float) summary[0].getMax();
+			minPixelIntensity[i] = (float) summary[0].getMin();
+			saturatedFraction[i] = summary[0].getSaturatedFraction();
+			intensitySet[i] = summary[0].getMean();
+			deviationSet[i] = summary[1].getRms();
 		}
-		fMean /= fMeanPixels.length;
-		
-		return fMean;
 	}
-	
-	private double getDeviationImageMean(ImageProcessor imp) {
-		double fDeviation = 0;
-		float[] fDeviationPixels = (float[]) imp.getPixels();
-		
-		for (int i = 0; i<fDeviationPixels.length; i++) {
-			fDeviation += (double) fDeviationPixels[i]*fDeviationPixels[i];
+
+	private static synchronized ExecutorService getReducers() {
+		if (reducers==null) {
+			reducers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Frame statistics");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
-		fDeviation /= fDeviationPixels.length;
-		fDeviation = Math.sqrt(Math.abs(fDeviation));
-		
-		return fDeviation;
+		return reducers;
+	}
+
+	private static PixelSummary[] await(Future<PixelSummary[]> summary) {
+		try {
+			return summary.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while summarizing frames", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Unable to summarize frame: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	private static double relativeError(double sample, double full) {
+		return (full==0) ? Math.abs(sample) : Math.abs(sample-full)/Math.abs(full);
 	}
 	
 	private ImagePlus getFrameDeviationAndMean(ImagePlus imp) {
+		calculateFrameDeviationAndMean(imp);
+		summarizeCurves(meanImage.getStack(), stdImage.getStack());
+		return stdImage;
+	}
+
+	// Mean and deviation images of each exposure, without summarizing them into the global curves.
+	private ImagePlus calculateFrameDeviationAndMean(ImagePlus imp) {
 
 		stdImage = new ImagePlus();
 		int frames = imp.getNFrames();
@@ -515,28 +530,42 @@ public class ImageStats {
 		ImageStack stdStack = new ImageStack(width,height);
 		
 		int flen = width*height;
+		PixelKernels kernels = PixelKernels.get();
+
+		// Camera frames are summed as unsigned 16-bit integers, which is exact and moves less memory.
+		boolean isShort = imp.getBitDepth()==16;
+		// Saturated pixels are marked and pixels counted for each exposure as its replicates are added.
+		double saturation = Math.pow(2, bitdepth) - 1;
+		PixelMask[] saturated = new PixelMask[frames];
+		PixelHistogram[] histograms = new PixelHistogram[frames];
 
 		for (int i=1; i<=frames; i++) {
-			float[] tpixel = new float[flen];
 			float[] fpixelmean = new float[flen];
-			double[] dpixelmean = new double[flen];
 			float[] fpixeldeviation = new float[flen];
-			double[] dpixeldeviation = new double[flen];
-			for (int j=1; j<=(replicates); j++) { //loop to calculate the mean
-				imp.setPosition(1,j,i);
-				tpixel = (float[]) imp.getProcessor().convertToFloat().getPixels();
-				for (int k=0; k<flen; k++) {
-					dpixeldeviation[k] += tpixel[k]*tpixel[k];
-					dpixelmean[k] += tpixel[k];
+			saturated[i-1] = new PixelMask(flen);
+			histograms[i-1] = PixelHistogram.forBitDepth(bitdepth);
+			if (isShort) {
+				int[] ipixelmean = new int[flen];
+				long[] lpixeldeviation = new long[flen];
+				for (int j=1; j<=(replicates); j++) { //loop to calculate the mean
+					imp.setPosition(1,j,i);
+					short[] frame = (short[]) imp.getProcessor().getPixels();
+					kernels.accumulate(frame, ipixelmean, lpixeldeviation);
+					kernels.markAtOrAbove(frame, (int) saturation, saturated[i-1]);
+					histograms[i-1].add(frame);
 				}
-			}
-
-			for (int j = 0; j<flen; j++) {
-				dpixelmean[j] /= replicates;
-				dpixeldeviation[j] /= replicates;
-				dpixeldeviation[j] = Math.sqrt(dpixeldeviation[j] - dpixelmean[j]*dpixelmean[j]);
-				fpixelmean[j] = (float) dpixelmean[j];
-				fpixeldeviation[j] = (float) dpixeldeviation[j];
+				kernels.finish(ipixelmean, lpixeldeviation, replicates, fpixelmean, fpixeldeviation);
+			} else {
+				double[] dpixelmean = new double[flen];
+				double[] dpixeldeviation = new double[flen];
+				for (int j=1; j<=(replicates); j++) { //loop to calculate the mean
+					imp.setPosition(1,j,i);
+					float[] frame = (float[]) imp.getProcessor().convertToFloat().getPixels();
+					kernels.accumulate(frame, dpixelmean, dpixeldeviation);
+					kernels.markAtOrAbove(frame, saturation, saturated[i-1]);
+					histograms[i-1].add(frame);
+				}
+				kernels.finish(dpixelmean, dpixeldeviation, replicates, fpixelmean, fpixeldeviation);
 			}
 			stdStack.addSlice(imp.getImageStack().getSliceLabel(imp.getCurrentSlice()),
 					new FloatProcessor(width,height,fpixeldeviation),
@@ -549,47 +578,119 @@ public class ImageStats {
 		
 		stdImage = new ImagePlus(name,stdStack);
 		meanImage = new ImagePlus(name,meanStack);
-		
-		maxPixelIntensity = new double[frames];
-		minPixelIntensity = new double[frames];
-		intensitySet = new double[frames];
-		deviationSet = new double[frames];
-		for (int i=0; i<frames; i++){
-			meanImage.setPosition(i+1);
-			stdImage.setPosition(i+1);
-			maxPixelIntensity[i] = (float) meanImage.getStatistics().max;
-			minPixelIntensity[i] = (float) meanImage.getStatistics().min;
-			intensitySet[i] = getMeanImageMean(meanImage.getProcessor());
-			deviationSet[i] = getDeviationImageMean(stdImage.getProcessor());
-		}
+		saturatedMasks = saturated;
+		frameHistograms = histograms;
 		
 		return stdImage;
 	}
 	
-	public ImagePlus getFrameDeviation() {
-		if (stdImage!=null && stdImage.getNFrames()==nFrames) {
+	// Mean and deviation images are calculated together once, and shared by every caller.
+	public synchronized ImagePlus getFrameDeviation() {
+		if (stdImage!=null && stdImage.getStackSize()==nFrames) {
 			return stdImage;
 		}
 		getFrameDeviationAndMean(rawImage);
 		return stdImage;
 	}
 
-	public ImagePlus getFrameMean() {
-		if (meanImage!=null && meanImage.getNFrames()==nFrames) {
+	public synchronized ImagePlus getFrameMean() {
+		if (meanImage!=null && meanImage.getStackSize()==nFrames) {
 			return meanImage;
 		}
 		getFrameDeviationAndMean(rawImage);
 		return meanImage;
 	}
 
-	public String getName() {return name;}
+	// Pixels that reached saturation in any replicate at the exposure with the given index.
+	public synchronized PixelMask getSaturatedMask(int frame) {
+		getFrameMean();
+		return saturatedMasks[frame];
+	}
 
-	private String getChannelLabel() {return channelLabel;}
+	// Intensities of every replicate pixel at the exposure with the given index, one bin per level.
+	public synchronized PixelHistogram getFrameHistogram(int frame) {
+		getFrameMean();
+		return frameHistograms[frame];
+	}
+
+	public synchronized PixelMask getHotMask() {
+		/*
+		 *  Hot pixels of the camera, when this holds dark frames. The dark level differs from
+		 *  pixel to pixel by more than its noise, so a hot pixel is one whose mean at the longest
+		 *  exposure is more than HOT_SIGMA spatial deviations above the median of the image. The
+		 *  spatial deviation is taken from the median absolute deviation, which the hot pixels
+		 *  themselves do not inflate. It is never taken to be less than the noise of the mean of
+		 *  a pixel, or one intensity level.
+		 */
+		if (hotMask==null) {
+			getFrameMean();
+			int last = meanImage.getStackSize();
+			float[] mean = (float[]) meanImage.getStack().getPixels(last);
+			double median = median(mean.clone());
+			float[] spread = new float[mean.length];
+			for (int k = 0; k<mean.length; k++) {
+				spread[k] = (float) Math.abs(mean[k]-median);
+			}
+			double sigma = median(spread)/MAD_SIGMA;
+			sigma = Math.max(sigma, Math.max(deviationSet[last-1]/Math.sqrt(Math.max(1, nSlices)), 1));
+			hotMask = new PixelMask(mean.length);
+			PixelKernels.get().markAtOrAbove(mean, median + HOT_SIGMA*sigma, hotMask);
+		}
+		return hotMask;
+	}
 
-	private double[] getExposureRange() {
-		if (meanImage==null) {
+	public synchronized PixelMask getDeadMask() {
+		/*
+		 *  Dead pixels of the camera, when this holds a light blank captured over a range of
+		 *  exposures. A dead pixel barely responds to light: its mean rises by less than
+		 *  DEAD_FRACTION of the median rise from the shortest exposure to the last one where
+		 *  intensity is still linear with exposure. Replicates of a dark pixel can read the same
+		 *  without it being dead, so the dark frames are not used for this.
+		 */
+		if (deadMask==null) {
 			getFrameMean();
+			ImageStack means = meanImage.getStack();
+			int last = Math.min(getCalibration().getLinearEnd(), means.getSize());
+			if (last<2) {
+				last = means.getSize();
+			}
+			float[] first = (float[]) means.getPixels(1);
+			float[] linear = (float[]) means.getPixels(last);
+			float[] response = new float[first.length];
+			for (int k = 0; k<first.length; k++) {
+				response[k] = linear[k]-first[k];
+			}
+			double threshold = DEAD_FRACTION*median(response.clone());
+			deadMask = new PixelMask(response.length);
+			if (last>1 && threshold>0) {
+				PixelKernels.get().markOutside(response, threshold, Double.POSITIVE_INFINITY, deadMask);
+			}
 		}
+		return deadMask;
+	}
+
+	public PixelMask getDefectMask(ImageStats light) {
+		// Hot pixels of these dark frames and dead pixels of the light blank, which no image can use.
+		PixelMask defects = getHotMask().copy();
+		defects.or(light.getDeadMask());
+		return defects;
+	}
+
+	private static double median(float[] values) {
+		// Sorts the values it is given.
+		Arrays.sort(values);
+		int n = values.length;
+		return (n==0) ? Double.NaN : ((n & 1)==1) ? values[n/2] : 0.5*(values[n/2-1] + values[n/2]);
+	}
+
+	public String getName() {return name;}
+	
+	public ImageGeometry getGeometry() {return geometry;}
+
+	private String getChannelLabel() {return channelLabel;}
+
+	public double[] getExposureRange() {
+		getFrameMean();
 		exposureSet = new double[nFrames];
 		for (int i = 0; i<nFrames; i++) {
 			exposureSet[i] = Float.parseFloat(meanImage.getImageStack().getSliceLabel(i+1));
@@ -615,29 +716,6 @@ public class ImageStats {
 		 *  The estimation is based on a linear regression of pixel intensities where the regression is std = a*sqrt(I) + b. Pixel intensities from
 		 *  images at three different exposures are used for this regression.
 	 	 */
-		if (standardDev==null) {
-			if (meanImage==null || meanImage.getNSlices()!=nFrames) {
-				getFrameDeviationAndMean(rawImage);
-			}
-			if (nFrames<3) {
-				IJ.error("Need at least 3 exposure times to estimate standard deviation.");
-				return 0.0;
-			}
-
-			double[] dSqrtPixels = new double[3];
-			double[] dStdPixels = new double[3];
-			for (int i = 0; i<3; i++) {
-				dSqrtPixels[i] = Math.sqrt(intensitySet[i]);
-				dStdPixels[i] = deviationSet[i];
-			}
-			CurveFitter cf = new CurveFitter(dSqrtPixels,dStdPixels);
-			cf.doFit(0);
-			standardDev = cf.getParams();
-			IJ.log("Standard Deviation Slope: " + standardDev[1]);
-			IJ.log("Standard Deviation Intercept: " + standardDev[0]);
-			rSqr = cf.getRSquared();
-		}
-
-		return Math.sqrt(intensity)*standardDev[1] + standardDev[0];
+		return getCalibration().stdEst(intensity);
 	}
 }
\ No newline at end of file
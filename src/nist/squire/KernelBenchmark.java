@@ -0,0 +1,164 @@
+package nist.squire;
+
+import java.util.Random;
+
+//This class measures how much faster the kernels PixelKernels.get() picks are than the plain
+//	Java loops, on camera-like 16-bit frames. Each kernel is timed on the same frames with both
+//	implementations, the results are compared so a faster kernel can not hide a wrong one, and
+//	the best of several repeats is kept so the JIT has warmed up. Run it with
+//	--add-modules jdk.incubator.vector on Java 17 or later to time the vector kernels; otherwise
+//	both columns are the scalar loops. The exact integer path ImageStats takes for 16-bit frames
+//	is also compared with converting each frame to float and summing in doubles.
+//
+//	Usage: KernelBenchmark [width] [height] [replicates] [repeats]
+public class KernelBenchmark {
+
+	public static void main(String[] args) {
+		int width = (args.length>0) ? Integer.parseInt(args[0]) : 2048;
+		int height = (args.length>1) ? Integer.parseInt(args[1]) : 2048;
+		int replicates = (args.length>2) ? Integer.parseInt(args[2]) : 16;
+		int repeats = (args.length>3) ? Integer.parseInt(args[3]) : 5;
+		int flen = width*height;
+
+		// Bright frames that use the top bit, to catch kernels that treat pixels as signed.
+		Random random = new Random(0);
+		short[][] frames = new short[replicates][flen];
+		for (int i = 0; i<replicates; i++) {
+			for (int k = 0; k<flen; k++) {
+				frames[i][k] = (short) (30000 + random.nextInt(8192));
+			}
+		}
+		float[] blank = new float[flen];
+		float[] dark = new float[flen];
+		float[] blankVariance = new float[flen];
+		PixelMask marked = new PixelMask(flen);
+		for (int k = 0; k<flen; k++) {
+			blank[k] = 40000 + random.nextInt(1024);
+			dark[k] = 1000 + random.nextInt(64);
+			blankVariance[k] = 1e-5f;
+			// Leave gaps in the mask so kernels that skip unmarked pixels are checked as well.
+			if (k%17!=0) {
+				marked.set(k);
+			}
+		}
+
+		PixelKernels scalar = PixelKernels.getScalar();
+		PixelKernels fast = PixelKernels.get();
+		System.out.println("Kernels: " + fast.getName() + ", " + replicates + " frames of " + width + "x" + height + ", best of " + repeats);
+		System.out.println("Kernel\tScalar (ms)\t" + fast.getName() + " (ms)\tSpeedup\tMax difference");
+
+		float[][] scalarOut = new float[2][flen];
+		float[][] fastOut = new float[2][flen];
+		float[][] floatOut = new float[2][flen];
+		long floatTime = Long.MAX_VALUE;
+		long[] scalarTime = new long[5];
+		long[] fastTime = new long[5];
+		PixelSummary[] scalarSummary = new PixelSummary[2];
+		PixelSummary[] fastSummary = new PixelSummary[2];
+		float[] scalarAbsorbance = new float[flen];
+		float[] fastAbsorbance = new float[flen];
+		float[][] scalarMasked = new float[2][flen];
+		float[][] fastMasked = new float[2][flen];
+		for (int i = 0; i<5; i++) {
+			scalarTime[i] = Long.MAX_VALUE;
+			fastTime[i] = Long.MAX_VALUE;
+		}
+		for (int r = 0; r<repeats; r++) {
+			long[] time = meanAndDeviation(scalar, frames, scalarOut);
+			scalarTime[0] = Math.min(scalarTime[0], time[0]);
+			scalarTime[1] = Math.min(scalarTime[1], time[1]);
+			time = meanAndDeviation(fast, frames, fastOut);
+			fastTime[0] = Math.min(fastTime[0], time[0]);
+			fastTime[1] = Math.min(fastTime[1], time[1]);
+			floatTime = Math.min(floatTime, floatMeanAndDeviation(fast, frames, floatOut));
+
+			long startTime = System.nanoTime();
+			for (int i = 0; i<2; i++) {
+				scalarSummary[i] = new PixelSummary();
+				scalar.summarize(scalarOut[i], 0, flen, 1, 38000, scalarSummary[i]);
+			}
+			scalarTime[2] = Math.min(scalarTime[2], System.nanoTime()-startTime);
+			startTime = System.nanoTime();
+			for (int i = 0; i<2; i++) {
+				fastSummary[i] = new PixelSummary();
+				fast.summarize(fastOut[i], 0, flen, 1, 38000, fastSummary[i]);
+			}
+			fastTime[2] = Math.min(fastTime[2], System.nanoTime()-startTime);
+
+			startTime = System.nanoTime();
+			scalar.absorbance(scalarOut[0], blank, scalarAbsorbance);
+			scalarTime[3] = Math.min(scalarTime[3], System.nanoTime()-startTime);
+			startTime = System.nanoTime();
+			fast.absorbance(fastOut[0], blank, fastAbsorbance);
+			fastTime[3] = Math.min(fastTime[3], System.nanoTime()-startTime);
+
+			startTime = System.nanoTime();
+			scalar.absorbance(scalarOut[0], scalarOut[1], replicates, blank, blankVariance, dark, 1, marked, scalarMasked[0], scalarMasked[1]);
+			scalarTime[4] = Math.min(scalarTime[4], System.nanoTime()-startTime);
+			startTime = System.nanoTime();
+			fast.absorbance(fastOut[0], fastOut[1], replicates, blank, blankVariance, dark, 1, marked, fastMasked[0], fastMasked[1]);
+			fastTime[4] = Math.min(fastTime[4], System.nanoTime()-startTime);
+		}
+
+		report("Accumulate 16-bit", scalarTime[0], fastTime[0], Double.NaN);
+		report("Mean and deviation", scalarTime[1], fastTime[1], Math.max(maxDifference(scalarOut[0], fastOut[0]), maxDifference(scalarOut[1], fastOut[1])));
+		double summaryDifference = 0;
+		for (int i = 0; i<2; i++) {
+			summaryDifference = Math.max(summaryDifference, Math.abs(scalarSummary[i].getMin()-fastSummary[i].getMin()));
+			summaryDifference = Math.max(summaryDifference, Math.abs(scalarSummary[i].getMax()-fastSummary[i].getMax()));
+			summaryDifference = Math.max(summaryDifference, Math.abs(scalarSummary[i].getMean()-fastSummary[i].getMean()));
+			summaryDifference = Math.max(summaryDifference, Math.abs(scalarSummary[i].getRms()-fastSummary[i].getRms()));
+			summaryDifference = Math.max(summaryDifference, Math.abs(scalarSummary[i].getSaturated()-fastSummary[i].getSaturated()));
+		}
+		report("Min, max, mean, RMS and saturation", scalarTime[2], fastTime[2], summaryDifference);
+		report("Absorbance", scalarTime[3], fastTime[3], maxDifference(scalarAbsorbance, fastAbsorbance));
+		report("Masked absorbance and error", scalarTime[4], fastTime[4], Math.max(maxDifference(scalarMasked[0], fastMasked[0]), maxDifference(scalarMasked[1], fastMasked[1])));
+		System.out.println("Mean and deviation as float (ms)\t" + floatTime/1000000.0 + "\tinteger (ms)\t" + (fastTime[0]+fastTime[1])/1000000.0
+				+ "\tmax difference\t" + Math.max(maxDifference(floatOut[0], fastOut[0]), maxDifference(floatOut[1], fastOut[1])));
+	}
+
+	private static long[] meanAndDeviation(PixelKernels kernels, short[][] frames, float[][] out) {
+		// Times the two halves of ImageStats.getFrameDeviationAndMean separately.
+		int flen = frames[0].length;
+		int[] sum = new int[flen];
+		long[] sumSquares = new long[flen];
+		long startTime = System.nanoTime();
+		for (int i = 0; i<frames.length; i++) {
+			kernels.accumulate(frames[i], sum, sumSquares);
+		}
+		long accumulate = System.nanoTime()-startTime;
+		startTime = System.nanoTime();
+		kernels.finish(sum, sumSquares, frames.length, out[0], out[1]);
+		return new long[] {accumulate, System.nanoTime()-startTime};
+	}
+
+	private static long floatMeanAndDeviation(PixelKernels kernels, short[][] frames, float[][] out) {
+		// The same work the way ImageStats did it before, converting each frame to float.
+		int flen = frames[0].length;
+		double[] sum = new double[flen];
+		double[] sumSquares = new double[flen];
+		float[] converted = new float[flen];
+		long startTime = System.nanoTime();
+		for (int i = 0; i<frames.length; i++) {
+			for (int k = 0; k<flen; k++) {
+				converted[k] = frames[i][k] & 0xffff;
+			}
+			kernels.accumulate(converted, sum, sumSquares);
+		}
+		kernels.finish(sum, sumSquares, frames.length, out[0], out[1]);
+		return System.nanoTime()-startTime;
+	}
+
+	private static double maxDifference(float[] a, float[] b) {
+		double max = 0;
+		for (int k = 0; k<a.length; k++) {
+			max = Math.max(max, Math.abs(a[k]-b[k]));
+		}
+		return max;
+	}
+
+	private static void report(String kernel, long scalarTime, long fastTime, double difference) {
+		System.out.println(kernel + "\t" + scalarTime/1000000.0 + "\t" + fastTime/1000000.0 + "\t"
+				+ Math.round(100.0*scalarTime/fastTime)/100.0 + "x\t" + (Double.isNaN(difference) ? "" : Double.toString(difference)));
+	}
+}
@@ -33,6 +33,8 @@ public class ManualCaptureThread implements Runnable {
 	public void run() {
 		AppParams params = AppParams.getInstance();
 		SimpleCapture cap = new SimpleCapture(false);
+		cap.setCalibrationSampling(AppParams.getCalibrationRoi(), AppParams.getCalibrationStride());
+		DeviceSettler settler = new DeviceSettler(core_);
 		
 		channelName = AppParams.getChannelName();
 		absorptionSetting = AppParams.getAbsorptionSetting();
@@ -85,22 +87,11 @@ public class ManualCaptureThread implements Runnable {
 					for (int j = 0; j<numChannels; j++) {
 						if (absorptionSetting.get(j).equals("Absorbance")){
 							System.out.println(j);
-							core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-							core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-							core_.waitForDevice(transmittedDevice.get(j));
-							core_.waitForDevice(fluorescentDevice.get(j));
-							while (!core_.getProperty(fluorescentDevice.get(j), "Label").equalsIgnoreCase(fluorescentDeviceSetting.get(j)) ||
-									!core_.getProperty(transmittedDevice.get(j), "Label").equalsIgnoreCase(transmittedDeviceSetting.get(j))){
-								System.out.println("Current fluorescent setting: " + core_.getProperty(fluorescentDevice.get(j), "Label"));
-								System.out.println("Current fluorescent setting: " + core_.getProperty(transmittedDevice.get(j), "Label"));
-								core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-								core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-								core_.waitForDevice(transmittedDevice.get(j));
-								core_.waitForDevice(fluorescentDevice.get(j));
-							}
+							settler.setLabels(new String[] {fluorescentDevice.get(j), transmittedDevice.get(j)},
+									new String[] {fluorescentDeviceSetting.get(j), transmittedDeviceSetting.get(j)});
 							sampleLabel = channelName.get(j) + " - Linear Regression";
 							AppParams.setCurrentSampleName(sampleLabel);
-							ImageStats lightStats = new ImageStats(sampleLabel,"");
+							ImageStats lightStats = new ImageStats(sampleLabel,"",cap.getGeometry());
 							lightStats.pixelLinReg();
 							AppParams.addLightBlank(lightStats);
 							System.out.println("Added Light Blank!");
@@ -110,7 +101,7 @@ public class ManualCaptureThread implements Runnable {
 							backThread.start();
 							ImagePlus foregroundRaw = cap.seriesCapture(channelName.get(j)+" - Light Background", lightStats.bestExposure(), lightStats.numBlankSamples(lightStats.bestExposure()));
 							ImageStats foreground = new ImageStats(foregroundRaw);
-							AppParams.addForeground(foreground.getFrameMean());
+							AppParams.addForeground(foreground.getFrameMean(), foregroundRaw.getNSlices());
 							AppParams.setChannelExposure(j, lightStats.bestExposure());
 							Thread forThread = new Thread(new SaveThread(foreground.rawImage,j,true));
 							forThread.start();
@@ -160,16 +151,8 @@ public class ManualCaptureThread implements Runnable {
 								core_.waitForSystem();
 								core_.setShutterOpen(true);
 							}
-							core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-							core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-							core_.waitForSystem();
-							while (!core_.getProperty(fluorescentDevice.get(j), "Label").equalsIgnoreCase(fluorescentDeviceSetting.get(j)) ||
-									!core_.getProperty(transmittedDevice.get(j), "Label").equalsIgnoreCase(transmittedDeviceSetting.get(j))){
-								System.out.println("Didn't get the right brightfield, trying again...");
-								core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-								core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-								core_.waitForSystem();
-							}
+							settler.setLabels(new String[] {fluorescentDevice.get(j), transmittedDevice.get(j)},
+									new String[] {fluorescentDeviceSetting.get(j), transmittedDeviceSetting.get(j)});
 
 							startTime = System.currentTimeMillis();
 							currentSample = cap.threshCaptureSeries(sampleLabel, channelExposure.get(j), numReplicates, AppParams.getLightBlank(currentAbsorb).minConfPix(numReplicates));
@@ -189,16 +172,8 @@ public class ManualCaptureThread implements Runnable {
 								core_.setShutterDevice(AppParams.getTransmittedShutter());
 								core_.setShutterOpen(true);
 							}
-							core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-							core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-							core_.waitForSystem();
-							while (!core_.getProperty(fluorescentDevice.get(j), "Label").equalsIgnoreCase(fluorescentDeviceSetting.get(j)) ||
-									!core_.getProperty(transmittedDevice.get(j), "Label").equalsIgnoreCase(transmittedDeviceSetting.get(j))){
-								System.out.println("Didn't get the right phase, trying again...");
-								core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-								core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-								core_.waitForSystem();
-							}
+							settler.setLabels(new String[] {fluorescentDevice.get(j), transmittedDevice.get(j)},
+									new String[] {fluorescentDeviceSetting.get(j), transmittedDeviceSetting.get(j)});
 							currentSample = cap.singleCapture(sampleLabel,channelExposure.get(j));
 							IJ.saveAsTiff(currentSample, AppParams.getChannelImageDir(j) + sampleLabel);
 						} else {
@@ -208,15 +183,8 @@ public class ManualCaptureThread implements Runnable {
 								core_.setShutterOpen(true);
 							}
 							cap.setExposure(channelExposure.get(j));
-							core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-							core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-							core_.waitForSystem();
-							while (!core_.getProperty(fluorescentDevice.get(j), "Label").equalsIgnoreCase(fluorescentDeviceSetting.get(j)) ||
-									!core_.getProperty(transmittedDevice.get(j), "Label").equalsIgnoreCase(transmittedDeviceSetting.get(j))){
-								core_.setProperty(fluorescentDevice.get(j), "Label", fluorescentDeviceSetting.get(j));
-								core_.setProperty(transmittedDevice.get(j), "Label", transmittedDeviceSetting.get(j));
-								core_.waitForSystem();
-							}
+							settler.setLabels(new String[] {fluorescentDevice.get(j), transmittedDevice.get(j)},
+									new String[] {fluorescentDeviceSetting.get(j), transmittedDeviceSetting.get(j)});
 							currentSample = cap.singleCapture(sampleLabel);
 							IJ.saveAsTiff(currentSample, AppParams.getChannelImageDir(j) + sampleLabel);
 						}
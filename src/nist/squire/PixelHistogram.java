@@ -0,0 +1,109 @@
+package nist.squire;
+
+//This class counts pixel values into a fixed number of evenly spaced bins, so the median and
+//	other percentiles of an image come from one pass over it and a few kilobytes of counts,
+//	without keeping or sorting the pixels. Bin k holds the values nearest to low + k*binWidth,
+//	and values past either end are counted in the end bins. Percentiles are therefore within half
+//	a bin width of the exact value, and exact for integer pixels counted in bins of width 1.
+//	NaN values are not counted. A histogram with one bin per level of the camera bit depth gives
+//	the exact percentiles of a frame, and 16-bit frames are counted straight into it.
+public class PixelHistogram {
+
+	private final double low;
+	private final double binWidth;
+	private final long[] counts;
+	private long total;
+	private double sum;
+
+	public PixelHistogram(double low, double binWidth, int bins) {
+		this.low = low;
+		this.binWidth = binWidth;
+		counts = new long[bins];
+	}
+
+	// One bin per intensity level of the given bit depth, up to 16 bits.
+	public static PixelHistogram forBitDepth(int bitDepth) {
+		return new PixelHistogram(0, 1, 1 << Math.max(1, Math.min(16, bitDepth)));
+	}
+
+	public void add(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		double position = Math.floor((value-low)/binWidth + 0.5);
+		int bin = (position<=0) ? 0 : (position>=counts.length-1) ? counts.length-1 : (int) position;
+		counts[bin]++;
+		total++;
+		sum += value;
+	}
+
+	// Adds the pixels that are marked in the mask.
+	public void add(float[] pixels, PixelMask pixelsToAdd) {
+		long[] words = pixelsToAdd.words;
+		for (int w = 0; w<words.length; w++) {
+			long bits = words[w];
+			while (bits!=0) {
+				add(pixels[(w << 6) + Long.numberOfTrailingZeros(bits)]);
+				bits &= bits-1;
+			}
+		}
+	}
+
+	public void add(float[] pixels) {
+		for (int k = 0; k<pixels.length; k++) {
+			add(pixels[k]);
+		}
+	}
+
+	public void add(short[] pixels) {
+		/*
+		 *  Adds unsigned 16-bit pixels. When the bins are the integers from 0, each pixel is its
+		 *  own bin index and is counted without any arithmetic.
+		 */
+		if (low!=0 || binWidth!=1) {
+			for (int k = 0; k<pixels.length; k++) {
+				add(pixels[k] & 0xffff);
+			}
+			return;
+		}
+		int last = counts.length-1;
+		long pixelSum = 0;
+		for (int k = 0; k<pixels.length; k++) {
+			int value = pixels[k] & 0xffff;
+			counts[(value<last) ? value : last]++;
+			pixelSum += value;
+		}
+		total += pixels.length;
+		sum += pixelSum;
+	}
+
+	// Number of values counted.
+	public long getCount() {return total;}
+
+	// Exact mean of the values counted, not of the bins.
+	public double getMean() {return (total==0) ? Double.NaN : sum/total;}
+
+	public double percentile(double percent) {
+		/*
+		 *  Smallest bin value with at least percent of the counted values at or below it, the
+		 *  nearest rank definition, so the 0th percentile is the lowest value and the 100th the
+		 *  highest. NaN if nothing was counted.
+		 */
+		if (total==0) {
+			return Double.NaN;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.max(0, Math.min(100, percent))/100*total));
+		long seen = 0;
+		int bin = 0;
+		while (bin<counts.length-1) {
+			seen += counts[bin];
+			if (seen>=rank) {
+				break;
+			}
+			bin++;
+		}
+		return low + bin*binWidth;
+	}
+
+	public double median() {return percentile(50);}
+}
@@ -0,0 +1,196 @@
+package nist.squire;
+
+import java.lang.reflect.InvocationTargetException;
+
+import ij.IJ;
+
+//This class holds the per-pixel loops that every image of a run goes through: accumulating the
+//	sum and sum of squares of replicate frames, turning them into mean and deviation images,
+//	summarising whole images, marking pixels in a PixelMask and taking absorbance images. The
+//	loops here are plain Java and run anywhere. When the plugin runs on Java 17 or later with the
+//	jdk.incubator.vector module added (--add-modules jdk.incubator.vector), get() returns
+//	VectorKernels instead, which does the same work with SIMD instructions. VectorKernels is built
+//	from src-java17 into the versioned part of the jar, so older JVMs never see it. Setting the
+//	system property squire.scalarKernels to true always uses the loops in this class. The reason
+//	the loops in this class were chosen is logged, so a slow run can be told apart from a missing
+//	JVM option.
+public class PixelKernels {
+
+	private static final String VECTOR_CLASS = "nist.squire.VectorKernels";
+	static final double LN10 = Math.log(10);
+	private static final PixelKernels INSTANCE = select();
+	private static final PixelKernels SCALAR = (INSTANCE.getClass()==PixelKernels.class) ? INSTANCE : new PixelKernels();
+
+	protected PixelKernels() {}
+
+	// Fastest kernels this JVM supports.
+	public static PixelKernels get() {return INSTANCE;}
+
+	// Plain Java kernels, for comparison with get().
+	public static PixelKernels getScalar() {return SCALAR;}
+
+	private static PixelKernels select() {
+		if (Boolean.getBoolean("squire.scalarKernels")) {
+			return scalar("squire.scalarKernels is set");
+		}
+		try {
+			return (PixelKernels) Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			// Older JVMs do not see the classes built for Java 17
+			return scalar("vector kernels were not found for Java " + System.getProperty("java.version"));
+		} catch (NoClassDefFoundError e) {
+			return scalar("the vector module was not added (--add-modules jdk.incubator.vector)");
+		} catch (LinkageError e) {
+			return scalar("vector kernels could not be loaded, " + e);
+		} catch (InvocationTargetException e) {
+			// Such as vector registers too narrow for the kernels on this processor
+			return scalar("vector kernels could not be created, " + e.getCause());
+		} catch (NoSuchMethodException e) {
+			return scalar(e.toString());
+		} catch (InstantiationException e) {
+			return scalar(e.toString());
+		} catch (IllegalAccessException e) {
+			return scalar(e.toString());
+		}
+	}
+
+	private static PixelKernels scalar(String reason) {
+		IJ.log("Using scalar pixel kernels: " + reason + ".");
+		return new PixelKernels();
+	}
+
+	public String getName() {return "Scalar";}
+
+	public void accumulate(short[] frame, int[] sum, long[] sumSquares) {
+		/*
+		 *  Adds an unsigned 16-bit frame to the running sum and sum of squares of each pixel.
+		 *  The sums are exact: an int holds the sum of 32768 full-scale frames and a long the
+		 *  sum of their squares, far more than the 500 replicates a run can take.
+		 */
+		for (int k = 0; k<frame.length; k++) {
+			int value = frame[k] & 0xffff;
+			sum[k] += value;
+			sumSquares[k] += (long) value*value;
+		}
+	}
+
+	public void accumulate(float[] frame, double[] sum, double[] sumSquares) {
+		for (int k = 0; k<frame.length; k++) {
+			double value = frame[k];
+			sum[k] += value;
+			sumSquares[k] += value*value;
+		}
+	}
+
+	public void finish(double[] sum, double[] sumSquares, int count, float[] mean, float[] deviation) {
+		/*
+		 *  Mean and standard deviation of each pixel over count frames, from the sums made by
+		 *  accumulate.
+		 */
+		for (int k = 0; k<sum.length; k++) {
+			double m = sum[k]/count;
+			mean[k] = (float) m;
+			deviation[k] = (float) Math.sqrt(sumSquares[k]/count - m*m);
+		}
+	}
+
+	public void finish(int[] sum, long[] sumSquares, int count, float[] mean, float[] deviation) {
+		/*
+		 *  Mean and standard deviation from exact integer sums. The variance is taken as
+		 *  (count*sumSquares - sum^2)/count^2, whose numerator is still exact in a long, so it
+		 *  is never negative and a flat pixel has a deviation of exactly 0.
+		 */
+		double countSquared = (double) count*count;
+		for (int k = 0; k<sum.length; k++) {
+			long s = sum[k];
+			mean[k] = (float) ((double) s/count);
+			deviation[k] = (float) Math.sqrt((count*sumSquares[k] - s*s)/countSquared);
+		}
+	}
+
+	public void summarize(float[] pixels, int from, int to, int step, double saturation, PixelSummary summary) {
+		/*
+		 *  Adds every step-th pixel from index from up to index to to the summary, finding the
+		 *  minimum, maximum, sum, sum of squares and number of pixels at or above saturation in
+		 *  the same pass.
+		 */
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+		double sumSquares = 0;
+		long count = 0;
+		long saturated = 0;
+		for (int k = from; k<to; k += step) {
+			double value = pixels[k];
+			if (value<min) {
+				min = value;
+			}
+			if (value>max) {
+				max = value;
+			}
+			sum += value;
+			sumSquares += value*value;
+			if (value>=saturation) {
+				saturated++;
+			}
+			count++;
+		}
+		summary.add(min, max, sum, sumSquares, count, saturated);
+	}
+
+	public void markAtOrAbove(short[] frame, int level, PixelMask mask) {
+		// Marks the pixels of an unsigned 16-bit frame that are at or above the level.
+		for (int k = 0; k<frame.length; k++) {
+			if ((frame[k] & 0xffff)>=level) {
+				mask.words[k >>> 6] |= 1L << k;
+			}
+		}
+	}
+
+	public void markAtOrAbove(float[] pixels, double level, PixelMask mask) {
+		for (int k = 0; k<pixels.length; k++) {
+			if (pixels[k]>=level) {
+				mask.words[k >>> 6] |= 1L << k;
+			}
+		}
+	}
+
+	public void markOutside(float[] pixels, double low, double high, PixelMask mask) {
+		// Marks the pixels that are not between low and high, including pixels that are NaN.
+		for (int k = 0; k<pixels.length; k++) {
+			if (!(pixels[k]>=low && pixels[k]<=high)) {
+				mask.words[k >>> 6] |= 1L << k;
+			}
+		}
+	}
+
+	public void absorbance(float[] sample, float[] deviation, int replicates, float[] blank, float[] blankVariance, float[] dark,
+			double scale, PixelMask pixels, float[] absorbance, float[] error) {
+		/*
+		 *  Absorbance of the marked pixels, -log10((sample-dark)/((blank-dark)*scale)), where
+		 *  scale is the exposure of the sample relative to the blank, and its standard error. The
+		 *  error propagates the deviation of the replicate mean, deviation/sqrt(replicates), and
+		 *  the variance of the blank relative to (blank-dark)^2:
+		 *  sqrt(deviation^2/(replicates*(sample-dark)^2) + blankVariance)/ln(10).
+		 *  Other pixels are left as they are.
+		 */
+		long[] words = pixels.words;
+		for (int w = 0; w<words.length; w++) {
+			long bits = words[w];
+			while (bits!=0) {
+				int k = (w << 6) + Long.numberOfTrailingZeros(bits);
+				double signal = sample[k]-dark[k];
+				absorbance[k] = (float) -Math.log10(signal/((blank[k]-dark[k])*scale));
+				error[k] = (float) (Math.sqrt((double) deviation[k]*deviation[k]/(replicates*signal*signal) + blankVariance[k])/LN10);
+				bits &= bits-1;
+			}
+		}
+	}
+
+	public void absorbance(float[] sample, float[] blank, float[] absorbance) {
+		// Absorbance of each pixel, -log10(sample/blank).
+		for (int k = 0; k<absorbance.length; k++) {
+			absorbance[k] = (float) -Math.log10(sample[k]/blank[k]);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package nist.squire;
+
+//This class marks a set of pixels of an image with one bit each, such as the pixels that
+//	saturated at an exposure, the pixels below the confidence floor, or the hot and dead pixels of
+//	the camera. A 2048x2048 mask takes 512KB instead of the 16MB of a float image, and kernels
+//	can skip 64 unmarked pixels at a time. Bits are stored 64 pixels to a word, the first pixel of
+//	each word in its lowest bit, and bits past the last pixel are always clear. Masks are not
+//	thread-safe; each is built by one thread and only read after that.
+public class PixelMask {
+
+	private final int size;
+	// Package-private so the kernels can fill and read whole words
+	final long[] words;
+
+	public PixelMask(int size) {
+		this.size = size;
+		words = new long[(size+63) >>> 6];
+	}
+
+	// Number of pixels the mask covers, marked or not.
+	public int size() {return size;}
+
+	public boolean get(int index) {return (words[index >>> 6] & (1L << index))!=0;}
+
+	public void set(int index) {words[index >>> 6] |= 1L << index;}
+
+	public void setAll() {
+		for (int w = 0; w<words.length; w++) {
+			words[w] = -1L;
+		}
+		if ((size & 63)!=0) {
+			words[words.length-1] = (1L << size) - 1;
+		}
+	}
+
+	public void or(PixelMask other) {
+		for (int w = 0; w<words.length; w++) {
+			words[w] |= other.words[w];
+		}
+	}
+
+	public void andNot(PixelMask other) {
+		for (int w = 0; w<words.length; w++) {
+			words[w] &= ~other.words[w];
+		}
+	}
+
+	public PixelMask copy() {
+		PixelMask copy = new PixelMask(size);
+		System.arraycopy(words, 0, copy.words, 0, words.length);
+		return copy;
+	}
+
+	// Number of marked pixels.
+	public int cardinality() {
+		int count = 0;
+		for (int w = 0; w<words.length; w++) {
+			count += Long.bitCount(words[w]);
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		for (int w = 0; w<words.length; w++) {
+			if (words[w]!=0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,39 @@
+package nist.squire;
+
+//This class collects the minimum, maximum, sum and sum of squares of a set of pixels in one
+//	pass, along with the number of pixels at or above the saturation level, so the mean and root
+//	mean square needed for the global intensity and deviation curves come from the same read of
+//	the image as its extremes. PixelKernels.summarize adds pixels to it.
+public class PixelSummary {
+
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+	private double sum;
+	private double sumSquares;
+	private long count;
+	private long saturated;
+
+	void add(double min, double max, double sum, double sumSquares, long count, long saturated) {
+		this.min = Math.min(this.min, min);
+		this.max = Math.max(this.max, max);
+		this.sum += sum;
+		this.sumSquares += sumSquares;
+		this.count += count;
+		this.saturated += saturated;
+	}
+
+	public double getMin() {return min;}
+
+	public double getMax() {return max;}
+
+	public double getMean() {return sum/count;}
+
+	public double getRms() {return Math.sqrt(Math.abs(sumSquares/count));}
+
+	public long getCount() {return count;}
+
+	// Number of pixels at or above the saturation level.
+	public long getSaturated() {return saturated;}
+
+	public double getSaturatedFraction() {return (count==0) ? 0 : (double) saturated/count;}
+}
@@ -0,0 +1,781 @@
+package nist.squire;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.micromanager.api.PositionList;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+//This class writes every well and channel of a plate run into a single chunked array store,
+//	instead of one TIFF per well per channel. The store uses the Zarr version 2 directory layout
+//	with "/" separated chunk keys, so each well is its own folder and can be read without
+//	touching the rest of the plate. Chunks are encoded and written in parallel, and each chunk is
+//	written to a temporary file and renamed so a stopped run never leaves a partial chunk. The
+//	checksum of a well's folder is combined from its chunks as they are written, for the journal.
+//
+//	Layout of the store, with a JSON index of wells, channels and exposures at the top level:
+//		<channel>/raw			wells x exposures x replicates x height x width, absorbance channels
+//		<channel>/image			wells x height x width, phase and fluorescent channels
+//		<channel>/preview/<n>	wells x height/2^n x width/2^n mean image, for quick look
+//		<channel>/<result>		wells x slices x height x width, float results such as absorbance
+//	Exposure k of a raw well was captured at the channel exposure times 2^k.
+public class PlateStore {
+
+	public static final String DIR_NAME = "plate.zarr";
+	// Downsampled preview levels stop before an image side would be smaller than this
+	private static final int MIN_PREVIEW_SIZE = 64;
+	private static final int MAX_PREVIEW_LEVELS = 4;
+
+	private String dir;
+	private String[] wellLabels;
+	private double[] wellX;
+	private double[] wellY;
+	private HashMap<String, Integer> wellIndex = new HashMap<String, Integer>();
+	private HashMap<String, ZArray> arrays = new HashMap<String, ZArray>();
+	private boolean compress;
+	private RunConfig config;
+	private RunState state;
+	private ExecutorService writers;
+	private Semaphore slots;
+	private AtomicLong bytesWritten = new AtomicLong();
+
+	public PlateStore(String dir, PositionList positions, RunConfig config, RunState state) throws IOException {
+		/*
+		 *  Opens the store in a run folder, creating it if needed. Wells are indexed in position
+		 *  list order. Arrays that already exist are reused, so a resumed run adds to the store.
+		 */
+		this.dir = dir.endsWith(File.separator) ? dir : dir + File.separator;
+		int numWells = positions.getNumberOfPositions();
+		wellLabels = new String[numWells];
+		wellX = new double[numWells];
+		wellY = new double[numWells];
+		for (int i = 0; i<numWells; i++) {
+			wellLabels[i] = positions.getPosition(i).getLabel();
+			wellX[i] = positions.getPosition(i).getX();
+			wellY[i] = positions.getPosition(i).getY();
+			wellIndex.put(wellLabels[i], i);
+		}
+		this.config = config;
+		this.state = state;
+		compress = config.getCompressImages();
+
+		new File(this.dir).mkdirs();
+		writeText(this.dir + ".zgroup", "{\"zarr_format\": 2}\n");
+		writeIndex();
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		slots = new Semaphore(2*threads);
+		writers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Plate store writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public String[] addRaw(int channel, String well, ImagePlus imp) throws IOException {
+		/*
+		 *  Adds the replicate frames of an absorbance well, one chunk per frame, and the preview of
+		 *  the replicate mean at the first exposure. Returns the folder holding the well's chunks
+		 *  and its checksum once they are all on disk.
+		 */
+		int w = getWell(well);
+		int replicates = imp.getNSlices();
+		int exposures = imp.getNFrames();
+		String name = channelDir(channel) + "raw";
+		ZArray array = getArray(name, new int[] {wellLabels.length, exposures, replicates, imp.getHeight(), imp.getWidth()}, imp.getBitDepth());
+		array.grow(1, exposures);
+		FileChecksum.Folder checksum = array.clearWell(w);
+
+		ArrayList<Future<Long>> written = new ArrayList<Future<Long>>();
+		ImageStack stack = imp.getStack();
+		for (int e = 0; e<exposures; e++) {
+			for (int r = 0; r<replicates; r++) {
+				submit(written, array, new int[] {w, e, r, 0, 0}, stack.getPixels(e*replicates+r+1), checksum);
+			}
+		}
+		submitPreview(written, channel, w, stack, 1, replicates);
+		await(written);
+		return new String[] {array.dir + w, checksum.getValue()};
+	}
+
+	public String[] addImage(int channel, String well, ImagePlus imp) throws IOException {
+		// Adds the single image of a phase or fluorescent well and its preview, like addRaw.
+		int w = getWell(well);
+		String name = channelDir(channel) + "image";
+		ZArray array = getArray(name, new int[] {wellLabels.length, imp.getHeight(), imp.getWidth()}, imp.getBitDepth());
+		FileChecksum.Folder checksum = array.clearWell(w);
+
+		ArrayList<Future<Long>> written = new ArrayList<Future<Long>>();
+		submit(written, array, new int[] {w, 0, 0}, imp.getProcessor().getPixels(), checksum);
+		submitPreview(written, channel, w, imp.getStack(), imp.getCurrentSlice(), 1);
+		await(written);
+		return new String[] {array.dir + w, checksum.getValue()};
+	}
+
+	public String addResult(int channel, String well, String result, ImagePlus imp) throws IOException {
+		// Adds a processed 32-bit image or stack of a well, such as its absorbance.
+		int w = getWell(well);
+		int slices = imp.getStackSize();
+		String name = channelDir(channel) + result;
+		ZArray array = getArray(name, new int[] {wellLabels.length, slices, imp.getHeight(), imp.getWidth()}, 32);
+		array.grow(1, slices);
+
+		ArrayList<Future<Long>> written = new ArrayList<Future<Long>>();
+		ImageStack stack = imp.getStack();
+		for (int s = 0; s<slices; s++) {
+			submit(written, array, new int[] {w, s, 0, 0}, stack.getPixels(s+1), null);
+		}
+		await(written);
+		return array.dir + w;
+	}
+
+	public void close() {
+		/*
+		 *  Waits for the remaining chunks, then rewrites the index so that it holds the final
+		 *  exposures of each channel.
+		 */
+		writers.shutdown();
+		try {
+			writers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+			writeIndex();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		System.out.println("Plate store: " + (bytesWritten.get() >> 20) + "MB written to " + dir);
+	}
+
+	public String getDir() {return dir;}
+
+	private int getWell(String well) throws IOException {
+		Integer w = wellIndex.get(well);
+		if (w==null) {
+			throw new IOException("Well " + well + " is not in the plate store.");
+		}
+		return w;
+	}
+
+	private String channelDir(int channel) {
+		return config.getChannelName(channel) + "/";
+	}
+
+	private synchronized ZArray getArray(String name, int[] shape, int bitDepth) throws IOException {
+		ZArray array = arrays.get(name);
+		if (array==null) {
+			int[] chunks = new int[shape.length];
+			for (int k = 0; k<shape.length; k++) {
+				chunks[k] = (k<shape.length-2) ? 1 : shape[k];
+			}
+			array = new ZArray(dir + name.replace("/", File.separator) + File.separator, shape, chunks, dtype(bitDepth), compress);
+			arrays.put(name, array);
+			File channelGroup = new File(dir + name.substring(0, name.indexOf('/')), ".zgroup");
+			if (!channelGroup.exists()) {
+				writeText(channelGroup.getPath(), "{\"zarr_format\": 2}\n");
+			}
+		}
+		return array;
+	}
+
+	private void submitPreview(List<Future<Long>> written, final int channel, final int w, final ImageStack stack, final int firstSlice, final int numSlices) throws IOException {
+		/*
+		 *  Averages the slices into a float image and writes it at each downsampled level. The
+		 *  level arrays are created here so the pyramid attributes are in place before the chunks.
+		 */
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		int levels = 0;
+		while (levels<MAX_PREVIEW_LEVELS && Math.min(width, height) >> (levels+1)>=MIN_PREVIEW_SIZE) {
+			levels++;
+		}
+		if (levels==0) {
+			return;
+		}
+		final ZArray[] level = getPreviewLevels(channel, width, height, levels);
+
+		submit(written, new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				float[] mean = new float[width*height];
+				for (int s = firstSlice; s<firstSlice+numSlices; s++) {
+					addPixels(mean, stack.getPixels(s));
+				}
+				for (int i = 0; i<mean.length; i++) {
+					mean[i] /= numSlices;
+				}
+				long bytes = 0;
+				int w0 = width;
+				int h0 = height;
+				for (int n = 0; n<level.length; n++) {
+					mean = downsample(mean, w0, h0);
+					w0 >>= 1;
+					h0 >>= 1;
+					bytes += level[n].writeChunk(new int[] {w, 0, 0}, mean, null);
+				}
+				return bytes;
+			}
+		});
+	}
+
+	private synchronized ZArray[] getPreviewLevels(int channel, int width, int height, int levels) throws IOException {
+		// The level arrays are created before the pyramid attributes so readers find every level.
+		String group = dir + channelDir(channel).replace("/", File.separator) + "preview" + File.separator;
+		ZArray[] level = new ZArray[levels];
+		for (int n = 1; n<=levels; n++) {
+			level[n-1] = getArray(channelDir(channel) + "preview/" + n, new int[] {wellLabels.length, height >> n, width >> n}, 32);
+		}
+		if (!new File(group + ".zattrs").exists()) {
+			writeText(group + ".zgroup", "{\"zarr_format\": 2}\n");
+			writeText(group + ".zattrs", multiscales(levels));
+		}
+		return level;
+	}
+
+	private void submit(List<Future<Long>> written, final ZArray array, final int[] index, final Object pixels, final FileChecksum.Folder checksum) throws IOException {
+		submit(written, new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return array.writeChunk(index, pixels, checksum);
+			}
+		});
+	}
+
+	private void submit(List<Future<Long>> written, final Callable<Long> task) throws IOException {
+		// Keeps a bounded number of chunks in flight, so pixels are not held much longer than needed.
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("Stopped while writing the plate store.", e);
+		}
+		written.add(writers.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				try {
+					long bytes = task.call();
+					bytesWritten.addAndGet(bytes);
+					return bytes;
+				} finally {
+					slots.release();
+				}
+			}
+		}));
+	}
+
+	private static void await(List<Future<Long>> written) throws IOException {
+		// Waits for every chunk that was submitted, reporting the first error.
+		IOException error = null;
+		for (Future<Long> future : written) {
+			try {
+				future.get();
+			} catch (Exception e) {
+				Throwable cause = (e.getCause()!=null) ? e.getCause() : e;
+				if (error==null) {
+					error = new IOException("Unable to write plate store chunk: " + cause.getMessage(), cause);
+				}
+			}
+		}
+		if (error!=null) {
+			throw error;
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		// Writes the plate index that readers use to find a well or channel in the store.
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"squire\": {\n");
+		json.append("    \"plate\": ").append(quote(config.getPlateID())).append(",\n");
+		json.append("    \"replicates\": ").append(config.getNumReplicates()).append(",\n");
+		json.append("    \"wells\": [");
+		for (int i = 0; i<wellLabels.length; i++) {
+			json.append((i==0) ? "\n" : ",\n");
+			json.append("      {\"index\": ").append(i).append(", \"label\": ").append(quote(wellLabels[i]));
+			json.append(", \"x\": ").append(wellX[i]).append(", \"y\": ").append(wellY[i]).append("}");
+		}
+		json.append("\n    ],\n    \"channels\": [");
+		for (int j = 0; j<config.getNumChannels(); j++) {
+			String name = config.getChannelName(j);
+			boolean isRaw = config.isAbsorbanceChannel(j);
+			json.append((j==0) ? "\n" : ",\n");
+			json.append("      {\"index\": ").append(j).append(", \"name\": ").append(quote(name));
+			json.append(", \"setting\": ").append(quote(config.getAbsorptionSetting(j)));
+			json.append(", \"exposure\": ").append(state.getChannelExposure(j));
+			json.append(", \"array\": ").append(quote(name + (isRaw ? "/raw" : "/image")));
+			json.append(", \"preview\": ").append(quote(name + "/preview"));
+			if (isRaw) {
+				json.append(", \"absorbance\": ").append(quote(name + "/absorbance"));
+				json.append(", \"calibration\": ").append(quote("../" + name + "/Calibration Images/"));
+			}
+			json.append("}");
+		}
+		json.append("\n    ]\n  }\n}\n");
+		writeText(dir + ".zattrs", json.toString());
+	}
+
+	private static String multiscales(int levels) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"multiscales\": [{\"version\": \"0.4\", \"name\": \"preview\", \"axes\": [");
+		json.append("{\"name\": \"well\", \"type\": \"other\"}, {\"name\": \"y\", \"type\": \"space\"}, {\"name\": \"x\", \"type\": \"space\"}],\n  \"datasets\": [");
+		for (int n = 1; n<=levels; n++) {
+			json.append((n==1) ? "\n" : ",\n");
+			json.append("    {\"path\": \"").append(n).append("\", \"coordinateTransformations\": [{\"type\": \"scale\", \"scale\": [1, ");
+			json.append(1 << n).append(", ").append(1 << n).append("]}]}");
+		}
+		json.append("\n  ]}]}\n");
+		return json.toString();
+	}
+
+	public static ImagePlus readWell(String storeDir, String arrayName, int well) throws IOException {
+		/*
+		 *  Reads every chunk of one well from an array written by this class, as a stack in the
+		 *  order exposure then replicate, or in slice order for results. Chunks that were never
+		 *  written are skipped.
+		 */
+		if (!storeDir.endsWith(File.separator)) {
+			storeDir += File.separator;
+		}
+		ZArray array = ZArray.open(storeDir + arrayName.replace("/", File.separator) + File.separator);
+		int n = array.shape.length;
+		int height = array.shape[n-2];
+		int width = array.shape[n-1];
+		ImageStack stack = new ImageStack(width, height);
+		int[] index = new int[n];
+		index[0] = well;
+		int exposures = (n>=4) ? array.shape[1] : 1;
+		int replicates = (n==5) ? array.shape[2] : 1;
+		int frames = 0;
+		for (int e = 0; e<exposures; e++) {
+			boolean found = false;
+			for (int r = 0; r<replicates; r++) {
+				if (n>=4) {
+					index[1] = e;
+				}
+				if (n==5) {
+					index[2] = r;
+				}
+				Object pixels = array.readChunk(index);
+				if (pixels!=null) {
+					stack.addSlice((n==5) ? e + "-" + r : Integer.toString(e), pixels);
+					found = true;
+				}
+			}
+			if (found) {
+				frames++;
+			}
+		}
+		if (stack.getSize()==0) {
+			throw new IOException("Well " + well + " was not found in " + arrayName + ".");
+		}
+		ImagePlus imp = new ImagePlus(arrayName + " " + well, stack);
+		if (frames>0 && stack.getSize()==frames*replicates) {
+			imp.setDimensions(1, replicates, frames);
+		}
+		return imp;
+	}
+
+	public static String[] readWellLabels(String storeDir) throws IOException {
+		// Reads the well labels from the index of a store, in the order of the well axis.
+		File index = new File(storeDir, ".zattrs");
+		if (!index.exists()) {
+			throw new IOException("No plate index found in " + storeDir);
+		}
+		String json = new String(readFile(index), "UTF-8");
+		Matcher well = Pattern.compile("\\{\"index\": (\\d+), \"label\": \"((?:[^\"\\\\]|\\\\.)*)\"").matcher(json);
+		ArrayList<String> labels = new ArrayList<String>();
+		while (well.find()) {
+			int i = Integer.parseInt(well.group(1));
+			while (labels.size()<=i) {
+				labels.add(null);
+			}
+			labels.set(i, unquote(well.group(2)));
+		}
+		return labels.toArray(new String[labels.size()]);
+	}
+
+	private static String dtype(int bitDepth) {
+		switch (bitDepth) {
+		case 8:
+			return "|u1";
+		case 16:
+			return "<u2";
+		default:
+			return "<f4";
+		}
+	}
+
+	private static void addPixels(float[] sum, Object pixels) {
+		if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			for (int i = 0; i<sum.length; i++) {
+				sum[i] += p[i] & 0xffff;
+			}
+		} else if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i<sum.length; i++) {
+				sum[i] += p[i] & 0xff;
+			}
+		} else {
+			float[] p = (float[]) pixels;
+			for (int i = 0; i<sum.length; i++) {
+				sum[i] += p[i];
+			}
+		}
+	}
+
+	private static float[] downsample(float[] image, int width, int height) {
+		// Averages 2x2 blocks, dropping the last row or column of an odd sized image.
+		int w = width >> 1;
+		int h = height >> 1;
+		float[] half = new float[w*h];
+		for (int y = 0; y<h; y++) {
+			int row = 2*y*width;
+			for (int x = 0; x<w; x++) {
+				int i = row + 2*x;
+				half[y*w+x] = 0.25f*(image[i] + image[i+1] + image[i+width] + image[i+width+1]);
+			}
+		}
+		return half;
+	}
+
+	private static String quote(String text) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : text.toCharArray()) {
+			if (c=='"' || c=='\\') {
+				quoted.append('\\').append(c);
+			} else if (c<0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static String unquote(String text) {
+		// Undoes quote, for text read back from the index.
+		StringBuilder plain = new StringBuilder();
+		for (int i = 0; i<text.length(); i++) {
+			char c = text.charAt(i);
+			if (c!='\\' || i+1>=text.length()) {
+				plain.append(c);
+			} else if (text.charAt(i+1)=='u' && i+5<text.length()) {
+				plain.append((char) Integer.parseInt(text.substring(i+2, i+6), 16));
+				i += 5;
+			} else {
+				plain.append(text.charAt(++i));
+			}
+		}
+		return plain.toString();
+	}
+
+	private static void writeText(String path, String text) throws IOException {
+		byte[] data = text.getBytes("UTF-8");
+		writeAtomic(new File(path), data, 0, data.length);
+	}
+
+	private static void writeAtomic(File file, byte[] data, int offset, int length) throws IOException {
+		// Writes to a temporary file and renames it, so readers never see a partly written file.
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data, offset, length);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to move " + temp.getName() + " into place.");
+			}
+		}
+	}
+
+	private static void deleteAll(File file) {
+		File[] files = file.listFiles();
+		if (files!=null) {
+			for (File child : files) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n<data.length) {
+				int read = in.read(data, n, data.length-n);
+				if (read<0) {
+					throw new IOException("Unexpected end of " + file.getName());
+				}
+				n += read;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	//This class is a single array in the store. Integer arrays that are compressed use the delta
+	//	filter before zlib, which is the same as the horizontal predictor used for TIFF files.
+	private static class ZArray {
+
+		private String dir;
+		private int[] shape;
+		private int[] chunks;
+		private String dtype;
+		private boolean compress;
+
+		private ZArray(String dir, int[] shape, int[] chunks, String dtype, boolean compress) throws IOException {
+			this.dir = dir;
+			this.shape = shape;
+			this.chunks = chunks;
+			this.dtype = dtype;
+			this.compress = compress;
+			new File(dir).mkdirs();
+			File metadata = new File(dir + ".zarray");
+			if (metadata.exists()) {
+				// Keep the larger shape of an array written before a run was resumed.
+				int[] existing = readInts(new String(readFile(metadata), "UTF-8"), "shape");
+				for (int k = 0; k<Math.min(existing.length, shape.length); k++) {
+					shape[k] = Math.max(shape[k], existing[k]);
+				}
+			}
+			writeMetadata();
+		}
+
+		private static ZArray open(String dir) throws IOException {
+			File metadata = new File(dir + ".zarray");
+			if (!metadata.exists()) {
+				throw new IOException("No array found in " + dir);
+			}
+			String json = new String(readFile(metadata), "UTF-8");
+			Matcher type = Pattern.compile("\"dtype\"\\s*:\\s*\"([^\"]+)\"").matcher(json);
+			if (!type.find()) {
+				throw new IOException("Array in " + dir + " has no data type.");
+			}
+			ZArray array = new ZArray();
+			array.dir = dir;
+			array.shape = readInts(json, "shape");
+			array.chunks = readInts(json, "chunks");
+			array.dtype = type.group(1);
+			array.compress = json.contains("\"zlib\"");
+			return array;
+		}
+
+		private ZArray() {}
+
+		private synchronized void grow(int axis, int size) throws IOException {
+			if (size>shape[axis]) {
+				shape[axis] = size;
+				writeMetadata();
+			}
+		}
+
+		private void writeMetadata() throws IOException {
+			String filters = "null";
+			String compressor = "null";
+			if (compress) {
+				compressor = "{\"id\": \"zlib\", \"level\": 1}";
+				if (!dtype.equals("<f4")) {
+					filters = "[{\"id\": \"delta\", \"dtype\": \"" + dtype + "\"}]";
+				}
+			}
+			writeText(dir + ".zarray", "{\n  \"zarr_format\": 2,\n  \"shape\": " + ints(shape) + ",\n  \"chunks\": " + ints(chunks)
+					+ ",\n  \"dtype\": \"" + dtype + "\",\n  \"compressor\": " + compressor + ",\n  \"fill_value\": 0,\n  \"order\": \"C\",\n  \"filters\": "
+					+ filters + ",\n  \"dimension_separator\": \"/\"\n}\n");
+		}
+
+		private FileChecksum.Folder clearWell(int well) {
+			/*
+			 *  Removes the chunks of a well that is being written again, so its folder only holds
+			 *  what the checksum covers, and returns the checksum to fill in.
+			 */
+			deleteAll(new File(dir + well));
+			return new FileChecksum.Folder();
+		}
+
+		private long writeChunk(int[] index, Object pixels, FileChecksum.Folder checksum) throws IOException {
+			/*
+			 *  Returns the number of bytes written. If a checksum is given, the chunk is added to it
+			 *  by its path inside the folder of its well.
+			 */
+			byte[] data = encode(pixels);
+			int length = data.length;
+			if (compress) {
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				deflater.setStrategy(Deflater.HUFFMAN_ONLY);
+				deflater.setInput(data);
+				deflater.finish();
+				byte[] compressed = new byte[data.length + data.length/1000 + 64];
+				length = 0;
+				while (!deflater.finished()) {
+					if (length==compressed.length) {
+						byte[] larger = new byte[2*compressed.length];
+						System.arraycopy(compressed, 0, larger, 0, length);
+						compressed = larger;
+					}
+					length += deflater.deflate(compressed, length, compressed.length-length);
+				}
+				deflater.end();
+				data = compressed;
+			}
+			File file = new File(dir + key(index));
+			file.getParentFile().mkdirs();
+			writeAtomic(file, data, 0, length);
+			if (checksum!=null) {
+				StringBuilder path = new StringBuilder();
+				for (int k = 1; k<index.length; k++) {
+					path.append((k==1) ? "" : "/").append(index[k]);
+				}
+				checksum.add(path.toString(), FileChecksum.crc(data, length), length);
+			}
+			return length;
+		}
+
+		private Object readChunk(int[] index) throws IOException {
+			// Returns the pixels of a chunk, or null if the chunk was never written.
+			File file = new File(dir + key(index));
+			if (!file.exists()) {
+				return null;
+			}
+			byte[] data = readFile(file);
+			int size = chunks[chunks.length-1]*chunks[chunks.length-2];
+			if (compress) {
+				Inflater inflater = new Inflater();
+				inflater.setInput(data);
+				byte[] raw = new byte[size*bytesPerPixel()];
+				try {
+					int n = 0;
+					while (n<raw.length && !inflater.finished()) {
+						n += inflater.inflate(raw, n, raw.length-n);
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("Chunk " + file.getPath() + " is damaged.", e);
+				} finally {
+					inflater.end();
+				}
+				data = raw;
+			}
+			return decode(data, size);
+		}
+
+		private byte[] encode(Object pixels) {
+			boolean delta = compress && !(pixels instanceof float[]);
+			ByteBuffer buffer;
+			if (pixels instanceof short[]) {
+				short[] p = (short[]) pixels;
+				buffer = ByteBuffer.allocate(2*p.length).order(ByteOrder.LITTLE_ENDIAN);
+				short previous = 0;
+				for (int i = 0; i<p.length; i++) {
+					buffer.putShort(delta ? (short) (p[i]-previous) : p[i]);
+					previous = p[i];
+				}
+			} else if (pixels instanceof byte[]) {
+				byte[] p = (byte[]) pixels;
+				buffer = ByteBuffer.allocate(p.length);
+				byte previous = 0;
+				for (int i = 0; i<p.length; i++) {
+					buffer.put(delta ? (byte) (p[i]-previous) : p[i]);
+					previous = p[i];
+				}
+			} else {
+				float[] p = (float[]) pixels;
+				buffer = ByteBuffer.allocate(4*p.length).order(ByteOrder.LITTLE_ENDIAN);
+				buffer.asFloatBuffer().put(p);
+			}
+			return buffer.array();
+		}
+
+		private Object decode(byte[] data, int size) {
+			boolean delta = compress && !dtype.equals("<f4");
+			ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+			if (dtype.equals("<u2")) {
+				short[] p = new short[size];
+				buffer.asShortBuffer().get(p);
+				for (int i = 1; delta && i<size; i++) {
+					p[i] += p[i-1];
+				}
+				return p;
+			} else if (dtype.equals("|u1")) {
+				byte[] p = new byte[size];
+				buffer.get(p);
+				for (int i = 1; delta && i<size; i++) {
+					p[i] += p[i-1];
+				}
+				return p;
+			}
+			float[] p = new float[size];
+			buffer.asFloatBuffer().get(p);
+			return p;
+		}
+
+		private int bytesPerPixel() {
+			return dtype.equals("|u1") ? 1 : (dtype.equals("<u2") ? 2 : 4);
+		}
+
+		private static String key(int[] index) {
+			StringBuilder key = new StringBuilder();
+			for (int k = 0; k<index.length; k++) {
+				if (k>0) {
+					key.append(File.separatorChar);
+				}
+				key.append(index[k]);
+			}
+			return key.toString();
+		}
+
+		private static String ints(int[] values) {
+			StringBuilder text = new StringBuilder("[");
+			for (int k = 0; k<values.length; k++) {
+				text.append((k==0) ? "" : ", ").append(values[k]);
+			}
+			return text.append("]").toString();
+		}
+
+		private static int[] readInts(String json, String field) throws IOException {
+			Matcher matcher = Pattern.compile("\"" + field + "\"\\s*:\\s*\\[([^\\]]*)\\]").matcher(json);
+			if (!matcher.find()) {
+				throw new IOException("Array metadata has no " + field + ".");
+			}
+			ArrayList<Integer> values = new ArrayList<Integer>();
+			for (String value : matcher.group(1).split(",")) {
+				if (value.trim().length()>0) {
+					values.add(Integer.parseInt(value.trim()));
+				}
+			}
+			int[] result = new int[values.size()];
+			for (int k = 0; k<result.length; k++) {
+				result[k] = values.get(k);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package nist.squire;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import ij.IJ;
+
+//This class keeps a record of the progress of a plate run in the run folder, so that a run that
+//	was stopped can be resumed without repeating calibration or wells that were already imaged.
+//	Each step is written to the journal and flushed to disk before the run moves on. Every line
+//	ends with a checksum of the line, so a line that was only partly written when the run stopped
+//	is ignored, and every saved image is recorded with a checksum of the file so that images that
+//	were damaged or removed are imaged again. An image saved as a folder of chunks in the plate
+//	store is checked with a checksum of every file in the folder. Images of wells are recorded with
+//	the checksum their writer worked out while saving them, so they are only read back on resume.
+//
+//	Journal lines are tab separated:
+//		RUN			run settings
+//		CALIB_FILE	channel, file, file checksum
+//		EXPOSURE	channel, exposure
+//		CALIBRATED
+//		START		position, channel
+//		DONE		position, channel, focus position, file, file checksum
+//		COMPLETE
+public class ProgressJournal {
+
+	public static final String FILE_NAME = "progress.journal";
+
+	private String runDir;
+	private File file;
+	private FileOutputStream out;
+	private String settings;
+	private boolean calibrated = false;
+	private boolean complete = false;
+	private ArrayList<String[]> calibrationFiles = new ArrayList<String[]>();
+	private HashMap<Integer, Double> exposures = new HashMap<Integer, Double>();
+	private HashMap<String, String[]> done = new HashMap<String, String[]>();
+	private HashMap<String, Boolean> verified = new HashMap<String, Boolean>();
+
+	public ProgressJournal(String runDir, String settings) throws IOException {
+		/*
+		 *  Opens the journal in the run folder, reading any progress that was already recorded.
+		 *  A journal for a run with different settings is not reused.
+		 */
+		this.runDir = runDir.endsWith(File.separator) ? runDir : runDir + File.separator;
+		settings = settings.replace('\t', ' ').replace('\n', ' ');
+		file = new File(this.runDir + FILE_NAME);
+		if (file.exists()) {
+			read();
+			if (this.settings!=null && !this.settings.equals(settings)) {
+				IJ.log("Run settings have changed since the last run, progress will not be resumed.");
+				clear();
+			}
+		}
+		boolean isTorn = file.length()>0 && !endsWithNewLine();
+		out = new FileOutputStream(file, true);
+		if (isTorn) {
+			// The last line was only partly written, start a new line so the next entry can be read.
+			out.write('\n');
+		}
+		if (this.settings==null) {
+			this.settings = settings;
+			write("RUN", settings);
+		}
+	}
+
+	public static boolean canResume(File runDir, String settings) {
+		// Checks whether a run folder holds an unfinished run with the same settings.
+		File journal = new File(runDir, FILE_NAME);
+		if (!journal.exists()) {
+			return false;
+		}
+		try {
+			ProgressJournal previous = new ProgressJournal();
+			previous.file = journal;
+			previous.read();
+			return !previous.complete && settings.equals(previous.settings);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private ProgressJournal() {}
+
+	public synchronized void addCalibrationFile(int channel, String path) throws IOException {
+		String[] entry = {Integer.toString(channel), relativePath(path), checksum(path)};
+		write("CALIB_FILE", entry[0], entry[1], entry[2]);
+		calibrationFiles.add(entry);
+	}
+
+	public synchronized void setExposure(int channel, double exposure) throws IOException {
+		write("EXPOSURE", Integer.toString(channel), Double.toString(exposure));
+		exposures.put(channel, exposure);
+	}
+
+	public synchronized void setCalibrated() throws IOException {
+		write("CALIBRATED");
+		calibrated = true;
+	}
+
+	public synchronized void start(String position, int channel) throws IOException {
+		write("START", position, Integer.toString(channel));
+	}
+
+	public synchronized void done(String position, int channel, double focus, String path, String checksum) throws IOException {
+		// Checksum is the one checksum(path) would give, worked out while the image was saved.
+		String[] entry = {Double.toString(focus), relativePath(path), checksum};
+		write("DONE", position, Integer.toString(channel), entry[0], entry[1], entry[2]);
+		done.put(key(position, channel), entry);
+		verified.put(key(position, channel), true);
+	}
+
+	public synchronized void setComplete() throws IOException {
+		write("COMPLETE");
+		complete = true;
+	}
+
+	public synchronized boolean isCalibrated() {
+		/*
+		 *  Calibration is only reused if it finished and all of the calibration images it needs
+		 *  are still on disk and unchanged.
+		 */
+		if (!calibrated) {
+			return false;
+		}
+		for (String[] calibrationFile : calibrationFiles) {
+			if (!calibrationFile[2].equals(checksum(runDir + calibrationFile[1]))) {
+				IJ.log("Calibration image " + calibrationFile[1] + " is missing or changed, calibration will be repeated.");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Calibration images recorded for a channel, in the order they were recorded.
+	public synchronized String[] getCalibrationFiles(int channel) {
+		ArrayList<String> files = new ArrayList<String>();
+		for (String[] calibrationFile : calibrationFiles) {
+			if (Integer.parseInt(calibrationFile[0])==channel) {
+				files.add(runDir + calibrationFile[1]);
+			}
+		}
+		return files.toArray(new String[files.size()]);
+	}
+
+	// Exposure chosen during calibration for a channel, or NaN if it was not recorded.
+	public synchronized double getExposure(int channel) {
+		Double exposure = exposures.get(channel);
+		return (exposure==null) ? Double.NaN : exposure;
+	}
+
+	public synchronized boolean isDone(String position, int channel) {
+		String key = key(position, channel);
+		String[] entry = done.get(key);
+		if (entry==null) {
+			return false;
+		}
+		Boolean isValid = verified.get(key);
+		if (isValid==null) {
+			isValid = entry[2].equals(checksum(runDir + entry[1]));
+			if (!isValid) {
+				IJ.log("Image " + entry[1] + " is missing or changed, it will be imaged again.");
+			}
+			verified.put(key, isValid);
+		}
+		return isValid;
+	}
+
+	// Focus position recorded when a position and channel were imaged, or NaN if it was not imaged.
+	public synchronized double getFocus(String position, int channel) {
+		String[] entry = done.get(key(position, channel));
+		return (entry==null) ? Double.NaN : Double.parseDouble(entry[0]);
+	}
+
+	public synchronized int getNumDone() {return done.size();}
+
+	public synchronized void close() {
+		try {
+			if (out!=null) {
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void read() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine())!=null) {
+				int split = line.lastIndexOf('\t');
+				if (split<0 || !line.substring(split+1).equals(lineChecksum(line.substring(0, split)))) {
+					continue;
+				}
+				String[] fields = line.substring(0, split).split("\t", -1);
+				if (fields[0].equals("RUN") && fields.length>=2) {
+					settings = fields[1];
+				} else if (fields[0].equals("CALIB_FILE") && fields.length>=4) {
+					calibrationFiles.add(new String[] {fields[1], fields[2], fields[3]});
+				} else if (fields[0].equals("EXPOSURE") && fields.length>=3) {
+					exposures.put(Integer.parseInt(fields[1]), Double.parseDouble(fields[2]));
+				} else if (fields[0].equals("CALIBRATED")) {
+					calibrated = true;
+				} else if (fields[0].equals("DONE") && fields.length>=6) {
+					done.put(key(fields[1], Integer.parseInt(fields[2])), new String[] {fields[3], fields[4], fields[5]});
+				} else if (fields[0].equals("COMPLETE")) {
+					complete = true;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private boolean endsWithNewLine() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(raf.length()-1);
+			return raf.read()=='\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void clear() throws IOException {
+		settings = null;
+		calibrated = false;
+		complete = false;
+		calibrationFiles.clear();
+		exposures.clear();
+		done.clear();
+		verified.clear();
+		File old = new File(runDir + FILE_NAME + ".old");
+		old.delete();
+		if (!file.renameTo(old)) {
+			throw new IOException("Unable to move old progress journal out of the way.");
+		}
+	}
+
+	private void write(String... fields) throws IOException {
+		/*
+		 *  Appends a line to the journal and forces it to disk, so the step is recorded even if
+		 *  the computer stops right after.
+		 */
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i<fields.length; i++) {
+			if (i>0) {
+				line.append('\t');
+			}
+			line.append(fields[i].replace('\t', ' ').replace('\n', ' '));
+		}
+		String text = line.toString();
+		out.write((text + "\t" + lineChecksum(text) + "\n").getBytes("UTF-8"));
+		out.flush();
+		out.getFD().sync();
+	}
+
+	private String relativePath(String path) {
+		return path.startsWith(runDir) ? path.substring(runDir.length()) : path;
+	}
+
+	private static String key(String position, int channel) {
+		return position + "\t" + channel;
+	}
+
+	private static String lineChecksum(String text) {
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(text.getBytes("UTF-8"));
+		} catch (IOException e) {
+			crc.update(text.getBytes());
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	public static String checksum(String path) {
+		// CRC32 of a file or of the files in a folder, or an empty string if they can not be read.
+		CRC32 crc = new CRC32();
+		try {
+			update(crc, new File(path), new byte[1 << 16]);
+		} catch (IOException e) {
+			return "";
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	private static void update(CRC32 crc, File file, byte[] buffer) throws IOException {
+		/*
+		 *  Adds a file to the checksum. Folders add the name and contents of each file in name
+		 *  order, so a missing or renamed file changes the checksum.
+		 */
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			if (files==null || files.length==0) {
+				throw new IOException("Empty folder " + file.getPath());
+			}
+			Arrays.sort(files);
+			for (File child : files) {
+				crc.update(child.getName().getBytes("UTF-8"));
+				update(crc, child, buffer);
+			}
+			return;
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buffer))>0) {
+				crc.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
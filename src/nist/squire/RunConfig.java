@@ -0,0 +1,152 @@
+package nist.squire;
+
+//This class is a snapshot of the settings of one run, taken when the run is started. It can not
+//	be changed once it is made, so the capture, save and processing threads of a run can all read
+//	it without locking, and a change made in the GUI while a run is going does not reach that run.
+//	Settings that change during a run, such as the calibrated exposures, are kept in RunState.
+public final class RunConfig {
+
+	private final String plateID;
+	private final String outDir;
+	private final String runSettings;
+	private final int numChannels;
+	private final int numReplicates;
+	private final int numSamples;
+	private final boolean isAutomated;
+	private final boolean isAbsorbance;
+
+	// Channel settings, by channel index
+	private final String[] channelName;
+	private final String[] absorptionSetting;
+	private final String[] fluorescentDevice;
+	private final String[] fluorescentDeviceSetting;
+	private final String[] transmittedDevice;
+	private final String[] transmittedDeviceSetting;
+	private final double[] channelExposure;
+	private final double[] channelOffset;
+	private final boolean[] useAutofocus;
+	private final String[] channelImageDir;
+	private final String[] rawImageDir;
+	private final String[] calibrationImageDir;
+
+	// Hardware and option settings
+	private final boolean hasAutoShutter;
+	private final String fluorescentShutter;
+	private final String transmittedShutter;
+	private final boolean optimizeChannelOrder;
+	private final boolean channelMajor;
+	private final boolean predictFocus;
+	private final double focusTolerance;
+	private final int focusVerifyInterval;
+	private final boolean compressImages;
+	private final boolean usePlateStore;
+	private final boolean processAbsorbance;
+	private final boolean monitorDrift;
+	private final boolean waitForStable;
+	// Region (% of the frame) and stride the calibration curves are sampled from
+	private final int calibrationRoi;
+	private final int calibrationStride;
+
+	private RunConfig() {
+		plateID = AppParams.getPlateID();
+		outDir = AppParams.getOutDir();
+		numChannels = AppParams.getChannels();
+		numReplicates = AppParams.getNumReplicates();
+		numSamples = AppParams.getNumSamples();
+		isAutomated = AppParams.getIsAutomated();
+		isAbsorbance = AppParams.getIsAbsorbance();
+
+		channelName = new String[numChannels];
+		absorptionSetting = new String[numChannels];
+		fluorescentDevice = new String[numChannels];
+		fluorescentDeviceSetting = new String[numChannels];
+		transmittedDevice = new String[numChannels];
+		transmittedDeviceSetting = new String[numChannels];
+		channelExposure = new double[numChannels];
+		channelOffset = new double[numChannels];
+		useAutofocus = new boolean[numChannels];
+		channelImageDir = new String[numChannels];
+		rawImageDir = new String[numChannels];
+		calibrationImageDir = new String[numChannels];
+		for (int j = 0; j<numChannels; j++) {
+			channelName[j] = AppParams.getChannelName().get(j);
+			absorptionSetting[j] = AppParams.getAbsorptionSetting().get(j);
+			fluorescentDevice[j] = AppParams.getFluorescentDevice().get(j);
+			fluorescentDeviceSetting[j] = AppParams.getFluorescentDeviceSetting().get(j);
+			transmittedDevice[j] = AppParams.getTransmittedDevice().get(j);
+			transmittedDeviceSetting[j] = AppParams.getTransmittedDeviceSetting().get(j);
+			channelExposure[j] = AppParams.getChannelExposures().get(j);
+			channelOffset[j] = AppParams.getChannelOffset().get(j);
+			useAutofocus[j] = AppParams.getAutofocus().get(j);
+			// Folders are only made for runs that save images.
+			if (AppParams.hasImageDirs()) {
+				channelImageDir[j] = AppParams.getChannelImageDir(j);
+				rawImageDir[j] = AppParams.getRawImageDir(j);
+				calibrationImageDir[j] = AppParams.getCalibrationImageDir(j);
+			}
+		}
+		runSettings = AppParams.getRunSettings();
+
+		hasAutoShutter = AppParams.hasAutoShutter();
+		fluorescentShutter = AppParams.getFluorescentShutter();
+		transmittedShutter = AppParams.getTransmittedShutter();
+		optimizeChannelOrder = AppParams.getOptimizeChannelOrder();
+		channelMajor = AppParams.getChannelMajor();
+		predictFocus = AppParams.getPredictFocus();
+		focusTolerance = AppParams.getFocusTolerance();
+		focusVerifyInterval = AppParams.getFocusVerifyInterval();
+		compressImages = AppParams.getCompressImages();
+		usePlateStore = AppParams.getUsePlateStore();
+		processAbsorbance = AppParams.getProcessAbsorbance();
+		monitorDrift = AppParams.getMonitorDrift();
+		waitForStable = AppParams.getWaitForStable();
+		calibrationRoi = AppParams.getCalibrationRoi();
+		calibrationStride = AppParams.getCalibrationStride();
+	}
+
+	// Takes a snapshot of the settings in AppParams, after they were pulled from the GUI.
+	public static RunConfig fromAppParams() {
+		return new RunConfig();
+	}
+
+	public String getPlateID() {return plateID;}
+	public String getOutDir() {return outDir;}
+	// Describes the settings that must be the same for a stopped run to be resumed.
+	public String getRunSettings() {return runSettings;}
+	public int getNumChannels() {return numChannels;}
+	public int getNumReplicates() {return numReplicates;}
+	public int getNumSamples() {return numSamples;}
+	public boolean isAutomated() {return isAutomated;}
+	public boolean isAbsorbance() {return isAbsorbance;}
+
+	public String getChannelName(int j) {return channelName[j];}
+	public String getAbsorptionSetting(int j) {return absorptionSetting[j];}
+	public boolean isAbsorbanceChannel(int j) {return absorptionSetting[j].equals("Absorbance");}
+	public String getFluorescentDevice(int j) {return fluorescentDevice[j];}
+	public String getFluorescentDeviceSetting(int j) {return fluorescentDeviceSetting[j];}
+	public String getTransmittedDevice(int j) {return transmittedDevice[j];}
+	public String getTransmittedDeviceSetting(int j) {return transmittedDeviceSetting[j];}
+	// Exposure entered in the GUI. The exposure chosen by calibration is in RunState.
+	public double getChannelExposure(int j) {return channelExposure[j];}
+	public double getChannelOffset(int j) {return channelOffset[j];}
+	public boolean getAutofocus(int j) {return useAutofocus[j];}
+	public String getChannelImageDir(int j) {return channelImageDir[j];}
+	public String getRawImageDir(int j) {return rawImageDir[j];}
+	public String getCalibrationImageDir(int j) {return calibrationImageDir[j];}
+
+	public boolean hasAutoShutter() {return hasAutoShutter;}
+	public String getFluorescentShutter() {return fluorescentShutter;}
+	public String getTransmittedShutter() {return transmittedShutter;}
+	public boolean getOptimizeChannelOrder() {return optimizeChannelOrder;}
+	public boolean getChannelMajor() {return channelMajor;}
+	public boolean getPredictFocus() {return predictFocus;}
+	public double getFocusTolerance() {return focusTolerance;}
+	public int getFocusVerifyInterval() {return focusVerifyInterval;}
+	public boolean getCompressImages() {return compressImages;}
+	public boolean getUsePlateStore() {return usePlateStore;}
+	public boolean getProcessAbsorbance() {return processAbsorbance;}
+	public boolean getMonitorDrift() {return monitorDrift;}
+	public boolean getWaitForStable() {return waitForStable;}
+	public int getCalibrationRoi() {return calibrationRoi;}
+	public int getCalibrationStride() {return calibrationStride;}
+}
@@ -0,0 +1,64 @@
+package nist.squire;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ij.ImagePlus;
+
+//This class holds what a run learns while it is going: the dark background, light blanks and
+//	foregrounds collected during calibration, the exposure chosen for each channel, and the sample
+//	being imaged. Every stage of a run gets the same RunState, and it is safe to read and change
+//	from any thread. Each run gets its own RunState, so two runs do not see each other's
+//	calibration.
+public class RunState {
+
+	private volatile ImageStats darkBlank;
+	private final List<ImageStats> lightBlank = new CopyOnWriteArrayList<ImageStats>();
+	private final List<ImagePlus> foreground = new CopyOnWriteArrayList<ImagePlus>();
+	private final List<Integer> foregroundImages = new CopyOnWriteArrayList<Integer>();
+	private final ArrayList<Double> channelExposure = new ArrayList<Double>();
+	private volatile String currentSampleName = "Undefined";
+
+	// State of a run with no channels yet, before any settings were taken.
+	public RunState() {}
+
+	// Starts with the exposures entered for each channel, until calibration replaces them.
+	public RunState(RunConfig config) {
+		for (int j = 0; j<config.getNumChannels(); j++) {
+			channelExposure.add(config.getChannelExposure(j));
+		}
+	}
+
+	public ImageStats getDarkBlank() {return darkBlank;}
+
+	public void setDarkBlank(ImageStats darkBlank) {this.darkBlank = darkBlank;}
+
+	// Light blanks are added in the order of the absorbance channels.
+	public ImageStats getLightBlank(int index) {return lightBlank.get(index);}
+
+	public void addLightBlank(ImageStats stats) {lightBlank.add(stats);}
+
+	public ImagePlus getForeground(int index) {return foreground.get(index);}
+
+	// Number of images averaged into a foreground, which sets how much noise it still has.
+	public int getForegroundImages(int index) {return foregroundImages.get(index);}
+
+	public void addForeground(ImagePlus image, int images) {
+		foreground.add(image);
+		foregroundImages.add(images);
+	}
+
+	public synchronized double getChannelExposure(int index) {return channelExposure.get(index);}
+
+	public synchronized void setChannelExposure(int index, double exposure) {
+		while (channelExposure.size()<=index) {
+			channelExposure.add(1.0);
+		}
+		channelExposure.set(index, exposure);
+	}
+
+	public String getCurrentSampleName() {return currentSampleName;}
+
+	public void setCurrentSampleName(String sampleName) {currentSampleName = sampleName;}
+}
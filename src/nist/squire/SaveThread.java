@@ -1,7 +1,9 @@
 package nist.squire;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -11,17 +13,34 @@ import ij.ImagePlus;
 
 public class SaveThread implements Runnable {
 
+	private static final String BLANK_IMAGES = "# Blank Images, ";
 	private String rawImageDir;
 	private boolean isCalib;
 	private ImagePlus rawImage;
+	private ImageStats stats;
 	private int channelIndex;
+	private RunConfig config;
+	private RunState state;
 	
+	// Saves a calibration image using statistics that were already calculated for it.
+	public SaveThread(RunConfig config, RunState state, ImageStats stats, int channelIndex) {
+		this(config, state, stats.rawImage, channelIndex, true);
+		this.stats = stats;
+	}
+	
+	// Saves an image of the run that was started last.
 	public SaveThread(ImagePlus image, int channelIndex, boolean isCalib) {
+		this(AppParams.getRunConfig(), AppParams.getRunState(), image, channelIndex, isCalib);
+	}
+	
+	public SaveThread(RunConfig config, RunState state, ImagePlus image, int channelIndex, boolean isCalib) {
+		this.config = config;
+		this.state = state;
 		rawImage = image;
 		if (isCalib) {
-			rawImageDir = AppParams.getCalibrationImageDir(channelIndex);
+			rawImageDir = config.getCalibrationImageDir(channelIndex);
 		} else {
-			rawImageDir = AppParams.getRawImageDir(channelIndex);
+			rawImageDir = config.getRawImageDir(channelIndex);
 		}
 		this.isCalib = isCalib;
 		this.channelIndex = channelIndex;
@@ -42,26 +61,70 @@ public class SaveThread implements Runnable {
 		if (isCalib) {
 			try {
 				if (imp.getNFrames()==1) {
-					PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(new File(AppParams.getCalibrationImageDir(channelIndex) + imp.getTitle() + ".txt"))));
-					pw.println("Channel Name, " + AppParams.getChannelName().get(channelIndex));
-					pw.println("Channel Exposure, " + AppParams.getChannelExposures().get(channelIndex));
-					pw.println("# Blank Images, " + imp.getNSlices());
+					PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(new File(config.getCalibrationImageDir(channelIndex) + imp.getTitle() + ".txt"))));
+					pw.println("Channel Name, " + config.getChannelName(channelIndex));
+					pw.println("Channel Exposure, " + state.getChannelExposure(channelIndex));
+					pw.println(BLANK_IMAGES + imp.getNSlices());
 					pw.close();
-					ImageStats imstats = new ImageStats(imp);
-					IJ.saveAsTiff(imstats.getFrameMean(), saveDir+imp.getTitle()+"-Mean");
-					IJ.saveAsTiff(imstats.getFrameDeviation(), saveDir+imp.getTitle()+"-STD");
+					// Mean and deviation images are only calculated here if the capture thread did not need them.
+					ImageStats imstats = (stats!=null) ? stats : new ImageStats(imp);
+					saveTiff(imstats.getFrameMean(), saveDir+imp.getTitle()+"-Mean", config.getCompressImages());
+					saveTiff(imstats.getFrameDeviation(), saveDir+imp.getTitle()+"-STD", config.getCompressImages());
 					imstats = null;
 				} else {
-					IJ.saveAsTiff(imp, saveDir+imp.getTitle());
+					saveTiff(imp, saveDir+imp.getTitle(), config.getCompressImages());
 				}
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
 		} else {
-			IJ.saveAsTiff(imp, saveDir+imp.getTitle());
+			try {
+				saveTiff(imp, saveDir+imp.getTitle(), config.getCompressImages());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 		
 	}
 	
+	// Number of blank images recorded with a calibration image, or 0 if it cannot be read.
+	public static int readBlankImages(String infoPath) {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(infoPath));
+			try {
+				String line;
+				while ((line = reader.readLine())!=null) {
+					if (line.startsWith(BLANK_IMAGES)) {
+						return Integer.parseInt(line.substring(BLANK_IMAGES.length()).trim());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not read " + infoPath + ": " + e.getMessage());
+		} catch (NumberFormatException e) {
+			System.out.println("Could not read " + infoPath + ": " + e.getMessage());
+		}
+		return 0;
+	}
+	
+	// Saves an image as a TIFF, with lossless compression if it is turned on.
+	public static String saveTiff(ImagePlus imp, String path) throws IOException {
+		return saveTiff(imp, path, AppParams.getCompressImages());
+	}
+	
+	public static String saveTiff(ImagePlus imp, String path, boolean compress) throws IOException {
+		/*
+		 *  Returns the checksum of the file for the progress journal. Compressed files get it
+		 *  while they are written; files saved by ImageJ are read back for it.
+		 */
+		if (compress) {
+			return TiffStackWriter.save(imp, path, TiffStackWriter.DEFLATE);
+		}
+		IJ.saveAsTiff(imp, path);
+		return ProgressJournal.checksum(path.endsWith(".tif") || path.endsWith(".tiff") ? path : path + ".tif");
+	}
+	
 }
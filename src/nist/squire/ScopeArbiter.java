@@ -0,0 +1,95 @@
+package nist.squire;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+//This class decides which thread may use the camera, shutters and stage. A plate run holds the
+//	microscope for as long as it runs and offers it to other threads between wells, so the drift
+//	monitor can take short measurements at its blank position without interrupting a well.
+//	Threads are served in the order they asked, so a plate run that offers the microscope always
+//	gets it back after the waiting threads are done. Measurements that would disturb a plate run,
+//	or be disturbed by it, such as the stability benchmark, use acquireWhenIdle to wait until the
+//	run releases the microscope for good instead of taking it between wells.
+public class ScopeArbiter {
+
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private volatile String owner;
+	// Thread that holds the microscope and offers it between steps, until it releases it
+	private volatile Thread lender;
+
+	public void acquire(String owner) throws InterruptedException {
+		/*
+		 *  Waits until no other thread is using the microscope. Can be called again by the thread
+		 *  that holds it, as long as each call is matched by a call to release.
+		 */
+		lock.lockInterruptibly();
+		if (lock.getHoldCount()==1) {
+			this.owner = owner;
+		}
+	}
+
+	public void acquireWhenIdle(String owner) throws InterruptedException {
+		/*
+		 *  Same as acquire, but does not take the microscope while the thread holding it is only
+		 *  offering it between steps, such as a plate run between wells. Waits until that thread
+		 *  releases it instead.
+		 */
+		while (true) {
+			synchronized (this) {
+				while (lender!=null && lender!=Thread.currentThread()) {
+					wait();
+				}
+			}
+			acquire(owner);
+			Thread current = lender;
+			if (current==null || current==Thread.currentThread()) {
+				return;
+			}
+			// Offered by a run that started while this thread was waiting
+			release();
+		}
+	}
+
+	public void release() {
+		boolean isLast = (lock.getHoldCount()==1);
+		if (isLast) {
+			owner = null;
+		}
+		lock.unlock();
+		if (isLast && lender==Thread.currentThread()) {
+			synchronized (this) {
+				lender = null;
+				notifyAll();
+			}
+		}
+	}
+
+	public boolean offer() {
+		/*
+		 *  Lets any threads that are waiting use the microscope, then takes it back. Returns true
+		 *  if another thread used the microscope, in which case the stage, shutters and exposure
+		 *  may need to be set again. Until it releases the microscope, the calling thread is
+		 *  taken to be lending it, so acquireWhenIdle waits for it.
+		 */
+		lender = Thread.currentThread();
+		if (!lock.hasQueuedThreads()) {
+			return false;
+		}
+		String name = owner;
+		int holds = lock.getHoldCount();
+		owner = null;
+		for (int i = 0; i<holds; i++) {
+			lock.unlock();
+		}
+		// Fairness puts this thread behind the threads that were already waiting.
+		for (int i = 0; i<holds; i++) {
+			lock.lock();
+		}
+		owner = name;
+		return true;
+	}
+
+	// Name of the task currently using the microscope, or null if it is free.
+	public String getOwner() {return owner;}
+
+	public boolean isHeldByCurrentThread() {return lock.isHeldByCurrentThread();}
+}
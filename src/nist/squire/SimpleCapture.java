@@ -1,5 +1,6 @@
 package nist.squire;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import ij.IJ;
@@ -13,7 +14,11 @@ public class SimpleCapture {
 	private int bitDepth = 16;
 	private int width = (int) core_.getImageWidth();
 	private int height = (int) core_.getImageHeight();
+	// Attached to every captured image, so its statistics do not need to ask the camera
+	private ImageGeometry geometry = ImageGeometry.forCamera(core_);
 	private boolean isLive = false;
+	// Percentile of the pixels that has to reach the threshold, so a few dead pixels do not keep doubling the exposure
+	private static final double THRESHOLD_PERCENTILE = 0.1;
 	
 	public SimpleCapture(boolean startLive) {
 		if (startLive) {
@@ -52,20 +57,29 @@ public class SimpleCapture {
 		}
 		
 		imageSeries.setPosition(1,1,1);
-		return imageSeries;
+		return geometry.attach(imageSeries);
 	}
 	
 	public ImagePlus threshCaptureSeries(String imgName, double exp, int replicates,int thresh){
+		return threshCaptureSeries(imgName, exp, replicates, thresh, null);
+	}
+	
+	public ImagePlus threshCaptureSeries(String imgName, double exp, int replicates, int thresh, TiffStackWriter writer){
+		/*
+		 *  Captures replicate series at doubling exposures until the THRESHOLD_PERCENTILE of the
+		 *  replicate pixels reaches the threshold. If a writer is given, every frame is written to
+		 *  it as it is captured, in the same order as the returned hyperstack.
+		 */
 		ArrayList<ImagePlus> captureSeries = new ArrayList<ImagePlus>();
-		captureSeries.add(seriesCapture(imgName,exp,replicates));
+		captureSeries.add(seriesCapture(imgName,exp,replicates,writer));
 		int index = 0;
 		ImageStats temp = new ImageStats(captureSeries.get(0));
-		double min = temp.getFrameMean().getStatistics().min;
+		double min = temp.getFrameHistogram(0).percentile(THRESHOLD_PERCENTILE);
 		while (min<thresh) {
 			index++;
-			captureSeries.add(seriesCapture(imgName,exp*Math.pow(2, index),replicates));
+			captureSeries.add(seriesCapture(imgName,exp*Math.pow(2, index),replicates,writer));
 			temp = new ImageStats(captureSeries.get(index));
-			min = temp.getFrameMean().getStatistics().min;
+			min = temp.getFrameHistogram(0).percentile(THRESHOLD_PERCENTILE);
 		}
 		ImagePlus imageSeries = IJ.createHyperStack(imgName, width, height, 1, replicates, captureSeries.size(), bitDepth);
 		for (int i=1; i<=captureSeries.size(); i++) {
@@ -77,10 +91,14 @@ public class SimpleCapture {
 			}
 		}
 		imageSeries.setPosition(1,1,1);
-		return imageSeries;
+		return geometry.attach(imageSeries);
 	}
 	
 	public ImagePlus seriesCapture(String imgName, double exposure, int replicates) {
+		return seriesCapture(imgName, exposure, replicates, null);
+	}
+	
+	public ImagePlus seriesCapture(String imgName, double exposure, int replicates, TiffStackWriter writer) {
 		
 		ImagePlus imageSeries = IJ.createHyperStack(imgName, width, height, 1, replicates, 1, bitDepth);
 		double dExposure = exposure;
@@ -105,17 +123,26 @@ public class SimpleCapture {
 					remainingImages = replicates-currentSlice;
 				}
 				for (int j = 0; j<remainingImages; j++) {
+					Object pixels = core_.popNextImage();
+					String label = Double.toString(core_.getExposure());
 					imageSeries.setPosition(1, ++currentSlice, 1);
-					imageSeries.getProcessor().setPixels(core_.popNextImage());
-					imageSeries.getStack().setSliceLabel(Double.toString(core_.getExposure()), currentSlice);
+					imageSeries.getProcessor().setPixels(pixels);
+					imageSeries.getStack().setSliceLabel(label, currentSlice);
+					if (writer!=null) {
+						writer.addFrame(pixels, label);
+					}
 				}
 			}
 			
 			int remainingImages = replicates-currentSlice;
 			for (int j = 0; j<remainingImages; j++) {
+				Object pixels = core_.popNextImage();
 				imageSeries.setPosition(1, ++currentSlice, 1);
-				imageSeries.getProcessor().setPixels(core_.popNextImage());
+				imageSeries.getProcessor().setPixels(pixels);
 				imageSeries.getStack().setSliceLabel(Double.toString(exposure), currentSlice);
+				if (writer!=null) {
+					writer.addFrame(pixels, Double.toString(exposure));
+				}
 			}
 			
 			if (!isLive) {
@@ -128,10 +155,26 @@ public class SimpleCapture {
 		
 		imageSeries.setPosition(1,1,1);
 		
-		return imageSeries;
+		return geometry.attach(imageSeries);
 		
 	}
 	
+	// Opens a TIFF file that captured frames can be written to as they arrive.
+	public TiffStackWriter openStack(String path, int replicates) throws IOException {
+		TiffStackWriter writer = new TiffStackWriter(path, width, height, bitDepth, replicates);
+		if (AppParams.getCompressImages()) {
+			writer.setCompression(TiffStackWriter.DEFLATE);
+		}
+		return writer;
+	}
+	
+	// Samples the calibration curves of the images captured from now on from a region and stride.
+	public void setCalibrationSampling(int roiPercent, int stride) {
+		geometry = geometry.withCalibrationSampling(roiPercent, stride);
+	}
+	
+	public ImageGeometry getGeometry() {return geometry;}
+	
 	// Captures a single image and returns an ImagePlus image.
 	public ImagePlus singleCapture(String str) {
 
@@ -161,7 +204,7 @@ public class SimpleCapture {
 
 		implus.setTitle(str);
 		
-		return implus;
+		return geometry.attach(implus);
 	}
 	
 	public ImagePlus singleCapture(String str, double exposure) {
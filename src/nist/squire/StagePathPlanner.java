@@ -0,0 +1,404 @@
+package nist.squire;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import org.micromanager.api.PositionList;
+
+import ij.IJ;
+
+//This class orders imaging positions so that the XY stage spends as little time as possible
+//	moving between them. The first position of the list stays first, since a run calibrates at
+//	it when it is a blank well; the planner does not look for where the stage starts. A path is
+//	built by always moving to the nearest unvisited position, then improved with 2-opt moves
+//	until no move shortens the path.
+//
+//	The cost of a move is the time the stage takes to make it. Both axes move at the same time,
+//	so the move time is set by the axis that has the farthest to go. Each axis accelerates to
+//	the maximum speed, moves, then decelerates, or accelerates and decelerates without reaching
+//	the maximum speed for short moves.
+public class StagePathPlanner {
+
+	// Number of nearest positions considered for each 2-opt move
+	private static final int NUM_NEIGHBORS = 10;
+	// Maximum time spent improving the path
+	private static final long TIME_LIMIT = 800; //ms
+	private static final double EPSILON = 1e-9;
+
+	private double speed; //um/ms
+	private double acceleration; //um/ms^2
+	private double[] x;
+	private double[] y;
+
+	// Spatial grid used to find nearby positions
+	private double minX;
+	private double minY;
+	private double cellSize;
+	private int gridCols;
+	private int gridRows;
+	private int[][] cellPoints;
+	private int[] cellCount;
+
+	// Stage speed is in um/s and acceleration is in um/s^2.
+	public StagePathPlanner(double speed, double acceleration) {
+		this.speed = speed/1000;
+		this.acceleration = acceleration/1000000;
+	}
+
+	public PositionList optimize(PositionList positions) {
+		int numPositions = positions.getNumberOfPositions();
+		if (numPositions<3) {
+			return positions;
+		}
+
+		double[] px = new double[numPositions];
+		double[] py = new double[numPositions];
+		int[] original = new int[numPositions];
+		for (int i = 0; i<numPositions; i++) {
+			px[i] = positions.getPosition(i).getX();
+			py[i] = positions.getPosition(i).getY();
+			original[i] = i;
+		}
+
+		long startTime = System.currentTimeMillis();
+		int[] path = planPath(px, py);
+		long planTime = System.currentTimeMillis() - startTime;
+
+		PositionList optimized = new PositionList();
+		for (int i : path) {
+			optimized.addPosition(positions.getPosition(i));
+		}
+
+		IJ.log("Stage path planned for " + numPositions + " positions in " + planTime + "ms");
+		IJ.log("Estimated stage travel time: " + Math.round(pathTime(original)) + "ms before, " + Math.round(pathTime(path)) + "ms after");
+		return optimized;
+	}
+
+	public int[] planPath(double[] px, double[] py) {
+		/*
+		 *  Returns the order positions should be visited in, starting with the first position.
+		 */
+		x = px;
+		y = py;
+		int numPositions = x.length;
+		if (numPositions<3) {
+			int[] path = new int[numPositions];
+			for (int i = 0; i<numPositions; i++) {
+				path[i] = i;
+			}
+			return path;
+		}
+
+		long startTime = System.currentTimeMillis();
+		buildGrid();
+		int[][] neighbors = findNeighbors(Math.min(NUM_NEIGHBORS, numPositions-1));
+		int[] path = nearestNeighborPath();
+		twoOpt(path, neighbors, startTime + TIME_LIMIT);
+		return path;
+	}
+
+	// Estimated time in milliseconds for the stage to move between two positions.
+	public double moveTime(int from, int to) {
+		double distance = Math.max(Math.abs(x[from]-x[to]), Math.abs(y[from]-y[to]));
+		double rampDistance = speed*speed/acceleration;
+		if (distance<rampDistance) {
+			return 2*Math.sqrt(distance/acceleration);
+		}
+		return distance/speed + speed/acceleration;
+	}
+
+	public double pathTime(int[] path) {
+		double time = 0;
+		for (int i = 1; i<path.length; i++) {
+			time += moveTime(path[i-1], path[i]);
+		}
+		return time;
+	}
+
+	private void buildGrid() {
+		/*
+		 *  Positions are sorted into square cells so that each cell holds about two positions.
+		 */
+		int numPositions = x.length;
+		minX = x[0];
+		minY = y[0];
+		double maxX = x[0];
+		double maxY = y[0];
+		for (int i = 1; i<numPositions; i++) {
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		double width = Math.max(maxX-minX, EPSILON);
+		double height = Math.max(maxY-minY, EPSILON);
+		cellSize = Math.sqrt(2*width*height/numPositions);
+		cellSize = Math.max(cellSize, Math.max(width, height)/numPositions);
+		gridCols = (int) (width/cellSize) + 1;
+		gridRows = (int) (height/cellSize) + 1;
+
+		cellCount = new int[gridCols*gridRows];
+		for (int i = 0; i<numPositions; i++) {
+			cellCount[cellIndex(i)]++;
+		}
+		cellPoints = new int[cellCount.length][];
+		for (int c = 0; c<cellCount.length; c++) {
+			cellPoints[c] = new int[cellCount[c]];
+			cellCount[c] = 0;
+		}
+		for (int i = 0; i<numPositions; i++) {
+			int c = cellIndex(i);
+			cellPoints[c][cellCount[c]++] = i;
+		}
+	}
+
+	private int cellIndex(int i) {
+		int col = (int) ((x[i]-minX)/cellSize);
+		int row = (int) ((y[i]-minY)/cellSize);
+		return row*gridCols + col;
+	}
+
+	private double distance(int a, int b) {
+		// Move time only depends on the longest axis, so positions are compared by that distance.
+		return Math.max(Math.abs(x[a]-x[b]), Math.abs(y[a]-y[b]));
+	}
+
+	private int[][] findNeighbors(int numNeighbors) {
+		/*
+		 *  Finds the closest positions to each position, sorted from closest to farthest. Rings
+		 *  of cells are searched outward until no closer position could be found.
+		 */
+		int numPositions = x.length;
+		int[][] neighbors = new int[numPositions][numNeighbors];
+		double[] bestDistance = new double[numNeighbors];
+		int maxRing = Math.max(gridCols, gridRows);
+
+		for (int i = 0; i<numPositions; i++) {
+			int found = 0;
+			int col = (int) ((x[i]-minX)/cellSize);
+			int row = (int) ((y[i]-minY)/cellSize);
+			for (int ring = 0; ring<=maxRing; ring++) {
+				for (int r = row-ring; r<=row+ring; r++) {
+					if (r<0 || r>=gridRows) {
+						continue;
+					}
+					boolean edgeRow = (r==row-ring || r==row+ring);
+					for (int c = col-ring; c<=col+ring; c += (edgeRow || ring==0) ? 1 : 2*ring) {
+						if (c<0 || c>=gridCols) {
+							continue;
+						}
+						int cell = r*gridCols + c;
+						for (int k = 0; k<cellCount[cell]; k++) {
+							int p = cellPoints[cell][k];
+							if (p==i) {
+								continue;
+							}
+							double d = distance(i, p);
+							if (found<numNeighbors) {
+								found++;
+							} else if (d>=bestDistance[numNeighbors-1]) {
+								continue;
+							}
+							int pos = found-1;
+							while (pos>0 && bestDistance[pos-1]>d) {
+								bestDistance[pos] = bestDistance[pos-1];
+								neighbors[i][pos] = neighbors[i][pos-1];
+								pos--;
+							}
+							bestDistance[pos] = d;
+							neighbors[i][pos] = p;
+						}
+					}
+				}
+				if (found==numNeighbors && bestDistance[numNeighbors-1]<=ring*cellSize) {
+					break;
+				}
+			}
+		}
+		return neighbors;
+	}
+
+	private int[] nearestNeighborPath() {
+		/*
+		 *  Builds a path by always moving to the closest position that has not been visited.
+		 *  Visited positions are removed from the grid.
+		 */
+		int numPositions = x.length;
+		int[] path = new int[numPositions];
+		int maxRing = Math.max(gridCols, gridRows);
+		int current = 0;
+		removeFromGrid(current);
+		path[0] = current;
+
+		for (int n = 1; n<numPositions; n++) {
+			int col = (int) ((x[current]-minX)/cellSize);
+			int row = (int) ((y[current]-minY)/cellSize);
+			int best = -1;
+			double bestDistance = Double.POSITIVE_INFINITY;
+			for (int ring = 0; ring<=maxRing; ring++) {
+				for (int r = row-ring; r<=row+ring; r++) {
+					if (r<0 || r>=gridRows) {
+						continue;
+					}
+					boolean edgeRow = (r==row-ring || r==row+ring);
+					for (int c = col-ring; c<=col+ring; c += (edgeRow || ring==0) ? 1 : 2*ring) {
+						if (c<0 || c>=gridCols) {
+							continue;
+						}
+						int cell = r*gridCols + c;
+						for (int k = 0; k<cellCount[cell]; k++) {
+							int p = cellPoints[cell][k];
+							double d = distance(current, p);
+							if (d<bestDistance || (d==bestDistance && p<best)) {
+								bestDistance = d;
+								best = p;
+							}
+						}
+					}
+				}
+				if (best>=0 && bestDistance<=ring*cellSize) {
+					break;
+				}
+			}
+			removeFromGrid(best);
+			path[n] = best;
+			current = best;
+		}
+		return path;
+	}
+
+	private void removeFromGrid(int p) {
+		int cell = cellIndex(p);
+		for (int k = 0; k<cellCount[cell]; k++) {
+			if (cellPoints[cell][k]==p) {
+				cellPoints[cell][k] = cellPoints[cell][--cellCount[cell]];
+				return;
+			}
+		}
+	}
+
+	private void twoOpt(int[] path, int[][] neighbors, long deadline) {
+		/*
+		 *  Improves the path by replacing two moves with two shorter ones and reversing the part of
+		 *  the path between them. Only moves to one of the closest positions are tried. Positions
+		 *  are checked again only when one of their moves has changed.
+		 */
+		int numPositions = path.length;
+		int[] pos = new int[numPositions];
+		for (int i = 0; i<numPositions; i++) {
+			pos[path[i]] = i;
+		}
+
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		boolean[] queued = new boolean[numPositions];
+		for (int i = 0; i<numPositions; i++) {
+			queue.add(path[i]);
+			queued[path[i]] = true;
+		}
+
+		int numChecked = 0;
+		while (!queue.isEmpty()) {
+			if ((++numChecked & 255)==0 && System.currentTimeMillis()>deadline) {
+				IJ.log("Stage path optimization stopped early to stay within the time limit.");
+				break;
+			}
+			int a = queue.poll();
+			queued[a] = false;
+			int i = pos[a];
+			boolean improved = false;
+
+			// Replace the move leaving a
+			if (i<numPositions-1) {
+				int b = path[i+1];
+				double dab = moveTime(a, b);
+				for (int c : neighbors[a]) {
+					double g1 = dab - moveTime(a, c);
+					if (g1<=EPSILON) {
+						break;
+					}
+					int j = pos[c];
+					if (j>i+1) {
+						int d = (j+1<numPositions) ? path[j+1] : -1;
+						double gain = g1 + ((d<0) ? 0 : moveTime(c, d) - moveTime(b, d));
+						if (gain>EPSILON) {
+							reverse(path, pos, i+1, j);
+							requeue(queue, queued, a, b, c, d);
+							improved = true;
+							break;
+						}
+					} else if (j<i) {
+						int d = path[j+1];
+						double gain = g1 + moveTime(c, d) - moveTime(d, b);
+						if (gain>EPSILON) {
+							reverse(path, pos, j+1, i);
+							requeue(queue, queued, a, b, c, d);
+							improved = true;
+							break;
+						}
+					}
+				}
+			}
+
+			// Replace the move arriving at a
+			if (!improved && i>0) {
+				int p = path[i-1];
+				double dpa = moveTime(p, a);
+				for (int c : neighbors[a]) {
+					double g1 = dpa - moveTime(a, c);
+					if (g1<=EPSILON) {
+						break;
+					}
+					int j = pos[c];
+					if (j<1) {
+						continue;
+					}
+					int q = path[j-1];
+					if (j>i) {
+						double gain = g1 + moveTime(q, c) - moveTime(p, q);
+						if (gain>EPSILON) {
+							reverse(path, pos, i, j-1);
+							requeue(queue, queued, a, p, c, q);
+							improved = true;
+							break;
+						}
+					} else if (j<i-1) {
+						double gain = g1 + moveTime(q, c) - moveTime(q, p);
+						if (gain>EPSILON) {
+							reverse(path, pos, j, i-1);
+							requeue(queue, queued, a, p, c, q);
+							improved = true;
+							break;
+						}
+					}
+				}
+			}
+
+			if (improved && !queued[a]) {
+				queue.add(a);
+				queued[a] = true;
+			}
+		}
+	}
+
+	private void requeue(ArrayDeque<Integer> queue, boolean[] queued, int a, int b, int c, int d) {
+		int[] changed = {a, b, c, d};
+		for (int p : changed) {
+			if (p>=0 && !queued[p]) {
+				queue.add(p);
+				queued[p] = true;
+			}
+		}
+	}
+
+	private void reverse(int[] path, int[] pos, int from, int to) {
+		while (from<to) {
+			int temp = path[from];
+			path[from] = path[to];
+			path[to] = temp;
+			pos[path[from]] = from;
+			pos[path[to]] = to;
+			from++;
+			to--;
+		}
+	}
+}
@@ -0,0 +1,628 @@
+package nist.squire;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+
+//This class writes an image stack to a TIFF file one frame at a time, as frames come off the
+//	camera, so a stack is on disk as soon as its last frame has been captured. Each frame is
+//	written as a strip of pixel data followed by its image directory, and the previous directory
+//	is pointed at it. Things that are only known once the stack is finished (the number of frames
+//	ImageJ should expect, and the slice labels) are written at the end of the file when the writer
+//	is closed and the first directory is patched to point at them.
+//
+//	Files are written big-endian, the same as ImageJ, with the ImageJ description and slice label
+//	tags, so they open as hyperstacks in ImageJ. ImageJ can not open BigTIFF files, so a stack
+//	that would not fit in a standard TIFF (4GB) is refused with an error instead; the plate store
+//	is meant for data that large.
+//	ImageJ only applies the slice labels to stacks with all pixel data in one block, so stacks
+//	written here should be read back with open, which puts the labels (the exposure of each frame)
+//	back on the stack.
+//
+//	The CRC32 of the file is worked out from the bytes as they are written, so the file does not
+//	have to be read back to record it in the progress journal.
+//
+//	Frames can optionally be compressed without loss. Each frame is split into strips of about
+//	128kB, integer images are stored as differences from the pixel to the left (which makes camera
+//	images compress much better), and the strips are deflated in parallel on all cores.
+public class TiffStackWriter {
+
+	// Compression settings
+	public static final int NONE = 1;
+	public static final int DEFLATE = 8;
+	private static final int STRIP_SIZE = 1 << 17;
+	private static final int DEFLATE_LEVEL = Deflater.BEST_SPEED;
+	private static ExecutorService encoders;
+
+	// Largest file that can be addressed by a standard TIFF
+	private static final long MAX_TIFF_SIZE = 0xffffffffL;
+	// Number of direct buffers kept for reuse between frames and stacks
+	private static final int MAX_POOLED_BUFFERS = 4;
+	private static final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+
+	// TIFF tags
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int PHOTOMETRIC = 262;
+	private static final int IMAGE_DESCRIPTION = 270;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int ROWS_PER_STRIP = 278;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int PREDICTOR = 317;
+	private static final int SAMPLE_FORMAT = 339;
+	private static final int META_DATA_BYTE_COUNTS = 50838;
+	private static final int META_DATA = 50839;
+
+	// TIFF field types
+	private static final int BYTE = 1;
+	private static final int ASCII = 2;
+	private static final int SHORT = 3;
+	private static final int LONG = 4;
+
+	// ImageJ slice label metadata
+	private static final int IJ_MAGIC = 0x494a494a; //"IJIJ"
+	private static final int IJ_LABELS = 0x6c61626c; //"labl"
+
+	private String path;
+	private FileChannel channel;
+	private RandomAccessFile file;
+	private int width;
+	private int height;
+	private int bitDepth;
+	private int bytesPerPixel;
+	private int slices;
+	private long position;
+	private long nextIfdPointer;
+	private long descriptionEntry = -1;
+	private long metaDataCountsEntry = -1;
+	private long metaDataEntry = -1;
+	private int numFrames = 0;
+	private ArrayList<String> labels = new ArrayList<String>();
+	private IOException error;
+	private int compression = NONE;
+	private int rowsPerStrip;
+	private long rawBytes = 0;
+	private long storedBytes = 0;
+	private AtomicLong encodeTime = new AtomicLong(); //ns, summed over the encoder threads
+	private long writeTime = 0; //ns
+	private FileChecksum checksum = new FileChecksum();
+
+	public TiffStackWriter(String path, int width, int height, int bitDepth, int slices) throws IOException {
+		/*
+		 *  Creates the file and writes the header. Slices is the number of images in each frame
+		 *  of the hyperstack, normally the number of replicates. Bit depth must be 8, 16 or 32,
+		 *  where 32 bit images are floating point.
+		 */
+		if (bitDepth!=8 && bitDepth!=16 && bitDepth!=32) {
+			throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+		}
+		this.path = path;
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.bytesPerPixel = bitDepth/8;
+		this.slices = Math.max(1, slices);
+		this.rowsPerStrip = height;
+
+		File f = new File(path);
+		if (f.exists() && !f.delete()) {
+			throw new IOException("Unable to replace " + path);
+		}
+		file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(0);
+		nextIfdPointer = 4;
+		header.flip();
+		write(header, 0);
+		position = header.capacity();
+	}
+
+	public static String save(ImagePlus imp, String path, int compression) throws IOException {
+		/*
+		 *  Saves a whole image or stack, in the same order and with the same slice labels as
+		 *  IJ.saveAsTiff, and returns the checksum of the file. A .tif extension is added to the
+		 *  path if it does not have one. Stacks too large for a standard TIFF are not written.
+		 */
+		if (!path.endsWith(".tif") && !path.endsWith(".tiff")) {
+			path += ".tif";
+		}
+		ImageStack stack = imp.getStack();
+		int bitDepth = imp.getBitDepth();
+		int numImages = stack.getSize();
+		if (compression==NONE && !fitsInTiff(imp.getWidth(), imp.getHeight(), bitDepth, numImages)) {
+			throw new IOException(tooLarge(path));
+		}
+		TiffStackWriter writer = new TiffStackWriter(path, imp.getWidth(), imp.getHeight(), bitDepth, imp.getNSlices());
+		writer.setCompression(compression);
+		try {
+			for (int i = 1; i<=numImages; i++) {
+				writer.addFrame(stack.getPixels(i), stack.getSliceLabel(i));
+			}
+		} finally {
+			writer.close();
+		}
+		return writer.getChecksum();
+	}
+
+	public static ImagePlus open(String path) throws IOException {
+		/*
+		 *  Opens a TIFF saved by this class or by ImageJ, with its slice labels. ImageJ reads a
+		 *  stack with one directory per image without the labels, but keeps the ones it found in
+		 *  the first directory in the file info, so they are put back from there.
+		 */
+		ImagePlus imp = IJ.openImage(path);
+		if (imp==null) {
+			throw new IOException("Unable to open " + path);
+		}
+		FileInfo info = imp.getOriginalFileInfo();
+		ImageStack stack = imp.getStack();
+		if (info!=null && info.sliceLabels!=null && info.sliceLabels.length>=stack.getSize()) {
+			for (int i = 1; i<=stack.getSize(); i++) {
+				if (stack.getSliceLabel(i)==null) {
+					stack.setSliceLabel(info.sliceLabels[i-1], i);
+				}
+			}
+		}
+		return imp;
+	}
+
+	public void setCompression(int compression) {
+		/*
+		 *  Sets the compression used for the frames that follow. Must be set before the first
+		 *  frame is written, since ImageJ reads all frames with the settings of the first one.
+		 */
+		if (numFrames>0) {
+			throw new IllegalStateException("Compression must be set before the first frame is written.");
+		}
+		this.compression = compression;
+		rowsPerStrip = (compression==NONE) ? height : Math.max(1, Math.min(height, STRIP_SIZE/(width*bytesPerPixel)));
+	}
+
+	// Whether an uncompressed stack of this size fits in a standard TIFF that ImageJ can open.
+	public static boolean fitsInTiff(int width, int height, int bitDepth, long numImages) {
+		long frameBytes = (long) width*height*(bitDepth/8) + 512;
+		return frameBytes*numImages + (1 << 20)<=MAX_TIFF_SIZE;
+	}
+
+	private static String tooLarge(String path) {
+		return new File(path).getName() + " would be larger than 4GB, which needs a BigTIFF that ImageJ can not open. Use the plate store for stacks this large.";
+	}
+
+	public synchronized void addFrame(Object pixels, String label) {
+		/*
+		 *  Writes one image to the end of the file. Errors are kept until the writer is closed so
+		 *  that the capture is not interrupted, and the stack is then reported as not saved.
+		 */
+		if (error!=null) {
+			return;
+		}
+		try {
+			if (position + (long) width*height*bytesPerPixel + 1024>MAX_TIFF_SIZE) {
+				throw new IOException(tooLarge(path));
+			}
+			if (compression!=NONE) {
+				addCompressedFrame(pixels);
+				labels.add(label==null ? "" : label);
+				numFrames++;
+				return;
+			}
+			ByteBuffer buffer = acquireBuffer(width*height*bytesPerPixel);
+			if (pixels instanceof short[] && bitDepth==16) {
+				buffer.asShortBuffer().put((short[]) pixels);
+			} else if (pixels instanceof byte[] && bitDepth==8) {
+				buffer.put((byte[]) pixels);
+				buffer.rewind();
+			} else if (pixels instanceof float[] && bitDepth==32) {
+				buffer.asFloatBuffer().put((float[]) pixels);
+			} else {
+				releaseBuffer(buffer);
+				throw new IOException("Image pixels do not match the " + bitDepth + " bit stack.");
+			}
+			buffer.limit(width*height*bytesPerPixel);
+			long stripOffset = position;
+			write(buffer, stripOffset);
+			releaseBuffer(buffer);
+			position += width*height*bytesPerPixel;
+			rawBytes += width*height*bytesPerPixel;
+			storedBytes += width*height*bytesPerPixel;
+			writeIfd(new long[] {stripOffset}, new long[] {width*height*bytesPerPixel});
+			labels.add(label==null ? "" : label);
+			numFrames++;
+		} catch (IOException e) {
+			error = e;
+		}
+	}
+
+	private void addCompressedFrame(final Object pixels) throws IOException {
+		/*
+		 *  Encodes the strips of a frame in parallel, then writes them in order followed by the
+		 *  directory for the frame.
+		 */
+		if (!(pixels instanceof short[] && bitDepth==16) && !(pixels instanceof byte[] && bitDepth==8) && !(pixels instanceof float[] && bitDepth==32)) {
+			throw new IOException("Image pixels do not match the " + bitDepth + " bit stack.");
+		}
+		int numStrips = (height + rowsPerStrip - 1)/rowsPerStrip;
+		ArrayList<Future<byte[]>> strips = new ArrayList<Future<byte[]>>(numStrips);
+		for (int s = 0; s<numStrips; s++) {
+			final int firstRow = s*rowsPerStrip;
+			final int numRows = Math.min(rowsPerStrip, height-firstRow);
+			strips.add(getEncoders().submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() {
+					return encodeStrip(pixels, firstRow, numRows);
+				}
+			}));
+		}
+
+		long[] stripOffsets = new long[numStrips];
+		long[] stripCounts = new long[numStrips];
+		for (int s = 0; s<numStrips; s++) {
+			byte[] strip;
+			try {
+				strip = strips.get(s).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while compressing " + path);
+			} catch (ExecutionException e) {
+				throw new IOException("Unable to compress " + path + ": " + e.getCause());
+			}
+			stripOffsets[s] = position;
+			stripCounts[s] = strip.length;
+			write(ByteBuffer.wrap(strip), position);
+			position += strip.length;
+			storedBytes += strip.length;
+		}
+		rawBytes += (long) width*height*bytesPerPixel;
+		writeIfd(stripOffsets, stripCounts);
+	}
+
+	private byte[] encodeStrip(Object pixels, int firstRow, int numRows) {
+		/*
+		 *  Converts rows of pixels to big-endian bytes, replacing each integer pixel by its
+		 *  difference from the pixel to its left, and deflates them.
+		 */
+		long startTime = System.nanoTime();
+		byte[] raw = new byte[numRows*width*bytesPerPixel];
+		int k = 0;
+		for (int row = firstRow; row<firstRow+numRows; row++) {
+			int start = row*width;
+			if (pixels instanceof short[]) {
+				short[] spixels = (short[]) pixels;
+				int previous = 0;
+				for (int x = start; x<start+width; x++) {
+					int diff = spixels[x] - previous;
+					previous = spixels[x];
+					raw[k++] = (byte) (diff >> 8);
+					raw[k++] = (byte) diff;
+				}
+			} else if (pixels instanceof byte[]) {
+				byte[] bpixels = (byte[]) pixels;
+				int previous = 0;
+				for (int x = start; x<start+width; x++) {
+					raw[k++] = (byte) (bpixels[x] - previous);
+					previous = bpixels[x];
+				}
+			} else {
+				float[] fpixels = (float[]) pixels;
+				for (int x = start; x<start+width; x++) {
+					int bits = Float.floatToRawIntBits(fpixels[x]);
+					raw[k++] = (byte) (bits >> 24);
+					raw[k++] = (byte) (bits >> 16);
+					raw[k++] = (byte) (bits >> 8);
+					raw[k++] = (byte) bits;
+				}
+			}
+		}
+
+		// Differences between neighboring camera pixels are mostly noise, so searching for repeated
+		// runs gains little. Huffman coding alone compresses them about as well, twice as fast.
+		Deflater deflater = new Deflater(DEFLATE_LEVEL);
+		deflater.setStrategy(Deflater.HUFFMAN_ONLY);
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] out = new byte[raw.length + raw.length/100 + 64];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length==out.length) {
+				out = Arrays.copyOf(out, 2*out.length);
+			}
+			length += deflater.deflate(out, length, out.length-length);
+		}
+		deflater.end();
+		out = Arrays.copyOf(out, length);
+		encodeTime.addAndGet(System.nanoTime() - startTime);
+		return out;
+	}
+
+	private static synchronized ExecutorService getEncoders() {
+		if (encoders==null) {
+			encoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "TIFF encoder");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return encoders;
+	}
+
+	public int getNumFrames() {return numFrames;}
+
+	// Size of the pixel data before compression divided by the size written to disk.
+	public double getCompressionRatio() {return (storedBytes==0) ? 1 : (double) rawBytes/storedBytes;}
+
+	// Total time spent compressing frames, in milliseconds. Strips are compressed in parallel, so
+	//	this is the time of all encoder threads added together, not the time the frames took.
+	public double getEncodeTime() {return encodeTime.get()/1e6;}
+
+	// Total time spent writing to the file, in milliseconds.
+	public double getWriteTime() {return writeTime/1e6;}
+
+	public String getPath() {return path;}
+
+	// CRC32 of the file, the same as ProgressJournal.checksum, once the writer is closed.
+	public String getChecksum() {return checksum.toString();}
+
+	public synchronized void close() throws IOException {
+		/*
+		 *  Writes the ImageJ description and slice labels, points the first directory at them,
+		 *  and closes the file. Throws the first error that happened while writing frames.
+		 */
+		if (channel==null) {
+			return;
+		}
+		try {
+			if (error==null && numFrames>0) {
+				writeMetaData();
+			}
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			channel.close();
+			file.close();
+			channel = null;
+		}
+		if (error!=null) {
+			throw new IOException("Unable to save " + path + ": " + error.getMessage(), error);
+		}
+		if (compression!=NONE) {
+			IJ.log("Saved " + new File(path).getName() + ": compression ratio " + IJ.d2s(getCompressionRatio(), 2) + ", encode time " + IJ.d2s(getEncodeTime(), 0) + "ms, write time " + IJ.d2s(getWriteTime(), 0) + "ms");
+		}
+	}
+
+	private void writeIfd(long[] stripOffsets, long[] stripCounts) throws IOException {
+		/*
+		 *  Writes the image directory for a frame and links it to the previous directory. The
+		 *  first directory also holds the ImageJ description and metadata tags, which are filled
+		 *  in when the writer is closed. Strip offsets and sizes that do not fit in the directory
+		 *  are written just before it.
+		 */
+		boolean isFirst = (numFrames==0);
+		boolean hasPredictor = (compression!=NONE);
+		int numEntries = 10 + (isFirst ? 3 : 0) + (hasPredictor ? 1 : 0);
+
+		long stripOffsetsValue = stripOffsets[0];
+		long stripCountsValue = stripCounts[0];
+		if (stripOffsets.length>1) {
+			stripOffsetsValue = writeArray(stripOffsets);
+			stripCountsValue = writeArray(stripCounts);
+		}
+
+		// Directories start on a word boundary.
+		if ((position & 1)!=0) {
+			position++;
+		}
+		long ifdOffset = position;
+
+		ByteBuffer ifd = ByteBuffer.allocate(2 + numEntries*12 + 4);
+		ifd.putShort((short) numEntries);
+		putEntry(ifd, IMAGE_WIDTH, LONG, 1, width);
+		putEntry(ifd, IMAGE_LENGTH, LONG, 1, height);
+		putEntry(ifd, BITS_PER_SAMPLE, SHORT, 1, bitDepth);
+		putEntry(ifd, COMPRESSION, SHORT, 1, compression);
+		putEntry(ifd, PHOTOMETRIC, SHORT, 1, 1);
+		if (isFirst) {
+			descriptionEntry = ifdOffset + ifd.position();
+			putEntry(ifd, IMAGE_DESCRIPTION, ASCII, 1, 0);
+		}
+		putEntry(ifd, STRIP_OFFSETS, LONG, stripOffsets.length, stripOffsetsValue);
+		putEntry(ifd, SAMPLES_PER_PIXEL, SHORT, 1, 1);
+		putEntry(ifd, ROWS_PER_STRIP, LONG, 1, rowsPerStrip);
+		putEntry(ifd, STRIP_BYTE_COUNTS, LONG, stripCounts.length, stripCountsValue);
+		if (hasPredictor) {
+			putEntry(ifd, PREDICTOR, SHORT, 1, (bitDepth==32) ? 1 : 2);
+		}
+		putEntry(ifd, SAMPLE_FORMAT, SHORT, 1, (bitDepth==32) ? 3 : 1);
+		if (isFirst) {
+			metaDataCountsEntry = ifdOffset + ifd.position();
+			putEntry(ifd, META_DATA_BYTE_COUNTS, LONG, 0, 0);
+			metaDataEntry = ifdOffset + ifd.position();
+			putEntry(ifd, META_DATA, BYTE, 0, 0);
+		}
+		// Offset of the next directory, filled in when the next frame is written.
+		long nextPointer = ifdOffset + ifd.position();
+		ifd.putInt(0);
+		ifd.flip();
+		write(ifd, ifdOffset);
+		position = ifdOffset + ifd.capacity();
+
+		patchOffset(nextIfdPointer, ifdOffset);
+		nextIfdPointer = nextPointer;
+	}
+
+	private long writeArray(long[] values) throws IOException {
+		// Writes an array of LONG values and returns where it was written.
+		ByteBuffer array = ByteBuffer.allocate(values.length*4);
+		for (long value : values) {
+			array.putInt((int) value);
+		}
+		array.flip();
+		if ((position & 1)!=0) {
+			position++;
+		}
+		long offset = position;
+		write(array, offset);
+		position += array.capacity();
+		return offset;
+	}
+
+	private void putEntry(ByteBuffer ifd, int tag, int type, long count, long value) {
+		/*
+		 *  Adds a directory entry. Values are stored left-justified in the value field, so SHORT
+		 *  values go in the first two bytes.
+		 */
+		ifd.putShort((short) tag);
+		ifd.putShort((short) type);
+		ifd.putInt((int) count);
+		if (type==SHORT) {
+			ifd.putShort((short) value).putShort((short) 0);
+		} else {
+			ifd.putInt((int) value);
+		}
+	}
+
+	private void writeMetaData() throws IOException {
+		/*
+		 *  Writes the ImageJ description and slice labels at the end of the file and updates the
+		 *  entries in the first directory to point at them.
+		 */
+		int frames = (numFrames + slices - 1)/slices;
+		int imageSlices = (frames>1) ? slices : numFrames;
+		StringBuilder description = new StringBuilder();
+		// The number of images is left out, since ImageJ would then expect the pixel data of all
+		// images to be next to each other instead of reading each directory.
+		description.append("ImageJ=1.49v\n");
+		if (imageSlices>1) {
+			description.append("slices=").append(imageSlices).append("\n");
+		}
+		if (frames>1) {
+			description.append("frames=").append(frames).append("\n");
+			description.append("hyperstack=true\n");
+		}
+		description.append("loop=false\n");
+		byte[] text = (description.toString() + "\0").getBytes("US-ASCII");
+
+		long descriptionOffset = position;
+		write(ByteBuffer.wrap(text), descriptionOffset);
+		position += text.length;
+		patchEntry(descriptionEntry, text.length, descriptionOffset);
+
+		// ImageJ slice labels: a header listing the label block, then each label as UTF-16 characters.
+		int[] byteCounts = new int[numFrames+1];
+		byteCounts[0] = 12;
+		int labelBytes = 0;
+		for (int i = 0; i<numFrames; i++) {
+			byteCounts[i+1] = 2*labels.get(i).length();
+			labelBytes += byteCounts[i+1];
+		}
+		ByteBuffer metaData = ByteBuffer.allocate(12 + labelBytes);
+		metaData.putInt(IJ_MAGIC).putInt(IJ_LABELS).putInt(numFrames);
+		for (String label : labels) {
+			for (int i = 0; i<label.length(); i++) {
+				metaData.putChar(label.charAt(i));
+			}
+		}
+		metaData.flip();
+		long metaDataOffset = position;
+		write(metaData, metaDataOffset);
+		position += metaData.capacity();
+
+		ByteBuffer counts = ByteBuffer.allocate(4*byteCounts.length);
+		for (int count : byteCounts) {
+			counts.putInt(count);
+		}
+		counts.flip();
+		long countsOffset = position;
+		write(counts, countsOffset);
+		position += counts.capacity();
+
+		patchEntry(metaDataCountsEntry, byteCounts.length, countsOffset);
+		patchEntry(metaDataEntry, metaData.capacity(), metaDataOffset);
+	}
+
+	private void patchEntry(long entry, long count, long offset) throws IOException {
+		// Replaces the count and value of a directory entry that was written earlier.
+		ByteBuffer patch = ByteBuffer.allocate(8);
+		patch.putInt((int) count).putInt((int) offset);
+		patch.flip();
+		write(patch, entry + 4);
+	}
+
+	private void patchOffset(long pointer, long offset) throws IOException {
+		ByteBuffer patch = ByteBuffer.allocate(4);
+		patch.putInt((int) offset);
+		patch.flip();
+		write(patch, pointer);
+	}
+
+	private void write(ByteBuffer buffer, long offset) throws IOException {
+		long startTime = System.nanoTime();
+		if (offset<checksum.length()) {
+			// Bytes that were written before, such as an offset that is filled in later
+			byte[] data = new byte[buffer.remaining()];
+			buffer.duplicate().get(data);
+			ByteBuffer previous = ByteBuffer.allocate(data.length);
+			while (previous.hasRemaining() && channel.read(previous, offset+previous.position())>=0) {
+			}
+			checksum.overwrite(offset, previous.array(), data);
+		} else {
+			checksum.update(offset, buffer);
+		}
+		while (buffer.hasRemaining()) {
+			offset += channel.write(buffer, offset);
+		}
+		writeTime += System.nanoTime() - startTime;
+	}
+
+	private static ByteBuffer acquireBuffer(int size) {
+		/*
+		 *  Returns a cleared big-endian direct buffer of at least the requested size, reusing
+		 *  one from the pool if it is large enough.
+		 */
+		synchronized (bufferPool) {
+			for (int i = 0; i<bufferPool.size(); i++) {
+				ByteBuffer buffer = bufferPool.poll();
+				if (buffer.capacity()>=size) {
+					buffer.clear();
+					return buffer;
+				}
+				bufferPool.add(buffer);
+			}
+		}
+		return ByteBuffer.allocateDirect(size).order(ByteOrder.BIG_ENDIAN);
+	}
+
+	private static void releaseBuffer(ByteBuffer buffer) {
+		synchronized (bufferPool) {
+			if (bufferPool.size()<MAX_POOLED_BUFFERS) {
+				bufferPool.add(buffer);
+			}
+		}
+	}
+}
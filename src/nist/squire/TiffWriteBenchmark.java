@@ -0,0 +1,126 @@
+package nist.squire;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+//This class measures how fast a replicate stack can be saved with IJ.saveAsTiff compared to the
+//	TiffStackWriter. IJ.saveAsTiff is timed from a finished stack, while the TiffStackWriter is
+//	timed writing the same frames one at a time, the way they arrive from the camera. Both write
+//	to the same folder so they are limited by the same disk. The TiffStackWriter is also timed with
+//	lossless compression, which trades processor time for smaller files. Before timing, a small
+//	replicate series is saved both ways and opened again, to check the exposures are read back
+//	from the slice labels the way resume and batch reprocessing read them.
+//
+//	Usage: TiffWriteBenchmark <output folder> [width] [height] [frames] [repeats]
+public class TiffWriteBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String dir = (args.length>0) ? args[0] : System.getProperty("java.io.tmpdir");
+		int width = (args.length>1) ? Integer.parseInt(args[1]) : 2048;
+		int height = (args.length>2) ? Integer.parseInt(args[2]) : 2048;
+		int frames = (args.length>3) ? Integer.parseInt(args[3]) : 32;
+		int repeats = (args.length>4) ? Integer.parseInt(args[4]) : 5;
+		if (!dir.endsWith(File.separator)) {
+			dir += File.separator;
+		}
+
+		checkRoundTrip(dir);
+
+		// Camera-like frames with some noise so the file system can not skip empty blocks.
+		Random random = new Random(0);
+		short[][] pixels = new short[frames][width*height];
+		ImageStack stack = new ImageStack(width, height);
+		for (int i = 0; i<frames; i++) {
+			for (int k = 0; k<pixels[i].length; k++) {
+				pixels[i][k] = (short) (1000 + random.nextInt(4096));
+			}
+			stack.addSlice(Integer.toString(i), pixels[i]);
+		}
+		ImagePlus imp = new ImagePlus("benchmark", stack);
+		imp.setDimensions(1, frames, 1);
+		double megabytes = 2.0*width*height*frames/(1 << 20);
+
+		System.out.println("Writing " + frames + " frames of " + width + "x" + height + " (" + Math.round(megabytes) + "MB), best of " + repeats);
+		long bestImageJ = Long.MAX_VALUE;
+		long bestStream = Long.MAX_VALUE;
+		long bestCompressed = Long.MAX_VALUE;
+		double ratio = 1;
+		for (int r = 0; r<repeats; r++) {
+			String ijPath = dir + "benchmark-imagej.tif";
+			long startTime = System.nanoTime();
+			IJ.saveAsTiff(imp, ijPath);
+			bestImageJ = Math.min(bestImageJ, System.nanoTime()-startTime);
+			new File(ijPath).delete();
+
+			String streamPath = dir + "benchmark-stream.tif";
+			startTime = System.nanoTime();
+			TiffStackWriter writer = new TiffStackWriter(streamPath, width, height, 16, frames);
+			for (int i = 0; i<frames; i++) {
+				writer.addFrame(pixels[i], Integer.toString(i));
+			}
+			writer.close();
+			bestStream = Math.min(bestStream, System.nanoTime()-startTime);
+			new File(streamPath).delete();
+
+			startTime = System.nanoTime();
+			writer = new TiffStackWriter(streamPath, width, height, 16, frames);
+			writer.setCompression(TiffStackWriter.DEFLATE);
+			for (int i = 0; i<frames; i++) {
+				writer.addFrame(pixels[i], Integer.toString(i));
+			}
+			writer.close();
+			bestCompressed = Math.min(bestCompressed, System.nanoTime()-startTime);
+			ratio = writer.getCompressionRatio();
+			new File(streamPath).delete();
+		}
+
+		report("IJ.saveAsTiff", megabytes, bestImageJ);
+		report("TiffStackWriter", megabytes, bestStream);
+		report("TiffStackWriter, compressed " + IJ.d2s(ratio, 2) + ":1", megabytes, bestCompressed);
+	}
+
+	private static void checkRoundTrip(String dir) throws Exception {
+		// Throws if a saved stack opens without the exposures of its frames.
+		double[] exposures = {1.5, 3, 6.25};
+		int replicates = 2;
+		int width = 64;
+		int height = 48;
+		Random random = new Random(1);
+		ImageStack stack = new ImageStack(width, height);
+		for (double exposure : exposures) {
+			for (int r = 0; r<replicates; r++) {
+				short[] pixels = new short[width*height];
+				for (int k = 0; k<pixels.length; k++) {
+					pixels[k] = (short) (random.nextInt(4096));
+				}
+				stack.addSlice(Double.toString(exposure), pixels);
+			}
+		}
+		ImagePlus imp = new ImagePlus("round trip", stack);
+		imp.setDimensions(1, replicates, exposures.length);
+
+		String path = dir + "benchmark-roundtrip.tif";
+		int[] compressions = {TiffStackWriter.NONE, TiffStackWriter.DEFLATE};
+		for (int compression : compressions) {
+			TiffStackWriter.save(imp, path, compression);
+			ImagePlus opened = TiffStackWriter.open(path);
+			new File(path).delete();
+			double[] read = new ImageStats(opened, ImageGeometry.of(opened, 12)).getExposureRange();
+			if (opened.getNFrames()!=exposures.length || opened.getNSlices()!=replicates || !Arrays.equals(read, exposures)) {
+				throw new Exception("Saved stack (compression " + compression + ") read back as " + opened.getNSlices() + " replicates of "
+						+ Arrays.toString(read) + " instead of " + replicates + " replicates of " + Arrays.toString(exposures));
+			}
+		}
+		System.out.println("Exposures read back from saved stacks: " + Arrays.toString(exposures));
+	}
+
+	private static void report(String name, double megabytes, long nanos) {
+		double seconds = nanos/1e9;
+		System.out.println(name + ": " + IJ.d2s(seconds*1000, 1) + "ms, " + IJ.d2s(megabytes/seconds, 1) + "MB/s");
+	}
+}
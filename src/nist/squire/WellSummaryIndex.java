@@ -0,0 +1,90 @@
+package nist.squire;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import ij.IJ;
+
+//This class keeps a one line summary of every processed absorbance well in the run folder, so
+//	plate level results can be read straight away instead of reopening the absorbance image of
+//	each well. A row is added as soon as a well is processed and holds the mean, median and
+//	percentiles of its absorbance, the fraction of pixels masked because no exposure suited them,
+//	the median standard error, the exposure series it was captured with and when it was captured
+//	and processed. A resumed run adds to the index of the run it continues; if a well is processed
+//	again, its last row is the current one.
+public class WellSummaryIndex {
+
+	public static final String FILE_NAME = "Well Summary.csv";
+	private static final double[] PERCENTILES = {5, 25, 75, 95};
+	// Absorbance is counted from MIN_ABSORBANCE in steps of ABSORBANCE_BIN, its error from 0 in steps of ERROR_BIN
+	private static final double MIN_ABSORBANCE = -1;
+	private static final double ABSORBANCE_BIN = 0.001;
+	private static final int ABSORBANCE_BINS = 5001;
+	private static final double ERROR_BIN = 0.0001;
+	private static final int ERROR_BINS = 10001;
+
+	private PrintWriter log;
+	private SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+
+	public WellSummaryIndex(String dir) throws IOException {
+		File file = new File(dir, FILE_NAME);
+		boolean isNew = !file.exists();
+		log = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+		if (isNew) {
+			StringBuilder header = new StringBuilder("Well,Channel,Exposure,Exposures,Replicates,Pixels,Masked Fraction,Mean,Median");
+			for (double p : PERCENTILES) {
+				header.append(",P").append((int) p);
+			}
+			log.println(header.append(",Median Error,Captured,Processed"));
+		}
+		log.flush();
+	}
+
+	public void add(String well, String channel, double exposure, ImageStats sample, long captured) {
+		/*
+		 *  Summarizes the absorbance of a processed well. Pixels with no absorbance are the ones
+		 *  whose standard error is NaN.
+		 */
+		float[] absorbance = (float[]) sample.absorbance.getProcessor().getPixels();
+		float[] error = (float[]) sample.absorbanceError.getProcessor().getPixels();
+		PixelMask valid = new PixelMask(error.length);
+		PixelKernels.get().markOutside(error, 0, Double.POSITIVE_INFINITY, valid);
+		PixelMask masked = valid.copy();
+		valid.setAll();
+		valid.andNot(masked);
+
+		PixelHistogram absorbanceCounts = new PixelHistogram(MIN_ABSORBANCE, ABSORBANCE_BIN, ABSORBANCE_BINS);
+		PixelHistogram errorCounts = new PixelHistogram(0, ERROR_BIN, ERROR_BINS);
+		absorbanceCounts.add(absorbance, valid);
+		errorCounts.add(error, valid);
+
+		StringBuilder row = new StringBuilder();
+		row.append(well).append(',').append(channel).append(',').append(exposure).append(',').append(sample.nFrames);
+		row.append(',').append(sample.nSlices).append(',').append(error.length);
+		row.append(',').append(IJ.d2s((double) masked.cardinality()/error.length, 6));
+		row.append(',').append(format(absorbanceCounts.getMean())).append(',').append(format(absorbanceCounts.median()));
+		for (double p : PERCENTILES) {
+			row.append(',').append(format(absorbanceCounts.percentile(p)));
+		}
+		row.append(',').append(format(errorCounts.median()));
+		synchronized (this) {
+			row.append(',').append(timeFormat.format(new Date(captured)));
+			row.append(',').append(timeFormat.format(new Date()));
+			log.println(row);
+			log.flush();
+		}
+	}
+
+	public synchronized void close() {
+		log.close();
+	}
+
+	private static String format(double value) {
+		return Double.isNaN(value) ? "" : IJ.d2s(value, 4);
+	}
+}
@@ -133,7 +133,7 @@ implements ActionListener
 		} else if (e.getSource() == stopBenchmarkButton) {
 			Log.debug("Stop Benchmark Button Pressed");
 			try {
-				AppParams.getInstance().cancel();
+				AppParams.getInstance().cancel(this);
 			} catch (Exception e1) {
 				// TODO Auto-generated catch block
 				e1.printStackTrace();
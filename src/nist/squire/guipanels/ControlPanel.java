@@ -76,6 +76,15 @@ implements ActionListener
 	private JLabel transmittedTurretLabel;
 	private JComboBox transmittedTurret;
 	private JCheckBox useAutoFocus;
+	private JCheckBox optimizeChannelOrder;
+	private JCheckBox channelMajor;
+	private JCheckBox predictFocus;
+	private JCheckBox resumeRun;
+	private JCheckBox compressImages;
+	private JCheckBox usePlateStore;
+	private JCheckBox processAbsorbance;
+	private JCheckBox monitorDrift;
+	private JCheckBox waitForStable;
 	private JTable channelSettings;
 	private DefaultTableModel dtm;
 	private JButton addChannelButton;
@@ -161,6 +170,33 @@ implements ActionListener
 			
 			useAutoFocus = new JCheckBox();
 			useAutoFocus.setText("Use Autofocus");
+			
+			optimizeChannelOrder = new JCheckBox("Optimize Channel Order", AppParams.getOptimizeChannelOrder());
+			optimizeChannelOrder.setToolTipText("<html>Image channels in the order that needs the fewest<br>shutter and turret changes at each well.</html>");
+			
+			channelMajor = new JCheckBox("Image All Wells Per Channel", AppParams.getChannelMajor());
+			channelMajor.setToolTipText("<html>Image every well in one channel before changing to the next channel.<br>Faster when turret changes are slow and stage moves are fast.</html>");
+			
+			predictFocus = new JCheckBox("Predict Focus", AppParams.getPredictFocus());
+			predictFocus.setToolTipText("<html>Fit a surface to the autofocus results and use it to predict focus at later wells.<br>Autofocus is only run to check the prediction or when it is out of tolerance.</html>");
+			
+			resumeRun = new JCheckBox("Resume Last Run", AppParams.getResumeRun());
+			resumeRun.setToolTipText("<html>Continue the last unfinished run of this plate with the same settings.<br>Calibration and images that were already saved are not repeated.</html>");
+			
+			compressImages = new JCheckBox("Compress Images", AppParams.getCompressImages());
+			compressImages.setToolTipText("<html>Save raw and calibration images with lossless compression.<br>Files are smaller but take more processor time to save.</html>");
+			
+			usePlateStore = new JCheckBox("Save Plate Store", AppParams.getUsePlateStore());
+			usePlateStore.setToolTipText("<html>Save all wells and channels in one chunked array store (plate.zarr) in the run folder<br>instead of one TIFF per well and channel. Calibration images are still saved as TIFFs.</html>");
+			
+			processAbsorbance = new JCheckBox("Process Absorbance", AppParams.getProcessAbsorbance());
+			processAbsorbance.setToolTipText("<html>Calculate mean, background corrected and absorbance images of each well<br>in the background while the plate is imaged.</html>");
+			
+			monitorDrift = new JCheckBox("Monitor Drift", AppParams.getMonitorDrift());
+			monitorDrift.setToolTipText("<html>Check the light at the calibration position between wells while the plate is imaged.<br>Probes and the stability of each well are saved in Drift Monitor.csv.</html>");
+			
+			waitForStable = new JCheckBox("Wait For Stable Light", AppParams.getWaitForStable());
+			waitForStable.setToolTipText("<html>When drift is monitored, wait before each well until the light is stable.<br>Imaging continues anyway after 10 minutes.</html>");
 
 			addChannelButton = new JButton("Add Channel");
 			addChannelButton.setIcon(SwingResourceManager.getIcon(ControlPanel.class, "/plus.png"));
@@ -320,6 +356,32 @@ implements ActionListener
 		c.gridwidth = 2;
 		c.fill = GridBagConstraints.HORIZONTAL;
 		automatedSettingsPanel.add(new JScrollPane(channelSettings),c);
+		c.gridy++;
+		c.gridwidth = 1;
+		c.fill = GridBagConstraints.NONE;
+		c.anchor = GridBagConstraints.LINE_START;
+		automatedSettingsPanel.add(optimizeChannelOrder,c);
+		c.gridx++;
+		automatedSettingsPanel.add(channelMajor,c);
+		c.gridy++;
+		c.gridx = 0;
+		automatedSettingsPanel.add(predictFocus,c);
+		c.gridx++;
+		automatedSettingsPanel.add(resumeRun,c);
+		c.gridy++;
+		c.gridx = 0;
+		automatedSettingsPanel.add(compressImages,c);
+		c.gridx = 1;
+		automatedSettingsPanel.add(usePlateStore,c);
+		c.gridy++;
+		c.gridx = 0;
+		automatedSettingsPanel.add(processAbsorbance,c);
+		c.gridy++;
+		c.gridx = 0;
+		automatedSettingsPanel.add(monitorDrift,c);
+		c.gridx = 1;
+		automatedSettingsPanel.add(waitForStable,c);
+		c.gridx = 0;
 		c.gridy = 4;
 		c.fill = GridBagConstraints.BOTH;
 		c.anchor = GridBagConstraints.CENTER;
@@ -454,7 +516,7 @@ implements ActionListener
 		else if (e.getSource() == stopButton) {
 			Log.debug("Stop Button Pressed");
 			try {
-				AppParams.getInstance().cancel();
+				AppParams.getInstance().cancel(this);
 			} catch (Exception e1) {
 				// TODO Auto-generated catch block
 				e1.printStackTrace();
@@ -530,6 +592,22 @@ implements ActionListener
 	
 	public boolean isAbsorbance() {return useAbsorbance.isSelected();}
 	
+	public boolean isOptimizeChannelOrder() {return optimizeChannelOrder.isSelected();}
+	
+	public boolean isChannelMajor() {return channelMajor.isSelected();}
+	
+	public boolean isPredictFocus() {return predictFocus.isSelected();}
+	
+	public boolean isResumeRun() {return resumeRun.isSelected();}
+	
+	public boolean isCompressImages() {return compressImages.isSelected();}
+	
+	public boolean isUsePlateStore() {return usePlateStore.isSelected();}
+	
+	public boolean isProcessAbsorbance() {return processAbsorbance.isSelected();}
+	public boolean isMonitorDrift() {return monitorDrift.isSelected();}
+	public boolean isWaitForStable() {return waitForStable.isSelected();}
+	
 	public String getCoreSaveDirectory() {return outputDirectory.getValue();}
 	
 	public void setCoreSaveDirectory(String coreSaveDir) {outputDirectory.setValue(coreSaveDir);}
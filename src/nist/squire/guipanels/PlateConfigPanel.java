@@ -10,6 +10,7 @@ import java.awt.geom.Point2D;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -35,6 +36,7 @@ import ij.IJ;
 import mmcorej.CMMCore;
 import nist.ij.log.Log;
 import nist.squire.AppParams;
+import nist.squire.StagePathPlanner;
 import nist.textfield.TextFieldInputPanel;
 import nist.textfield.validator.ValidatorDbl;
 import nist.textfield.validator.ValidatorInt;
@@ -58,6 +60,8 @@ implements ActionListener, ParentPlateGUI
 	private JButton refreshButton;
 	private JButton calibrateXyButton;
 	private JButton setPositionListButton;
+	//Check Boxes
+	private JCheckBox optimizePathCheckBox_;
 	//Radio Buttons
 	private JComboBox plateIDCombo_;
 	private static final long serialVersionUID = 1L;
@@ -181,6 +185,10 @@ implements ActionListener, ParentPlateGUI
 		c.gridx++;
 		content.add(rdbtnMoveStage_,c);
 		
+		c.gridy++;
+		c.gridx = 0;
+		content.add(optimizePathCheckBox_,c);
+		
 		add(content);
 	}
 
@@ -311,6 +319,10 @@ implements ActionListener, ParentPlateGUI
 		});
 		setPositionListButton.setText("Build MM List");
 		
+		optimizePathCheckBox_ = new JCheckBox("Optimize Stage Path");
+		optimizePathCheckBox_.setToolTipText("Order wells and sites to minimize stage travel time");
+		optimizePathCheckBox_.setSelected(true);
+		
 		rdbtnSelectWells_ = new JRadioButton("Select Wells");
 		rdbtnSelectWells_.addActionListener(new ActionListener() {
 			@Override
@@ -414,6 +426,12 @@ implements ActionListener, ParentPlateGUI
 				platePl.addPosition(pl.getPosition(j));
 			}
 		}
+		
+		// reorder wells and sites to minimize stage travel
+		if (optimizePathCheckBox_.isSelected()) {
+			StagePathPlanner planner = new StagePathPlanner(AppParams.getStageSpeed(), AppParams.getStageAcceleration());
+			platePl = planner.optimize(platePl);
+		}
 
 		try {
 			if (app_ != null) {